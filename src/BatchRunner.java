@@ -0,0 +1,243 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class runs a batch of queries concurrently. Query evaluation and feature generation mostly
+ * wait on the disk (postings, stored fields, term vectors), so a pool sized to the cores leaves the
+ * disk idle; running several queries per core keeps more reads in flight, and a semaphore bounds
+ * how many queries run at once. The results are handed to a sink in the order of the tasks as soon
+ * as every earlier task has finished, so they are not all held until the batch ends.
+ *
+ * By default the queries run on a fixed pool of concurrency platform threads that lives for one
+ * batch, so the per-thread state of the search code (analysis pipelines and their stem memos,
+ * forward index vectors) is built once per thread and reused by the following queries. The default
+ * concurrency is four queries per core, at most 64. With batch:virtualThreads=true every query gets
+ * its own virtual thread instead when the JVM has them (Java 21 and later), which rebuilds that
+ * state for every query. They are looked up by reflection, so the code still runs on older JVMs.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class BatchRunner {
+
+  private static int MAX_DEFAULT_CONCURRENCY = 64;
+
+  private static Object VIRTUAL_BUILDER;
+  private static Method UNSTARTED;
+
+  static {
+    try {
+      VIRTUAL_BUILDER = Thread.class.getMethod("ofVirtual").invoke(null);
+      UNSTARTED = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+    } catch (Exception e) {
+      VIRTUAL_BUILDER = null;
+      UNSTARTED = null;
+    }
+  }
+
+  private int concurrency;
+  private boolean virtual;
+  private String timingPath;
+
+  /**
+   * Create a runner.
+   *
+   * @param concurrency The most tasks that run at once.
+   * @param virtual Whether to use virtual threads if the JVM has them.
+   */
+  public BatchRunner(int concurrency, boolean virtual) {
+    this.concurrency = Math.max(1, concurrency);
+    this.virtual = virtual && VIRTUAL_BUILDER != null;
+  }
+
+  /**
+   * Create a runner from the batch: parameters. By default four queries per core, at most 64, run
+   * at once on pooled platform threads.
+   *
+   * @param params The parameters read from the .param file.
+   * @return The runner.
+   */
+  public static BatchRunner create(Map<String, String> params) {
+
+    int concurrency =
+        Math.min(MAX_DEFAULT_CONCURRENCY, 4 * Runtime.getRuntime().availableProcessors());
+    if (params.containsKey("batch:concurrency")) {
+      concurrency = Integer.parseInt(params.get("batch:concurrency"));
+    }
+    BatchRunner runner =
+        new BatchRunner(concurrency, "true".equalsIgnoreCase(params.get("batch:virtualThreads")));
+    runner.timingPath = params.get("batch:timingFile");
+    return runner;
+  }
+
+  /**
+   * Whether the tasks run on virtual threads.
+   *
+   * @return true for virtual threads, false for platform threads.
+   */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * Run the tasks, at most concurrency at a time, and pass their results to the sink in the order
+   * of the tasks. The sink is called by the task threads, one result at a time. If a task or the
+   * sink fails, no more tasks are started, and the first failure is thrown once the running tasks
+   * have finished.
+   *
+   * @param tasks The tasks.
+   * @param sink Receives the result of every task.
+   * @return The time every task took, in the order of the tasks.
+   * @throws Exception
+   */
+  public <T> long[] run(List<? extends Callable<T>> tasks, final Pipeline.Stage<T> sink)
+      throws Exception {
+
+    final int n = tasks.size();
+    final long[] nanos = new long[n];
+    final Object[] values = new Object[n];
+    final boolean[] finished = new boolean[n];
+    final int[] nextResult = new int[1];
+    final Throwable[] failure = new Throwable[1];
+    final Semaphore permits = new Semaphore(concurrency);
+    final CountDownLatch done = new CountDownLatch(n);
+    ExecutorService pool = virtual ? null : Executors.newFixedThreadPool(concurrency,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "batch-query");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
+    try {
+      int started = 0;
+      for (; started < n; started++) {
+        permits.acquire();
+        synchronized (failure) {
+          if (failure[0] != null) {
+            permits.release();
+            break;
+          }
+        }
+
+        final int index = started;
+        final Callable<T> task = tasks.get(index);
+        start(pool, new Runnable() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public void run() {
+            try {
+              long startTime = System.nanoTime();
+              T value = task.call();
+              nanos[index] = System.nanoTime() - startTime;
+
+              // Hand over the finished prefix of the results. A result that fails in the sink is
+              // not finished, so no later result is handed over.
+              synchronized (finished) {
+                values[index] = value;
+                finished[index] = true;
+                for (int next = nextResult[0]; next < n && finished[next]; next = ++nextResult[0]) {
+                  T nextValue = (T) values[next];
+                  values[next] = null;
+                  finished[next] = false;
+                  sink.process(nextValue);
+                }
+              }
+            } catch (Throwable e) {
+              synchronized (failure) {
+                if (failure[0] == null) {
+                  failure[0] = e;
+                }
+              }
+            } finally {
+              permits.release();
+              done.countDown();
+            }
+          }
+        });
+      }
+
+      // Tasks that were never started count as done.
+      for (int i = started; i < n; i++) {
+        done.countDown();
+      }
+      done.await();
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+
+    if (failure[0] instanceof Error) {
+      throw (Error) failure[0];
+    } else if (failure[0] != null) {
+      throw (Exception) failure[0];
+    }
+    return nanos;
+  }
+
+  /*
+   * Start a task on a new virtual thread, or on the platform thread pool of the batch. The
+   * semaphore lets at most concurrency tasks be started and unfinished at once, so a task waits at
+   * most for a pool thread to return from the task it just finished.
+   */
+  private void start(ExecutorService pool, Runnable task) throws Exception {
+
+    if (pool == null) {
+      ((Thread) UNSTARTED.invoke(VIRTUAL_BUILDER, task)).start();
+    } else {
+      pool.execute(task);
+    }
+  }
+
+  /**
+   * Print the latency of a batch and write the time of every query to the timing file, if one is
+   * configured.
+   *
+   * @param ids The ids of the queries, in the order of the tasks.
+   * @param nanos The time every query took, as returned by {@link #run}.
+   * @param wallNanos The elapsed time of the whole batch.
+   * @throws IOException
+   */
+  public void printReport(List<String> ids, long[] nanos, long wallNanos) throws IOException {
+
+    int n = nanos.length;
+    long[] latencies = Arrays.copyOf(nanos, n);
+    long sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += latencies[i];
+    }
+    Arrays.sort(latencies);
+    System.out.println(String.format("Batch: %d queries on %s threads, %d at a time, %.1f ms",
+        n, virtual ? "virtual" : "pooled platform", concurrency, wallNanos / 1e6));
+    if (n > 0) {
+      System.out.println(String.format(
+          "Batch: query latency mean %.3f ms, median %.3f ms, max %.3f ms", sum / 1e6 / n,
+          latencies[n / 2] / 1e6, latencies[n - 1] / 1e6));
+    }
+
+    if (timingPath != null) {
+      BufferedWriter writer = new BufferedWriter(new FileWriter(timingPath));
+      for (int i = 0; i < n; i++) {
+        writer.write(ids.get(i) + "\t" + String.format("%.3f", nanos[i] / 1e6));
+        writer.newLine();
+      }
+      writer.close();
+    }
+  }
+
+}
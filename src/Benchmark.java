@@ -0,0 +1,352 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * This class benchmarks the hot paths of query evaluation and feature generation on a test index
+ * built by {@link TestIndexBuilder}: inverted list construction, BM25 scoring of a term, #SUM
+ * merging, term vector construction, the retrieval model features, feature normalization, sorting
+ * of document scores, and query parsing.
+ *
+ * Every benchmark is run for a number of warmup iterations, whose results are discarded, and then
+ * for a number of measured iterations. An iteration repeats the operation until a time budget is
+ * spent, and its cost is the elapsed time over the number of operations. The mean cost over the
+ * measured iterations is printed with its standard deviation. Every operation returns a checksum
+ * that is accumulated, so the JIT compiler cannot remove the work.
+ *
+ * Usage: java Benchmark indexPath [pattern] [iterations] [iterationMillis] [csvFile]
+ *
+ * The test index is built with the default size and seed if indexPath does not exist. Only the
+ * benchmarks whose names match the pattern are run. Results can be appended to a CSV file, so runs
+ * of two versions of the code can be compared.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class Benchmark {
+
+  private static int N_TEST_DOCS = 20000;
+  private static long TEST_SEED = 42;
+  private static int N_CANDIDATES = 100;
+
+  // Keeps the results of the operations alive
+  private static volatile long blackhole;
+
+  /*
+   * One benchmark: an operation that is repeated, after an optional setup.
+   */
+  private static abstract class Case {
+
+    private String name;
+
+    private Case(String name) {
+      this.name = name;
+    }
+
+    void setUp() throws Exception {}
+
+    abstract long run() throws Exception;
+  }
+
+  private SearchContext context;
+  private RetrievalModel modelBM25;
+  private RetrievalModel modelIndri;
+  private List<String> queries = new ArrayList<String>();
+  private List<String[]> queryStems = new ArrayList<String[]>();
+
+  // (query, document) pairs of every query with its top documents
+  private int[] pairQueries;
+  private int[] pairDocids;
+
+  private Benchmark(SearchContext context, String queryPath) throws Exception {
+
+    this.context = context;
+    modelBM25 = new RetrievalModelBM25();
+    modelBM25.setParameter("b", 0.75);
+    modelBM25.setParameter("k_1", 1.2);
+    modelBM25.setParameter("k_3", 0);
+    modelIndri = new RetrievalModelIndri();
+    modelIndri.setParameter("mu", 2500);
+    modelIndri.setParameter("lambda", 0.4);
+
+    BufferedReader in = new BufferedReader(new FileReader(queryPath));
+    String line;
+    while ((line = in.readLine()) != null) {
+      String query = line.substring(line.indexOf(':') + 1);
+      String[] stems = context.tokenizeQuery(query);
+      if (stems.length > 0) {
+        queries.add(query);
+        queryStems.add(stems);
+      }
+    }
+    in.close();
+
+    // The top documents of every query are the candidates for the per-document benchmarks
+    List<Integer> pairs = new ArrayList<Integer>();
+    for (int q = 0; q < queries.size(); q++) {
+      Qryop qTree = context.parseQuery(queries.get(q), modelBM25);
+      ScoreList scores = context.evaluate(qTree, modelBM25).docScores;
+      for (int i = 0; i < N_CANDIDATES && i < scores.scores.size(); i++) {
+        pairs.add(q);
+        pairs.add(scores.getDocid(i));
+      }
+    }
+    pairQueries = new int[pairs.size() / 2];
+    pairDocids = new int[pairs.size() / 2];
+    for (int i = 0; i < pairQueries.length; i++) {
+      pairQueries[i] = pairs.get(2 * i);
+      pairDocids[i] = pairs.get(2 * i + 1);
+    }
+  }
+
+  /*
+   * The benchmarks. Each cycles through the queries of the test index, or their candidates.
+   */
+  private List<Case> cases() {
+
+    final IndexReader reader = context.getReader();
+    final Set<Integer> noneDisabled = new HashSet<Integer>();
+    List<Case> cases = new ArrayList<Case>();
+
+    cases.add(new Case("invList") {
+      int q = 0;
+
+      @Override
+      long run() throws Exception {
+        String[] stems = queryStems.get(q++ % queryStems.size());
+        return new InvList(reader, stems[0], "body").df;
+      }
+    });
+
+    cases.add(new Case("evaluateBM25") {
+      int q = 0;
+
+      @Override
+      void setUp() {
+        context.setPostingsCache(new PostingsCache(reader, 256L << 20));
+      }
+
+      @Override
+      long run() throws Exception {
+        String[] stems = queryStems.get(q++ % queryStems.size());
+        Qryop op = new QryopSlScore(new QryopIlTerm(stems[0]));
+        return op.evaluate(modelBM25, context).docScores.scores.size();
+      }
+    });
+
+    cases.add(new Case("sumMerge") {
+      List<Qryop> trees = new ArrayList<Qryop>();
+      int q = 0;
+
+      @Override
+      void setUp() throws Exception {
+        context.setPostingsCache(new PostingsCache(reader, 256L << 20));
+        for (String query : queries) {
+          trees.add(context.parseQuery(query, modelBM25));
+        }
+      }
+
+      @Override
+      long run() throws Exception {
+        Qryop tree = trees.get(q++ % trees.size());
+        return tree.evaluate(modelBM25, context).docScores.scores.size();
+      }
+    });
+
+    cases.add(new Case("termVector") {
+      int p = 0;
+
+      @Override
+      long run() throws Exception {
+        return new TermVector(context, pairDocids[p++ % pairDocids.length], "body").stemsLength();
+      }
+    });
+
+    cases.add(new Case("features") {
+      RetrievalEvaluator evaluator;
+      List<QueryTerms> queryTerms = new ArrayList<QueryTerms>();
+      int p = 0;
+
+      @Override
+      void setUp() throws Exception {
+        evaluator = new RetrievalEvaluator(context, modelBM25, modelIndri, null);
+        for (String[] stems : queryStems) {
+          queryTerms.add(new QueryTerms(stems, null));
+        }
+      }
+
+      @Override
+      long run() throws Exception {
+        QueryTerms terms = queryTerms.get(pairQueries[p % pairQueries.length]);
+        int docid = pairDocids[p++ % pairDocids.length];
+        double f =
+            evaluator.getFeatureBM25(terms, docid, "body", noneDisabled)
+                + evaluator.getFeatureIndri(terms, docid, "body", noneDisabled)
+                + evaluator.getFeatureLncltc(terms, docid, "body", noneDisabled);
+        return Double.doubleToLongBits(f);
+      }
+    });
+
+    cases.add(new Case("normalizeFeature") {
+      Double[][] vectors = new Double[N_CANDIDATES][18];
+
+      @Override
+      void setUp() {
+        Random random = new Random(TEST_SEED);
+        for (Double[] vector : vectors) {
+          for (int j = 0; j < vector.length; j++) {
+            vector[j] = random.nextDouble() * 10;
+          }
+        }
+      }
+
+      @Override
+      long run() {
+        List<Double[]> copy = new ArrayList<Double[]>(vectors.length);
+        for (Double[] vector : vectors) {
+          copy.add(vector.clone());
+        }
+        FeatureGenerator.normalizeFeature(copy);
+        return Double.doubleToLongBits(copy.get(0)[0]);
+      }
+    });
+
+    cases.add(new Case("docScoreSort") {
+      String[] ids = new String[1000];
+      double[] scores = new double[1000];
+
+      @Override
+      void setUp() {
+        Random random = new Random(TEST_SEED);
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = String.format("clueweb09-en0000-00-%05d", random.nextInt(N_TEST_DOCS));
+          scores[i] = Math.floor(random.nextDouble() * 100) / 10;
+        }
+      }
+
+      @Override
+      long run() {
+        DocScore docScore = new DocScore();
+        for (int i = 0; i < ids.length; i++) {
+          docScore.add(ids[i], scores[i]);
+        }
+        docScore.sort();
+        return docScore.getExternalDocid(0).length();
+      }
+    });
+
+    cases.add(new Case("parseQuery") {
+      int q = 0;
+
+      @Override
+      long run() throws Exception {
+        return context.parseQuery(queries.get(q++ % queries.size()), modelBM25).args.size();
+      }
+    });
+
+    return cases;
+  }
+
+  /*
+   * Run a benchmark and return the cost of an operation in every measured iteration, in ns.
+   */
+  private static double[] measure(Case c, int iterations, long iterationMillis) throws Exception {
+
+    c.setUp();
+    double[] costs = new double[iterations];
+    for (int i = -iterations; i < iterations; i++) {
+      long checksum = 0;
+      long ops = 0;
+      long startTime = System.nanoTime();
+      long deadline = startTime + iterationMillis * 1000000L;
+      long now;
+      do {
+        checksum += c.run();
+        ops++;
+      } while ((now = System.nanoTime()) < deadline);
+      blackhole += checksum;
+      if (i >= 0) {
+        costs[i] = (double) (now - startTime) / ops;
+      }
+    }
+    return costs;
+  }
+
+  /**
+   * Run the benchmarks.
+   *
+   * @param args indexPath [pattern] [iterations] [iterationMillis] [csvFile]
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      QryEval.fatalError("Usage:  java Benchmark indexPath [pattern] [iterations] "
+          + "[iterationMillis] [csvFile]");
+    }
+    String indexPath = args[0];
+    Pattern pattern = Pattern.compile((args.length > 1) ? args[1] : ".*");
+    int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+    long iterationMillis = (args.length > 3) ? Long.parseLong(args[3]) : 1000;
+    String csvPath = (args.length > 4) ? args[4] : null;
+
+    if (!new File(indexPath).exists()) {
+      System.out.println("Building the test index in " + indexPath);
+      TestIndexBuilder.build(indexPath, N_TEST_DOCS, TEST_SEED);
+    }
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+    Benchmark benchmark = new Benchmark(new SearchContext(reader), indexPath + ".queries");
+
+    PrintWriter csv = null;
+    if (csvPath != null) {
+      boolean header = !new File(csvPath).exists();
+      csv = new PrintWriter(new FileWriter(csvPath, true));
+      if (header) {
+        csv.println("benchmark,iterations,mean_ns,stddev_ns");
+      }
+    }
+
+    System.out.println(String.format("%-20s %12s %12s", "Benchmark", "ns/op", "+-"));
+    for (Case c : benchmark.cases()) {
+      if (!pattern.matcher(c.name).find()) {
+        continue;
+      }
+      benchmark.context.setPostingsCache(null);
+      double[] costs = measure(c, iterations, iterationMillis);
+
+      double mean = 0;
+      for (double cost : costs) {
+        mean += cost;
+      }
+      mean /= costs.length;
+      double variance = 0;
+      for (double cost : costs) {
+        variance += (cost - mean) * (cost - mean);
+      }
+      double stddev = (costs.length > 1) ? Math.sqrt(variance / (costs.length - 1)) : 0;
+
+      System.out.println(String.format("%-20s %12.1f %12.1f", c.name, mean, stddev));
+      if (csv != null) {
+        csv.println(String.format("%s,%d,%.1f,%.1f", c.name, iterations, mean, stddev));
+      }
+    }
+    if (csv != null) {
+      csv.close();
+    }
+    reader.close();
+  }
+
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class implements a two-stage reranking cascade. Stage one scores every candidate with a
+ * linear model over cheap query-independent features (spam score, URL depth, FromWikipedia,
+ * PageRank) and the initial ranking score, and keeps the top k survivors. Only the survivors get
+ * the expensive term vector features in stage two. The cascade records the cost of each stage and,
+ * in audit mode, the recall of the survivors against reranking all candidates with the configured
+ * learner.
+ *
+ * The stage one model is fit on the training feature vectors with a pairwise logistic loss, unless
+ * letor:cascadeStageOneWeights gives its weights. The training vectors have no initial ranking
+ * score, so the body BM25 feature (or the body Indri feature for an Indri initial ranking) stands
+ * in for it; both are the initial ranking model applied to the body field.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class Cascade {
+
+  private static int N_STAGE_ONE_FEATURE = 5;
+  private static int FIT_ITERATIONS = 300;
+  private static double FIT_RATE = 1.0;
+  private static double FIT_L2 = 0.01;
+
+  private Map<String, String> params;
+  private int topK;
+  private double[] weights;
+  private boolean fixedWeights;
+  private int initialScoreFeature;
+  private boolean audit;
+  private LambdaMart.Ensemble auditEnsemble;
+  private double[] auditWeights;
+
+  // The stage one features and the labels of the training queries
+  private List<double[][]> trainFeatures = new ArrayList<double[][]>();
+  private List<int[]> trainLabels = new ArrayList<int[]>();
+
+  private int queries = 0;
+  private long stageOneDocs = 0;
+  private long stageOneNanos = 0;
+  private long stageTwoDocs = 0;
+  private long stageTwoNanos = 0;
+  private int auditQueries = 0;
+  private double recallSum = 0.0;
+
+  /**
+   * Checks whether the cascade is configured.
+   *
+   * @param params The parameters read from the parameter file.
+   * @return true if letor:cascadeTopK is specified.
+   */
+  public static boolean isEnabled(Map<String, String> params) {
+    return params.containsKey("letor:cascadeTopK");
+  }
+
+  /**
+   * Initialize the cascade with parameters.
+   *
+   * @param params The parameters read from the parameter file.
+   */
+  public Cascade(Map<String, String> params) {
+
+    this.params = params;
+    this.topK = Integer.parseInt(params.get("letor:cascadeTopK"));
+
+    // Weights for spam score, URL depth, FromWikipedia, PageRank and the initial ranking score.
+    // Until they are fit, candidates are kept in initial ranking order.
+    this.weights = new double[] {0.0, 0.0, 0.0, 0.0, 1.0};
+    this.initialScoreFeature =
+        "indri".equalsIgnoreCase(params.get("letor:initialRanking")) ? 5 : 4;
+    if (params.containsKey("letor:cascadeStageOneWeights")) {
+      this.fixedWeights = true;
+      String[] weightStrings = params.get("letor:cascadeStageOneWeights").split(",");
+      if (weightStrings.length != N_STAGE_ONE_FEATURE) {
+        QryEval.fatalError("Error: letor:cascadeStageOneWeights needs " + N_STAGE_ONE_FEATURE
+            + " weights.");
+      }
+      for (int i = 0; i < N_STAGE_ONE_FEATURE; i++) {
+        weights[i] = Double.parseDouble(weightStrings[i].trim());
+      }
+    }
+
+    this.audit = "true".equalsIgnoreCase(params.get("letor:cascadeAudit"));
+  }
+
+  /**
+   * Returns the number of survivors kept by stage one.
+   *
+   * @return k.
+   */
+  public int getTopK() {
+    return topK;
+  }
+
+  /**
+   * Checks whether recall against the full reranking should be measured.
+   *
+   * @return true in audit mode.
+   */
+  public boolean isAudit() {
+    return audit;
+  }
+
+  /**
+   * Add the normalized feature vectors of a training query, to fit the stage one model on.
+   *
+   * @param relevances The relevance of every document.
+   * @param featureVectors The normalized feature vectors of the documents.
+   */
+  public synchronized void addTrainingQuery(List<Integer> relevances,
+      List<Double[]> featureVectors) {
+
+    int n = featureVectors.size();
+    double[][] x = new double[n][N_STAGE_ONE_FEATURE];
+    int[] labels = new int[n];
+    for (int i = 0; i < n; i++) {
+      Double[] f = featureVectors.get(i);
+      for (int j = 0; j < N_STAGE_ONE_FEATURE - 1; j++) {
+        x[i][j] = f[j];
+      }
+      x[i][N_STAGE_ONE_FEATURE - 1] = f[initialScoreFeature];
+      labels[i] = relevances.get(i);
+    }
+    trainFeatures.add(x);
+    trainLabels.add(labels);
+  }
+
+  /**
+   * Fit the stage one weights on the training queries, by gradient descent on the logistic loss of
+   * every pair of documents of a query with different relevance. The weights start from, and are
+   * regularized towards, the initial ranking alone, so few training pairs move them little. Weights
+   * given by letor:cascadeStageOneWeights are kept as they are.
+   */
+  public synchronized void fitStageOne() {
+
+    if (fixedWeights) {
+      return;
+    }
+    double[] prior = weights.clone();
+    long pairs = 0;
+    double[] gradient = new double[N_STAGE_ONE_FEATURE];
+    double[] diff = new double[N_STAGE_ONE_FEATURE];
+    for (int iteration = 0; iteration < FIT_ITERATIONS; iteration++) {
+      Arrays.fill(gradient, 0.0);
+      pairs = 0;
+      for (int q = 0; q < trainFeatures.size(); q++) {
+        double[][] x = trainFeatures.get(q);
+        int[] labels = trainLabels.get(q);
+        for (int a = 0; a < x.length; a++) {
+          for (int b = 0; b < x.length; b++) {
+            if (labels[a] <= labels[b]) {
+              continue;
+            }
+            double margin = 0.0;
+            for (int j = 0; j < N_STAGE_ONE_FEATURE; j++) {
+              diff[j] = x[a][j] - x[b][j];
+              margin += weights[j] * diff[j];
+            }
+            double loss = 1.0 / (1.0 + Math.exp(margin));
+            for (int j = 0; j < N_STAGE_ONE_FEATURE; j++) {
+              gradient[j] -= loss * diff[j];
+            }
+            pairs++;
+          }
+        }
+      }
+      if (pairs == 0) {
+        break;
+      }
+      for (int j = 0; j < N_STAGE_ONE_FEATURE; j++) {
+        weights[j] -= FIT_RATE * (gradient[j] / pairs + FIT_L2 * (weights[j] - prior[j]));
+      }
+    }
+
+    if (pairs == 0) {
+      System.err.println("Warning: no training pairs to fit the cascade; keeping the initial "
+          + "ranking order in stage one.");
+      return;
+    }
+    System.out.println(String.format(
+        "Cascade stage 1 weights fit on %d pairs: %.4f, %.4f, %.4f, %.4f, %.4f", pairs,
+        weights[0], weights[1], weights[2], weights[3], weights[4]));
+  }
+
+  /**
+   * Score the candidates with the stage one model and return the indexes of the survivors in
+   * descending order of stage one score. The feature vectors are not modified.
+   *
+   * @param staticFeatures Feature vectors with features 1 to 4 filled in.
+   * @param initialScores The initial ranking scores of the candidates.
+   * @return The candidate indexes in stage one order; the first k are the survivors.
+   */
+  public Integer[] rankStageOne(List<Double[]> staticFeatures, List<Double> initialScores) {
+
+    int n = staticFeatures.size();
+    double[][] x = new double[n][N_STAGE_ONE_FEATURE];
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < N_STAGE_ONE_FEATURE - 1; j++) {
+        x[i][j] = staticFeatures.get(i)[j];
+      }
+      x[i][N_STAGE_ONE_FEATURE - 1] = initialScores.get(i);
+    }
+
+    // Min-max normalize each feature within the query, like the final features.
+    for (int j = 0; j < N_STAGE_ONE_FEATURE; j++) {
+      double min = Double.MAX_VALUE;
+      double max = -Double.MAX_VALUE;
+      for (int i = 0; i < n; i++) {
+        if (!Double.isNaN(x[i][j])) {
+          min = Math.min(min, x[i][j]);
+          max = Math.max(max, x[i][j]);
+        }
+      }
+      for (int i = 0; i < n; i++) {
+        if (Double.isNaN(x[i][j]) || min >= max) {
+          x[i][j] = 0.0;
+        } else {
+          x[i][j] = (x[i][j] - min) / (max - min);
+        }
+      }
+    }
+
+    final double[] scores = new double[n];
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < N_STAGE_ONE_FEATURE; j++) {
+        scores[i] += weights[j] * x[i][j];
+      }
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int scoreComp = Double.compare(scores[b], scores[a]);
+        return (scoreComp != 0) ? scoreComp : a.compareTo(b);
+      }
+    });
+
+    return order;
+  }
+
+  /**
+   * Record the cost of stage one for a query.
+   *
+   * @param nanos Time spent in stage one.
+   * @param docs Number of candidates scored.
+   */
+  public synchronized void recordStageOne(long nanos, int docs) {
+    queries++;
+    stageOneNanos += nanos;
+    stageOneDocs += docs;
+  }
+
+  /**
+   * Record the cost of stage two for a query.
+   *
+   * @param nanos Time spent in stage two.
+   * @param docs Number of survivors scored.
+   */
+  public synchronized void recordStageTwo(long nanos, int docs) {
+    stageTwoNanos += nanos;
+    stageTwoDocs += docs;
+  }
+
+  /**
+   * Measure the recall of the survivors against reranking all candidates with the final model.
+   * Recall is the fraction of the final model's top k candidates that survived stage one.
+   *
+   * @param fullFeatures Normalized feature vectors of all candidates.
+   * @param survivors Indexes of the candidates that survived stage one.
+   * @throws IOException
+   */
+  public synchronized void recordRecall(List<Double[]> fullFeatures, Set<Integer> survivors)
+      throws IOException {
+
+    int n = fullFeatures.size();
+    if (auditEnsemble == null && auditWeights == null) {
+      // Score in-process with the trained model of the configured learner
+      if ("lambdamart".equalsIgnoreCase(params.get("letor:learner"))) {
+        auditEnsemble = new LambdaMart(params).getEnsemble();
+      } else if (n > 0) {
+        try {
+          auditWeights = new SvmRank(params).getWeights(fullFeatures.get(0).length);
+        } catch (IOException e) {
+          System.err.println("Warning: cascade audit is disabled: " + e.getMessage());
+          audit = false;
+          return;
+        }
+      }
+    }
+
+    final double[] scores = new double[n];
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      Double[] f = fullFeatures.get(i);
+      double[] x = new double[f.length];
+      for (int j = 0; j < f.length; j++) {
+        x[j] = f[j];
+      }
+      if (auditEnsemble != null) {
+        scores[i] = auditEnsemble.score(x);
+      } else {
+        for (int j = 0; j < x.length; j++) {
+          scores[i] += auditWeights[j] * x[j];
+        }
+      }
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(scores[b], scores[a]);
+      }
+    });
+
+    int k = Math.min(topK, n);
+    if (k == 0) {
+      return;
+    }
+    Set<Integer> fullTop = new HashSet<Integer>(Arrays.asList(order).subList(0, k));
+    fullTop.retainAll(survivors);
+    recallSum += (double) fullTop.size() / k;
+    auditQueries++;
+  }
+
+  /**
+   * Print the per-stage cost and, in audit mode, the average recall.
+   */
+  public synchronized void printReport() {
+
+    System.out.println("Cascade over " + queries + " queries, keeping top " + topK);
+    System.out.println("Cascade stage 1: " + stageOneDocs + " docs, " + (stageOneNanos / 1000000)
+        + " ms, " + perDoc(stageOneNanos, stageOneDocs) + " us/doc");
+    System.out.println("Cascade stage 2: " + stageTwoDocs + " docs, " + (stageTwoNanos / 1000000)
+        + " ms, " + perDoc(stageTwoNanos, stageTwoDocs) + " us/doc");
+    if (auditQueries > 0) {
+      System.out.println(String.format("Cascade recall@%d vs full reranking: %.4f (%d queries)",
+          topK, recallSum / auditQueries, auditQueries));
+    }
+  }
+
+  /*
+   * Average cost per document in microseconds.
+   */
+  private static long perDoc(long nanos, long docs) {
+    return (docs == 0) ? 0 : nanos / docs / 1000;
+  }
+
+}
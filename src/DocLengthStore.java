@@ -4,28 +4,48 @@
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.index.MultiDocValues;
-import org.apache.lucene.index.MultiFields;
 
 /**
- * DocLengthStore is used to access the document lengths of indexed docs.
+ * DocLengthStore is used to access the document lengths of indexed docs. Lengths are read from
+ * the norms of each segment (leaf) of the index, without a merged multi-segment view. Callers that
+ * walk docids in increasing order can fetch a leaf's values once with {@link #getLeafValues} and
+ * read them with leaf-relative docids.
  */
 public class DocLengthStore {
 
   private IndexReader reader;
-  private Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private int[] docStarts;
+  private Map<String, NumericDocValues[]> values = new HashMap<String, NumericDocValues[]>();
 
   /**
    * @param reader IndexReader object created in {@link QryEval}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));
+    List<AtomicReaderContext> leaves = reader.leaves();
+    this.docStarts = new int[leaves.size() + 1];
+    for (int leaf = 0; leaf < leaves.size(); leaf++) {
+      AtomicReaderContext context = leaves.get(leaf);
+      docStarts[leaf] = context.docBase;
+      for (FieldInfo info : context.reader().getFieldInfos()) {
+        if (!info.hasNorms()) {
+          continue;
+        }
+        NumericDocValues[] fieldValues = values.get(info.name);
+        if (fieldValues == null) {
+          fieldValues = new NumericDocValues[leaves.size()];
+          values.put(info.name, fieldValues);
+        }
+        fieldValues[leaf] = context.reader().getNormValues(info.name);
+      }
     }
+    docStarts[leaves.size()] = reader.maxDoc();
   }
 
   /**
@@ -35,6 +55,75 @@ public class DocLengthStore {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    int leaf = getLeaf(docid);
+    NumericDocValues leafValues = values.get(fieldname)[leaf];
+    return (leafValues == null) ? 0 : leafValues.get(docid - docStarts[leaf]);
+  }
+
+  /**
+   * Returns the number of leaves (segments) of the index.
+   */
+  public int getLeafCount() {
+    return docStarts.length - 1;
+  }
+
+  /**
+   * Returns the first docid of a leaf. The docid base of leaf getLeafCount() is maxDoc.
+   *
+   * @param leaf The leaf index.
+   */
+  public int getDocBase(int leaf) {
+    return docStarts[leaf];
+  }
+
+  /**
+   * Returns the leaf that contains a docid.
+   *
+   * @param docid The internal docid in the lucene index.
+   */
+  public int getLeaf(int docid) {
+    int lo = 0;
+    int hi = docStarts.length - 2;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (docStarts[mid] <= docid) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the lengths of a field in one leaf, indexed by docid - getDocBase(leaf).
+   *
+   * @param fieldname Name of field to access lengths.
+   * @param leaf The leaf index.
+   * @return The leaf's lengths, or null if no document of the leaf has the field.
+   */
+  public NumericDocValues getLeafValues(String fieldname, int leaf) {
+    return values.get(fieldname)[leaf];
+  }
+
+  /**
+   * Reads the length of every field of every document once, so that the norms are in memory
+   * before the first query needs them.
+   *
+   * @return A checksum of the lengths, so the reads are not optimized away.
+   */
+  public long preload() throws IOException {
+    long sum = 0;
+    for (NumericDocValues[] fieldValues : values.values()) {
+      for (int leaf = 0; leaf < fieldValues.length; leaf++) {
+        if (fieldValues[leaf] == null) {
+          continue;
+        }
+        for (int docid = docStarts[leaf]; docid < docStarts[leaf + 1]; docid++) {
+          sum += fieldValues[leaf].get(docid - docStarts[leaf]);
+        }
+      }
+    }
+    return sum;
   }
 }
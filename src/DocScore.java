@@ -48,17 +48,21 @@ public class DocScore {
    * Get raw query results and create sorted document scores.
    * 
    * @param result Raw query results.
+   * @param context The search context, which maps internal to external ids.
    * @throws IOException
    */
-  public DocScore(QryResult result) throws IOException {
+  public DocScore(QryResult result, SearchContext context) throws IOException {
+    Metrics.Timer timer = context.getMetrics().timer("topk");
+    long startTime = timer.start();
     scores = new ArrayList<DocScoreEntry>();
     ScoreList scoreList = result.docScores;
     for (int i = 0; i < scoreList.scores.size(); i++) {
-      scores.add(new DocScoreEntry(QryEval.getExternalDocid(scoreList.getDocid(i)), scoreList
+      scores.add(new DocScoreEntry(context.getExternalDocid(scoreList.getDocid(i)), scoreList
           .getDocidScore(i)));
     }
 
     Collections.sort(scores);
+    timer.stop(startTime);
   }
 
   /**
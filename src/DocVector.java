@@ -0,0 +1,72 @@
+import java.io.IOException;
+
+/**
+ * DocVector is the Indri DocVector-style view of one field of one document. Stem 0 indicates a
+ * stopword; real stems have indexes 1 through stemsLength() - 1.
+ *
+ * @author KyleMao
+ *
+ */
+
+public interface DocVector {
+
+  /**
+   * Get the number of positions in this field (the length of the field). If positions are not
+   * stored, it returns 0.
+   *
+   * @return The number of positions in this field (the field length).
+   */
+  public int positionsLength();
+
+  /**
+   * Return the index of the stem that occurred at position i in the document. If positions are not
+   * stored, it returns -1.
+   *
+   * @param i A position in the document.
+   * @return Index of the stem.
+   */
+  public int stemAt(int i);
+
+  /**
+   * Get the frequency of the n'th stem in the current doc, or -1 if the index is invalid. The
+   * frequency for stopwords (i=0) is not stored (0 is returned).
+   *
+   * @param i Index of the stem
+   * @return The stem frequency (tf)
+   */
+  public int stemFreq(int i);
+
+  /**
+   * Get the string for the i'th stem, or null if the index is invalid.
+   *
+   * @param i Index of the stem.
+   * @return The stem string.
+   */
+  public String stemString(int i);
+
+  /**
+   * The number of unique stems in this field, plus one for the stopword entry.
+   *
+   * @return The number of unique stems in this field.
+   */
+  public int stemsLength();
+
+  /**
+   * Returns ctf of the i'th stem.
+   *
+   * @param i Index of the stem.
+   * @return ctf of the stem.
+   * @throws IOException
+   */
+  public long totalStemFreq(int i) throws IOException;
+
+  /**
+   * Returns the df of the i'th stem.
+   *
+   * @param i Index of the stem.
+   * @return df of the stem.
+   * @throws IOException
+   */
+  public int stemDf(int i) throws IOException;
+
+}
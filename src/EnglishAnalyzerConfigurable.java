@@ -13,7 +13,12 @@
  * the License.
  */
 
+import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
@@ -27,12 +32,17 @@ import org.apache.lucene.analysis.miscellaneous.SetKeywordMarkerFilter;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.standard.StandardFilter;
 import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.util.CharArraySet;
 import org.apache.lucene.analysis.util.StopwordAnalyzerBase;
 import org.apache.lucene.util.Version;
 
 /**
  * {@link Analyzer} for English.
+ * <p>
+ * {@link #analyze} runs text through a per-thread analysis chain whose components are created once
+ * and reused for every call, and memoizes the stems of recently analyzed strings. The analyzer must
+ * be configured before its first use on a thread; a configuration change rebuilds the chain.
  */
 public final class EnglishAnalyzerConfigurable extends StopwordAnalyzerBase {
 
@@ -44,6 +54,15 @@ public final class EnglishAnalyzerConfigurable extends StopwordAnalyzerBase {
   private Boolean doLowerCase = true;
   private Boolean doStopwordRemoval = true;
   private StemmerType stemmer = StemmerType.PORTER;
+  private volatile int configVersion = 0;
+  private volatile int stemCacheSize = 10000;
+
+  private final ThreadLocal<AnalysisChain> chains = new ThreadLocal<AnalysisChain>() {
+    @Override
+    protected AnalysisChain initialValue() {
+      return new AnalysisChain();
+    }
+  };
 
   /**
    * Returns an unmodifiable instance of the default stop words set.
@@ -99,6 +118,7 @@ public final class EnglishAnalyzerConfigurable extends StopwordAnalyzerBase {
    */
   public void setLowercase(Boolean onOff) {
     this.doLowerCase = onOff;
+    this.configVersion++;
   }
 
   /**
@@ -106,6 +126,7 @@ public final class EnglishAnalyzerConfigurable extends StopwordAnalyzerBase {
    */
   public void setStopwordRemoval(Boolean onOff) {
     this.doStopwordRemoval = onOff;
+    this.configVersion++;
   }
 
   /**
@@ -113,6 +134,27 @@ public final class EnglishAnalyzerConfigurable extends StopwordAnalyzerBase {
    */
   public void setStemmer(StemmerType s) {
     this.stemmer = s;
+    this.configVersion++;
+  }
+
+  /**
+   * Set the maximum number of analyzed strings whose stems are memoized on each thread.
+   */
+  public void setStemCacheSize(int size) {
+    this.stemCacheSize = size;
+    this.configVersion++;
+  }
+
+  /**
+   * Analyzes text with the reusable analysis chain of the calling thread.
+   * 
+   * @param text The text to analyze.
+   * @return The tokens after analysis. The array may be shared with other callers on the same
+   *         thread and must not be modified.
+   * @throws IOException
+   */
+  public String[] analyze(String text) throws IOException {
+    return chains.get().analyze(text);
   }
 
   /**
@@ -149,4 +191,93 @@ public final class EnglishAnalyzerConfigurable extends StopwordAnalyzerBase {
 
     return new TokenStreamComponents(source, result);
   }
+
+  /**
+   * The analysis components of one thread, with a reusable reader, the term attribute and a
+   * bounded LRU memo from text to stems.
+   */
+  private final class AnalysisChain {
+
+    private int version = -1;
+    private ReusableStringReader reader = new ReusableStringReader();
+    private TokenStreamComponents components;
+    private CharTermAttribute termAttribute;
+    private List<String> tokens = new ArrayList<String>();
+    private Map<String, String[]> memo;
+
+    private String[] analyze(String text) throws IOException {
+
+      if (version != configVersion) {
+        version = configVersion;
+        components = createComponents("body", reader);
+        termAttribute = components.getTokenStream().addAttribute(CharTermAttribute.class);
+        final int maxEntries = stemCacheSize;
+        memo = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > maxEntries;
+          }
+        };
+      }
+
+      String[] stems = memo.get(text);
+      if (stems != null) {
+        return stems;
+      }
+
+      reader.setValue(text);
+      components.getTokenizer().setReader(reader);
+      TokenStream stream = components.getTokenStream();
+      stream.reset();
+      tokens.clear();
+      while (stream.incrementToken()) {
+        tokens.add(termAttribute.toString());
+      }
+      stream.end();
+      stream.close();
+
+      stems = tokens.toArray(new String[tokens.size()]);
+      memo.put(text, stems);
+      return stems;
+    }
+  }
+
+  /**
+   * A {@link Reader} over a string that can be pointed at a new string, so that no reader is
+   * allocated per analyzed string.
+   */
+  private static final class ReusableStringReader extends Reader {
+
+    private String value = "";
+    private int pos = 0;
+
+    private void setValue(String value) {
+      this.value = value;
+      this.pos = 0;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+      if (pos >= value.length()) {
+        return -1;
+      }
+      int n = Math.min(length, value.length() - pos);
+      value.getChars(pos, pos + n, buffer, offset);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int read() {
+      return (pos < value.length()) ? value.charAt(pos++) : -1;
+    }
+
+    @Override
+    public void close() {
+      value = "";
+      pos = 0;
+    }
+  }
 }
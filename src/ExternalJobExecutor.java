@@ -0,0 +1,290 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class runs external programs, such as svm_rank_learn and svm_rank_classify, as jobs. The
+ * stdout and stderr of a job are drained by their own threads, so a child that fills one pipe
+ * while the other is being read cannot stall. A job that runs longer than its timeout is asked to
+ * stop, and killed if it is still running after a grace period. The output of a job is drained for
+ * at most a grace period after it exits, since a grandchild that inherited its pipes can keep them
+ * open for longer.
+ *
+ * Several jobs can run at once. Every job declares how many cores it uses, and jobs only start
+ * while the sum over the running jobs fits in the core budget. The exit code and wall time of every
+ * job are collected and printed.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class ExternalJobExecutor {
+
+  // How long a job that timed out, and the output of a job that exited, are waited for
+  private static long GRACE_MILLIS = 5000;
+
+  /**
+   * An external program to run.
+   */
+  public static class Job {
+
+    private String name;
+    private String[] command;
+    private int cores;
+
+    /**
+     * Create a job that uses one core.
+     *
+     * @param name The name of the job, used to label its output.
+     * @param command The program and its arguments.
+     */
+    public Job(String name, String... command) {
+      this(name, 1, command);
+    }
+
+    /**
+     * Create a job.
+     *
+     * @param name The name of the job, used to label its output.
+     * @param cores The number of cores the program uses.
+     * @param command The program and its arguments.
+     */
+    public Job(String name, int cores, String... command) {
+      this.name = name;
+      this.cores = cores;
+      this.command = command;
+    }
+  }
+
+  /**
+   * How a job ended.
+   */
+  public static class JobResult {
+
+    public String name;
+    public int exitCode;
+    public long wallNanos;
+    public boolean timedOut;
+
+    /**
+     * Whether the job exited normally with code 0.
+     *
+     * @return true if the job succeeded.
+     */
+    public boolean succeeded() {
+      return exitCode == 0 && !timedOut;
+    }
+  }
+
+  private int coreBudget;
+  private long timeoutMillis;
+  private Semaphore cores;
+  private ExecutorService executor;
+  private ScheduledExecutorService watchdog;
+
+  /**
+   * Create an executor.
+   *
+   * @param coreBudget The most cores that the running jobs may use together.
+   * @param timeoutMillis The time after which a job is killed, or 0 for no limit.
+   */
+  public ExternalJobExecutor(int coreBudget, long timeoutMillis) {
+
+    this.coreBudget = Math.max(1, coreBudget);
+    this.timeoutMillis = timeoutMillis;
+    this.cores = new Semaphore(this.coreBudget, true);
+    ThreadFactory daemons = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "external-job");
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    this.executor = Executors.newCachedThreadPool(daemons);
+    this.watchdog = Executors.newSingleThreadScheduledExecutor(daemons);
+  }
+
+  /**
+   * Create an executor from the external: parameters. By default the core budget is the number of
+   * processors and jobs have no time limit.
+   *
+   * @param params The parameters read from the .param file.
+   * @return The executor.
+   */
+  public static ExternalJobExecutor create(Map<String, String> params) {
+
+    int coreBudget = Runtime.getRuntime().availableProcessors();
+    if (params.containsKey("external:cores")) {
+      coreBudget = Integer.parseInt(params.get("external:cores"));
+    }
+    long timeoutMillis = 0;
+    if (params.containsKey("external:timeout")) {
+      timeoutMillis = (long) (Double.parseDouble(params.get("external:timeout")) * 1000);
+    }
+    return new ExternalJobExecutor(coreBudget, timeoutMillis);
+  }
+
+  /**
+   * Run one job and wait for it.
+   *
+   * @param job The job.
+   * @return How the job ended.
+   * @throws Exception
+   */
+  public JobResult run(Job job) throws Exception {
+    List<Job> jobs = new ArrayList<Job>();
+    jobs.add(job);
+    return runAll(jobs).get(0);
+  }
+
+  /**
+   * Run jobs concurrently within the core budget, and wait for all of them.
+   *
+   * @param jobs The jobs.
+   * @return How every job ended, in the order of the jobs.
+   * @throws Exception if a job cannot be started.
+   */
+  public List<JobResult> runAll(List<Job> jobs) throws Exception {
+
+    List<Future<JobResult>> futures = new ArrayList<Future<JobResult>>();
+    for (final Job job : jobs) {
+      futures.add(executor.submit(new Callable<JobResult>() {
+        @Override
+        public JobResult call() throws Exception {
+          int permits = Math.min(Math.max(1, job.cores), coreBudget);
+          cores.acquire(permits);
+          try {
+            return execute(job);
+          } finally {
+            cores.release(permits);
+          }
+        }
+      }));
+    }
+
+    List<JobResult> results = new ArrayList<JobResult>();
+    for (Future<JobResult> future : futures) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      }
+    }
+    return results;
+  }
+
+  /*
+   * Start a job, drain its output, and wait for it to exit or time out.
+   */
+  private JobResult execute(Job job) throws Exception {
+
+    final JobResult result = new JobResult();
+    result.name = job.name;
+    long startTime = System.nanoTime();
+    final Process process = new ProcessBuilder(job.command).start();
+    process.getOutputStream().close();
+
+    Future<?> stdout = executor.submit(drain(job.name, process.getInputStream()));
+    Future<?> stderr = executor.submit(drain(job.name, process.getErrorStream()));
+    ScheduledFuture<?> kill = null;
+    if (timeoutMillis > 0) {
+      kill = watchdog.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (result) {
+            result.timedOut = true;
+          }
+          process.destroy();
+          try {
+            if (!process.waitFor(GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+              process.destroyForcibly();
+            }
+          } catch (InterruptedException e) {
+            process.destroyForcibly();
+          }
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    result.exitCode = process.waitFor();
+    if (kill != null) {
+      kill.cancel(false);
+    }
+    long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRACE_MILLIS);
+    boolean drained = await(stdout, drainDeadline) & await(stderr, drainDeadline);
+    result.wallNanos = System.nanoTime() - startTime;
+
+    synchronized (result) {
+      System.out.println(String.format("External: %s %s with exit code %d in %.1f ms", job.name,
+          result.timedOut ? "timed out" : "exited", result.exitCode, result.wallNanos / 1e6));
+      if (!drained) {
+        System.out.println(String.format("External: %s left its output open; it may be cut short",
+            job.name));
+      }
+    }
+    return result;
+  }
+
+  /*
+   * Wait for a drain task until the deadline, and give up on it after that.
+   */
+  private static boolean await(Future<?> drain, long deadline) throws Exception {
+
+    try {
+      drain.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      drain.cancel(true);
+      return false;
+    }
+  }
+
+  /*
+   * A task that prints the lines of a stream, labeled with the job name, until it ends.
+   */
+  private static Runnable drain(final String name, final InputStream stream) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            System.out.println("[" + name + "] " + line);
+          }
+          reader.close();
+        } catch (IOException e) {
+          // The stream is closed when the process is killed
+        }
+      }
+    };
+  }
+
+  /**
+   * Stop the threads of the executor.
+   */
+  public void close() {
+    executor.shutdown();
+    watchdog.shutdown();
+  }
+
+}
@@ -1,17 +1,15 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.document.Document;
 
@@ -26,20 +24,32 @@ public class FeatureGenerator {
 
   private static int N_RESULT = 100;
   private static int N_FEATURE = 18;
+  private static String[] TEXT_FIELDS = {"body", "title", "url", "inlink"};
   private Map<String, String> params;
+  private SearchContext context;
   private Set<Integer> featureDisable;
   private Map<String, Double> pageRankScores;
+  private StaticFeatureStore staticFeatures;
   private RetrievalEvaluator retrievalEvaluator;
+  private TermDictionary termDictionary;
+  private ImpactIndex impactIndex;
+  private long impactBudget = Long.MAX_VALUE;
+  private Cascade cascade;
+  private FeatureProfiler profiler;
+  private Map<String, List<String>> cascadeTails =
+      new ConcurrentHashMap<String, List<String>>();
 
   /**
    * Initialize a FeatureGenerator.
    * 
    * @param params The parameters read from the .param file.
+   * @param context The search context of the index.
    * @throws IOException
    */
-  public FeatureGenerator(Map<String, String> params) throws IOException {
+  public FeatureGenerator(Map<String, String> params, SearchContext context) throws IOException {
 
     this.params = params;
+    this.context = context;
 
     // Read the disabled features
     this.featureDisable = new HashSet<Integer>();
@@ -50,9 +60,15 @@ public class FeatureGenerator {
       }
     }
 
-    // Read page rank scores
+    // Open the static feature column store if configured. It replaces the stored document loads
+    // and the page rank table.
     this.pageRankScores = new HashMap<String, Double>();
-    if (!featureDisable.contains(3)) {
+    if (this.params.containsKey("letor:staticFeatureFile")) {
+      this.staticFeatures =
+          StaticFeatureStore.open(this.params.get("letor:staticFeatureFile"), context.getReader(),
+              this.params.get("letor:pageRankFile"));
+    } else if (!featureDisable.contains(3)) {
+      // Read page rank scores
       Scanner scanner =
           new Scanner(new BufferedReader(new FileReader(this.params.get("letor:pageRankFile"))));
       while (scanner.hasNextLine()) {
@@ -75,7 +91,51 @@ public class FeatureGenerator {
         .contains(14))) {
       modelIndri = getModel("Indri");
     }
-    retrievalEvaluator = new RetrievalEvaluator(modelBM25, modelIndri);
+    // Open the term dictionary and the forward index of document vectors if configured. The
+    // forward index needs a dictionary, which defaults to a file next to it.
+    String dictionaryPath = this.params.get("letor:termDictionaryFile");
+    if (dictionaryPath == null && this.params.containsKey("letor:forwardIndexFile")) {
+      dictionaryPath = this.params.get("letor:forwardIndexFile") + ".dict";
+    }
+    boolean useImpactIndex = "impact".equalsIgnoreCase(this.params.get("letor:initialRanking"));
+    if (useImpactIndex && !this.params.containsKey("letor:impactIndexFile")) {
+      QryEval.fatalError("Error: letor:impactIndexFile is required for the impact initial ranking");
+    }
+    if (dictionaryPath == null && useImpactIndex) {
+      dictionaryPath = this.params.get("letor:impactIndexFile") + ".dict";
+    }
+    if (dictionaryPath != null) {
+      termDictionary = TermDictionary.open(dictionaryPath, context.getReader());
+    }
+    ForwardIndex forwardIndex = null;
+    if (this.params.containsKey("letor:forwardIndexFile")) {
+      forwardIndex =
+          ForwardIndex.open(this.params.get("letor:forwardIndexFile"), context.getReader(),
+              termDictionary,
+              "true".equalsIgnoreCase(this.params.get("letor:forwardIndexPositions")));
+    }
+    retrievalEvaluator = new RetrievalEvaluator(context, modelBM25, modelIndri, forwardIndex);
+
+    // Open the impact-ordered index for score-at-a-time initial ranking if requested
+    if (useImpactIndex) {
+      impactIndex =
+          ImpactIndex.open(this.params.get("letor:impactIndexFile"), context.getReader(),
+              termDictionary, getModel("BM25"));
+      if (this.params.containsKey("letor:impactBudget")) {
+        impactBudget = Long.parseLong(this.params.get("letor:impactBudget"));
+      }
+    }
+
+    // Configure the reranking cascade if requested
+    if (Cascade.isEnabled(this.params)) {
+      cascade = new Cascade(this.params);
+    }
+
+    // Profile the cost of every feature if requested
+    if (this.params.containsKey("letor:featureProfileFile")) {
+      profiler = new FeatureProfiler(N_FEATURE, this.params.get("letor:featureProfileFile"));
+      retrievalEvaluator.setProfiler(profiler);
+    }
   }
 
   /**
@@ -86,11 +146,7 @@ public class FeatureGenerator {
   public void generateTrainData() throws Exception {
 
     // Create the output file
-    File trainFeatureFile = new File(params.get("letor:trainingFeatureVectorsFile"));
-    if (!trainFeatureFile.exists()) {
-      trainFeatureFile.createNewFile();
-    }
-    BufferedWriter writer = new BufferedWriter(new FileWriter(trainFeatureFile.getAbsoluteFile()));
+    RunFileWriter writer = new RunFileWriter(params.get("letor:trainingFeatureVectorsFile"));
 
     // Read the training queries
     Scanner queryScanner =
@@ -100,11 +156,16 @@ public class FeatureGenerator {
       String qLine = queryScanner.nextLine();
       String queryId = qLine.substring(0, qLine.indexOf(':'));
       String query = qLine.substring(qLine.indexOf(':') + 1);
+      QueryTerms queryTerms = new QueryTerms(context.tokenizeQuery(query), termDictionary);
 
       // Open the relevance judgment file
       Scanner relevanceScanner =
           new Scanner(new BufferedReader(new FileReader(params.get("letor:trainingQrelsFile"))));
 
+      if (profiler != null) {
+        profiler.beginQuery("train", queryId);
+      }
+
       // Store all the external IDs, relevances, feature vectors for documents in the same query
       List<String> externalIds = new ArrayList<String>();
       List<Integer> relevances = new ArrayList<Integer>();
@@ -116,107 +177,531 @@ public class FeatureGenerator {
         if (parts[0].equals(queryId)) {
           externalIds.add(parts[2]);
           relevances.add(Integer.parseInt(parts[3]));
-          featureVectors
-              .add(calculateFeatures(query, parts[2], QryEval.getInternalDocid(parts[2])));
+          featureVectors.add(calculateFeatures(queryTerms, parts[2],
+              context.getInternalDocid(parts[2])));
         }
       }
       relevanceScanner.close();
+      if (profiler != null) {
+        profiler.endQuery();
+      }
+      context.getMetrics().counter("trainingQueries").add(1);
+      context.getMetrics().counter("featureVectors").add(featureVectors.size());
 
       normalizeFeature(featureVectors);
+      if (cascade != null) {
+        cascade.addTrainingQuery(relevances, featureVectors);
+      }
       writeFeature(writer, queryId, relevances, externalIds, featureVectors);
     }
     queryScanner.close();
     writer.close();
+
+    if (profiler != null) {
+      profiler.writeReport();
+    }
   }
 
+  /**
+   * Generates testing data for the top documents of the initial ranking of every test query and
+   * writes the feature vectors to file, in the order of the query file. The queries are either
+   * evaluated concurrently by a {@link BatchRunner}, or streamed through a staged
+   * {@link Pipeline} if pipeline:enabled is true.
+   *
+   * @throws Exception
+   */
   public void generateTestData() throws Exception {
 
-    RetrievalModel modelBM25 = getModel("BM25");
+    final RetrievalModel modelBM25 = getModel("BM25");
+    RetrievalModel model = modelBM25;
+    if ("indri".equalsIgnoreCase(params.get("letor:initialRanking"))) {
+      model = getModel("Indri");
+    } else if ("bm25f".equalsIgnoreCase(params.get("letor:initialRanking"))) {
+      model = getModel("BM25F");
+    }
+    final RetrievalModel initialModel = model;
 
     // Create the output file
-    File testFeatureFile = new File(params.get("letor:testingFeatureVectorsFile"));
-    if (!testFeatureFile.exists()) {
-      testFeatureFile.createNewFile();
-    }
-    BufferedWriter writer = new BufferedWriter(new FileWriter(testFeatureFile.getAbsoluteFile()));
+    final RunFileWriter writer =
+        new RunFileWriter(params.get("letor:testingFeatureVectorsFile"));
 
     // Read the test queries
+    List<TestQuery> queries = new ArrayList<TestQuery>();
     Scanner queryScanner =
         new Scanner(new BufferedReader(new FileReader(params.get("queryFilePath"))));
-
     while (queryScanner.hasNextLine()) {
-      // Get initial BM25 ranking
       String qLine = queryScanner.nextLine();
-      String queryId = qLine.substring(0, qLine.indexOf(':'));
-      String query = qLine.substring(qLine.indexOf(':') + 1);
-      Qryop qTree = QryEval.parseQuery(query, modelBM25);
-      QryResult result = qTree.evaluate(modelBM25);
-      DocScore docScore = new DocScore(result);
+      queries.add(new TestQuery(qLine.substring(0, qLine.indexOf(':')), qLine.substring(qLine
+          .indexOf(':') + 1)));
+    }
+    queryScanner.close();
 
-      List<String> externalIds = new ArrayList<String>();
-      // Store all the feature vectors for documents in the same query
-      List<Double[]> featureVectors = new ArrayList<Double[]>();
+    if (cascade != null) {
+      cascade.fitStageOne();
+    }
+
+    if ("true".equalsIgnoreCase(params.get("pipeline:enabled"))) {
+      runTestPipeline(queries, writer, modelBM25, initialModel);
+    } else {
+      // Evaluate the queries concurrently, and write their features in order
+      List<Callable<TestQuery>> tasks = new ArrayList<Callable<TestQuery>>();
+      List<String> queryIds = new ArrayList<String>();
+      for (final TestQuery q : queries) {
+        queryIds.add(q.queryId);
+        tasks.add(new Callable<TestQuery>() {
+          @Override
+          public TestQuery call() throws Exception {
+            rankTestQuery(q, modelBM25, initialModel);
+            calculateTestFeatures(q);
+            return q;
+          }
+        });
+      }
+      Map<String, String> batchParams = params;
+      if (profiler != null) {
+        // The JVM does not count the CPU time and allocations of virtual threads
+        batchParams = new HashMap<String, String>(params);
+        batchParams.put("batch:virtualThreads", "false");
+      }
+      BatchRunner batchRunner = BatchRunner.create(batchParams);
+      long startTime = System.nanoTime();
+      long[] nanos = batchRunner.run(tasks, new Pipeline.Stage<TestQuery>() {
+        @Override
+        public void process(TestQuery q) throws Exception {
+          writeTestFeatures(writer, q);
+        }
+      });
+      batchRunner.printReport(queryIds, nanos, System.nanoTime() - startTime);
+    }
+    writer.close();
+
+    if (cascade != null) {
+      cascade.printReport();
+    }
+    if (impactIndex != null) {
+      impactIndex.printStats();
+    }
+    if (profiler != null) {
+      profiler.writeReport();
+      profiler.printReport();
+    }
+  }
 
-      for (int i = 0; i < N_RESULT && i < docScore.scores.size(); i++) {
-        String externalId = docScore.getExternalDocid(i);
-        externalIds.add(externalId);
-        featureVectors.add(calculateFeatures(query, externalId,
-            QryEval.getInternalDocid(externalId)));
+  /*
+   * A test query on its way through ranking and feature generation.
+   */
+  private static class TestQuery {
+
+    private String queryId;
+    private String query;
+    private Qryop qTree;
+    private DocScore docScore;
+    private int[] internalIds;
+    private List<String> externalIds = new ArrayList<String>();
+    private List<Double[]> featureVectors = new ArrayList<Double[]>();
+
+    private TestQuery(String queryId, String query) {
+      this.queryId = queryId;
+      this.query = query;
+    }
+  }
+
+  /*
+   * Streams the test queries through a pipeline of stages on separate threads: prefetching the
+   * postings of a query, its initial ranking, prefetching the stored fields and term vectors of
+   * its candidates, its features, and writing. So the postings of query i + 1 are read while
+   * query i is ranked, and the candidates of query i are read while query i - 1 gets its features.
+   */
+  private void runTestPipeline(List<TestQuery> queries, final RunFileWriter writer,
+      final RetrievalModel modelBM25, final RetrievalModel initialModel) throws Exception {
+
+    // Prefetched postings are kept in the postings cache, so make sure there is one.
+    if (context.getPostingsCache() == null) {
+      long maxBytes = 64L << 20;
+      if (params.containsKey("pipeline:prefetchBytes")) {
+        maxBytes = Long.parseLong(params.get("pipeline:prefetchBytes"));
       }
+      context.setPostingsCache(new PostingsCache(context.getReader(), maxBytes));
+    }
 
-      // Add default relevance values
-      List<Integer> relevances = new ArrayList<Integer>();
-      for (int i = 0; i < externalIds.size(); i++) {
-        relevances.add(0);
+    int queueSize = 2;
+    if (params.containsKey("pipeline:queueSize")) {
+      queueSize = Integer.parseInt(params.get("pipeline:queueSize"));
+    }
+    Pipeline<TestQuery> pipeline = new Pipeline<TestQuery>(queueSize);
+    pipeline.addStage("prefetch", new Pipeline.Stage<TestQuery>() {
+      @Override
+      public void process(TestQuery q) throws Exception {
+        if (impactIndex == null) {
+          q.qTree = context.parseQuery(q.query, initialModel);
+          prefetchPostings(q.qTree);
+        }
+      }
+    });
+    pipeline.addStage("rank", new Pipeline.Stage<TestQuery>() {
+      @Override
+      public void process(TestQuery q) throws Exception {
+        rankTestQuery(q, modelBM25, initialModel);
       }
+    });
+    pipeline.addStage("fetch", new Pipeline.Stage<TestQuery>() {
+      @Override
+      public void process(TestQuery q) throws Exception {
+        prefetchCandidates(q);
+      }
+    });
+    pipeline.addStage("features", new Pipeline.Stage<TestQuery>() {
+      @Override
+      public void process(TestQuery q) throws Exception {
+        calculateTestFeatures(q);
+      }
+    });
 
-      normalizeFeature(featureVectors);
-      writeFeature(writer, queryId, relevances, externalIds, featureVectors);
+    long startTime = System.nanoTime();
+    pipeline.run(queries.iterator(), new Pipeline.Stage<TestQuery>() {
+      @Override
+      public void process(TestQuery q) throws Exception {
+        writeTestFeatures(writer, q);
+      }
+    });
+    pipeline.printReport(System.nanoTime() - startTime);
+  }
+
+  /*
+   * Reads the postings of the terms of a query tree into the postings cache.
+   */
+  private void prefetchPostings(Qryop qTree) throws IOException {
+
+    if (qTree instanceof QryopIlTerm) {
+      QryopIlTerm term = (QryopIlTerm) qTree;
+      context.getPostings(term.getTerm(), term.getField());
+    } else if (qTree != null) {
+      for (Qryop arg : qTree.args) {
+        prefetchPostings(arg);
+      }
+    }
+  }
+
+  /*
+   * Reads the stored fields and term vectors of the top documents of a query, so that feature
+   * generation finds them in the file system cache.
+   */
+  private void prefetchCandidates(TestQuery q) throws Exception {
+
+    int n = Math.min(N_RESULT, q.docScore.scores.size());
+    q.internalIds = new int[n];
+    for (int i = 0; i < n; i++) {
+      q.internalIds[i] = context.getInternalDocid(q.docScore.getExternalDocid(i));
+      if (staticFeatures == null) {
+        context.getReader().document(q.internalIds[i]);
+      }
+      for (String field : TEXT_FIELDS) {
+        context.getReader().getTermVector(q.internalIds[i], field);
+      }
+    }
+  }
+
+  /*
+   * Gets the initial ranking of a test query. It is called concurrently for different queries.
+   */
+  private void rankTestQuery(TestQuery q, RetrievalModel modelBM25, RetrievalModel initialModel)
+      throws Exception {
+
+    // Get the initial BM25 (or Indri) ranking
+    QryResult result = null;
+    if (impactIndex != null) {
+      result = impactIndex.search(context.parseQuery(q.query, modelBM25), N_RESULT, impactBudget);
+    }
+    if (result == null && context.getQueryCache() != null) {
+      result = context.getQueryCache().get(q.query, q.qTree, initialModel);
+    } else if (result == null) {
+      Qryop qTree = (q.qTree != null) ? q.qTree : context.parseQuery(q.query, initialModel);
+      result = context.evaluate(qTree, initialModel);
+    }
+    q.docScore = new DocScore(result, context);
+    context.getMetrics().counter("testQueries").add(1);
+  }
+
+  /*
+   * Computes the normalized feature vectors of the top documents of a ranked test query. It is
+   * called concurrently for different queries.
+   */
+  private void calculateTestFeatures(TestQuery q) throws Exception {
+
+    if (profiler != null) {
+      profiler.beginQuery("test", q.queryId);
+    }
+
+    // Analyze the query once for all its candidate documents
+    QueryTerms queryTerms = new QueryTerms(context.tokenizeQuery(q.query), termDictionary);
+
+    if (cascade != null) {
+      calculateCascadeFeatures(q.queryId, queryTerms, q.docScore, q.externalIds,
+          q.featureVectors);
+    } else {
+      for (int i = 0; i < N_RESULT && i < q.docScore.scores.size(); i++) {
+        String externalId = q.docScore.getExternalDocid(i);
+        int internalId =
+            (q.internalIds != null) ? q.internalIds[i] : context.getInternalDocid(externalId);
+        q.externalIds.add(externalId);
+        q.featureVectors.add(calculateFeatures(queryTerms, externalId, internalId));
+      }
+    }
+
+    if (profiler != null) {
+      profiler.endQuery();
+    }
+    context.getMetrics().counter("featureVectors").add(q.featureVectors.size());
+    normalizeFeature(q.featureVectors);
+  }
+
+  /*
+   * Writes the feature vectors of a test query with default relevance values, then drops the
+   * ranking and the features of the query, which stays referenced until the batch ends.
+   */
+  private static void writeTestFeatures(RunFileWriter writer, TestQuery q) throws IOException {
+
+    // Add default relevance values
+    List<Integer> relevances = new ArrayList<Integer>();
+    for (int i = 0; i < q.externalIds.size(); i++) {
+      relevances.add(0);
+    }
+    writeFeature(writer, q.queryId, relevances, q.externalIds, q.featureVectors);
+    q.qTree = null;
+    q.docScore = null;
+    q.internalIds = null;
+    q.externalIds.clear();
+    q.featureVectors.clear();
+  }
+
+  /**
+   * Returns the documents pruned by the cascade for a test query, in stage one order. They rank
+   * below all documents that were scored by the learner.
+   * 
+   * @param queryId The query ID.
+   * @return External IDs of the pruned documents, or an empty list.
+   */
+  public List<String> getCascadeTail(String queryId) {
+
+    List<String> tail = cascadeTails.get(queryId);
+    if (tail == null) {
+      return new ArrayList<String>();
+    }
+    return tail;
+  }
+
+  /*
+   * Computes feature vectors for the initial ranking of a test query through the cascade. Stage
+   * one computes the cheap features for every candidate; only the survivors get the term vector
+   * features in stage two.
+   */
+  private void calculateCascadeFeatures(String queryId, QueryTerms queryTerms, DocScore docScore,
+      List<String> externalIds, List<Double[]> featureVectors) throws Exception {
+
+    int nCandidates = Math.min(N_RESULT, docScore.scores.size());
+
+    // Stage one: cheap features and the initial BM25 score
+    long startTime = System.nanoTime();
+    List<Double[]> candidates = new ArrayList<Double[]>();
+    List<Double> initialScores = new ArrayList<Double>();
+    int[] internalIds = new int[nCandidates];
+    for (int i = 0; i < nCandidates; i++) {
+      String externalId = docScore.getExternalDocid(i);
+      internalIds[i] = context.getInternalDocid(externalId);
+      Double[] f = new Double[N_FEATURE];
+      calculateStaticFeatures(f, externalId, internalIds[i]);
+      candidates.add(f);
+      initialScores.add(docScore.getDocidScore(i));
+    }
+    Integer[] stageOneOrder = cascade.rankStageOne(candidates, initialScores);
+    cascade.recordStageOne(System.nanoTime() - startTime, nCandidates);
+
+    // Stage two: term vector features for the survivors only
+    startTime = System.nanoTime();
+    int nSurvivors = Math.min(cascade.getTopK(), nCandidates);
+    Set<Integer> survivors = new HashSet<Integer>();
+    for (int r = 0; r < nSurvivors; r++) {
+      int i = stageOneOrder[r];
+      survivors.add(i);
+      Double[] f = candidates.get(i);
+      calculateQueryFeatures(f, queryTerms, internalIds[i]);
+      externalIds.add(docScore.getExternalDocid(i));
+      featureVectors.add(f);
+    }
+    cascade.recordStageTwo(System.nanoTime() - startTime, nSurvivors);
+
+    List<String> tail = new ArrayList<String>();
+    for (int r = nSurvivors; r < nCandidates; r++) {
+      tail.add(docScore.getExternalDocid(stageOneOrder[r]));
+    }
+    cascadeTails.put(queryId, tail);
+
+    // Audit: compute all features for every candidate and compare with the survivors
+    if (cascade.isAudit()) {
+      List<Double[]> fullFeatures = new ArrayList<Double[]>();
+      for (int i = 0; i < nCandidates; i++) {
+        fullFeatures.add(calculateFeatures(queryTerms, docScore.getExternalDocid(i),
+            internalIds[i]));
+      }
+      normalizeFeature(fullFeatures);
+      cascade.recordRecall(fullFeatures, survivors);
     }
-    queryScanner.close();
-    writer.close();
   }
 
   /*
    * Returns a feature vector for the <q, d> pair.
    */
-  private Double[] calculateFeatures(String query, String externalId, int internalId)
+  private Double[] calculateFeatures(QueryTerms queryTerms, String externalId, int internalId)
       throws IOException {
 
     Double[] f = new Double[N_FEATURE];
 
-    Document d = QryEval.READER.document(internalId);
+    calculateStaticFeatures(f, externalId, internalId);
+    calculateQueryFeatures(f, queryTerms, internalId);
+
+    return f;
+  }
+
+  /*
+   * Fills in the query-independent features 1 to 4 of a feature vector.
+   */
+  private void calculateStaticFeatures(Double[] f, String externalId, int internalId)
+      throws IOException {
+
+    Metrics metrics = context.getMetrics();
+    Metrics.Timer timer = metrics.timer("feature.static");
+    long startTime = timer.start();
+    if (staticFeatures != null) {
+      beginFeature(1);
+      f[0] = featureDisable.contains(0) ? 0.0 : staticFeatures.getSpamScore(internalId);
+      endFeature(1);
+      beginFeature(2);
+      f[1] = featureDisable.contains(1) ? 0.0 : staticFeatures.getUrlDepth(internalId);
+      endFeature(2);
+      beginFeature(3);
+      f[2] = featureDisable.contains(2) ? 0.0 : staticFeatures.getWikiScore(internalId);
+      endFeature(3);
+      beginFeature(4);
+      f[3] = featureDisable.contains(3) ? 0.0 : staticFeatures.getPageRankScore(internalId);
+      endFeature(4);
+      timer.stop(startTime);
+      return;
+    }
+
+    // The stored document is shared by features 1 to 3
+    beginFeature(FeatureProfiler.SHARED);
+    Metrics.Timer storedFields = metrics.timer("storedFields");
+    long readTime = storedFields.start();
+    Document d = context.getReader().document(internalId);
+    storedFields.stop(readTime);
+    if (profiler != null) {
+      profiler.countIo(FeatureProfiler.STORED_FIELDS);
+    }
     String rawUrl = d.get("rawUrl");
-    String[] queryStems = QryEval.tokenizeQuery(query);
+    endFeature(FeatureProfiler.SHARED);
 
+    beginFeature(1);
     f[0] = getSpamScore(d);
+    endFeature(1);
+    beginFeature(2);
     f[1] = getUrlDepth(rawUrl);
+    endFeature(2);
+    beginFeature(3);
     f[2] = getWikiScore(rawUrl);
+    endFeature(3);
+    beginFeature(4);
     f[3] = getPageRankScore(externalId);
+    endFeature(4);
+    timer.stop(startTime);
+  }
+
+  /*
+   * Fills in the query-dependent features 5 to 18 of a feature vector.
+   */
+  private void calculateQueryFeatures(Double[] f, QueryTerms queryTerms, int internalId)
+      throws IOException {
+
+    Metrics metrics = context.getMetrics();
 
     // BM25 scores for <q, d> in 4 fields
-    f[4] = retrievalEvaluator.getFeatureBM25(queryStems, internalId, "body", featureDisable);
-    f[7] = retrievalEvaluator.getFeatureBM25(queryStems, internalId, "title", featureDisable);
-    f[10] = retrievalEvaluator.getFeatureBM25(queryStems, internalId, "url", featureDisable);
-    f[13] = retrievalEvaluator.getFeatureBM25(queryStems, internalId, "inlink", featureDisable);
+    Metrics.Timer timer = metrics.timer("feature.bm25");
+    long startTime = timer.start();
+    beginFeature(5);
+    f[4] = retrievalEvaluator.getFeatureBM25(queryTerms, internalId, "body", featureDisable);
+    endFeature(5);
+    beginFeature(8);
+    f[7] = retrievalEvaluator.getFeatureBM25(queryTerms, internalId, "title", featureDisable);
+    endFeature(8);
+    beginFeature(11);
+    f[10] = retrievalEvaluator.getFeatureBM25(queryTerms, internalId, "url", featureDisable);
+    endFeature(11);
+    beginFeature(14);
+    f[13] = retrievalEvaluator.getFeatureBM25(queryTerms, internalId, "inlink", featureDisable);
+    endFeature(14);
+    timer.stop(startTime);
 
     // Indri scores for <q, d> in 4 fields
-    f[5] = retrievalEvaluator.getFeatureIndri(queryStems, internalId, "body", featureDisable);
-    f[8] = retrievalEvaluator.getFeatureIndri(queryStems, internalId, "title", featureDisable);
-    f[11] = retrievalEvaluator.getFeatureIndri(queryStems, internalId, "url", featureDisable);
-    f[14] = retrievalEvaluator.getFeatureIndri(queryStems, internalId, "inlink", featureDisable);
+    timer = metrics.timer("feature.indri");
+    startTime = timer.start();
+    beginFeature(6);
+    f[5] = retrievalEvaluator.getFeatureIndri(queryTerms, internalId, "body", featureDisable);
+    endFeature(6);
+    beginFeature(9);
+    f[8] = retrievalEvaluator.getFeatureIndri(queryTerms, internalId, "title", featureDisable);
+    endFeature(9);
+    beginFeature(12);
+    f[11] = retrievalEvaluator.getFeatureIndri(queryTerms, internalId, "url", featureDisable);
+    endFeature(12);
+    beginFeature(15);
+    f[14] = retrievalEvaluator.getFeatureIndri(queryTerms, internalId, "inlink", featureDisable);
+    endFeature(15);
+    timer.stop(startTime);
 
     // Term overlap scores for <q, d> in 4 fields
-    f[6] = getTermOverlapScore(queryStems, internalId, "body");
-    f[9] = getTermOverlapScore(queryStems, internalId, "title");
-    f[12] = getTermOverlapScore(queryStems, internalId, "url");
-    f[15] = getTermOverlapScore(queryStems, internalId, "inlink");
+    timer = metrics.timer("feature.overlap");
+    startTime = timer.start();
+    beginFeature(7);
+    f[6] = getTermOverlapScore(queryTerms, internalId, "body");
+    endFeature(7);
+    beginFeature(10);
+    f[9] = getTermOverlapScore(queryTerms, internalId, "title");
+    endFeature(10);
+    beginFeature(13);
+    f[12] = getTermOverlapScore(queryTerms, internalId, "url");
+    endFeature(13);
+    beginFeature(16);
+    f[15] = getTermOverlapScore(queryTerms, internalId, "inlink");
+    endFeature(16);
+    timer.stop(startTime);
 
     // lnc.ltc scores for <q, d> in 2 fields
-    f[16] = retrievalEvaluator.getFeatureLncltc(queryStems, internalId, "body", featureDisable);
-    f[17] = retrievalEvaluator.getFeatureLncltc(queryStems, internalId, "title", featureDisable);
+    timer = metrics.timer("feature.lncltc");
+    startTime = timer.start();
+    beginFeature(17);
+    f[16] = retrievalEvaluator.getFeatureLncltc(queryTerms, internalId, "body", featureDisable);
+    endFeature(17);
+    beginFeature(18);
+    f[17] = retrievalEvaluator.getFeatureLncltc(queryTerms, internalId, "title", featureDisable);
+    endFeature(18);
+    timer.stop(startTime);
+  }
 
-    return f;
+  /*
+   * Marks the start of the computation of a feature, numbered from 1, for the profiler.
+   */
+  private void beginFeature(int feature) {
+    if (profiler != null) {
+      profiler.begin(feature);
+    }
+  }
+
+  /*
+   * Marks the end of the computation of a feature, numbered from 1, for the profiler.
+   */
+  private void endFeature(int feature) {
+    if (profiler != null) {
+      profiler.end(feature);
+    }
   }
 
   /*
@@ -272,7 +757,7 @@ public class FeatureGenerator {
   /*
    * Returns the term overlap score for <q, d> of a specified field.
    */
-  private double getTermOverlapScore(String[] queryStems, int internalId, String fieldName)
+  private double getTermOverlapScore(QueryTerms queryTerms, int internalId, String fieldName)
       throws IOException {
 
     // Return 0.0 when this score is not needed
@@ -290,20 +775,17 @@ public class FeatureGenerator {
     }
 
     double score = 0.0;
-    TermVector termVector = null;
-    try {
-      termVector = new TermVector(internalId, fieldName);
-    } catch (Exception e) {
+    DocVector termVector = retrievalEvaluator.getDocVector(internalId, fieldName);
+    if (termVector == null) {
       return Double.NaN;
     }
     for (int i = 1; i < termVector.stemsLength(); i++) {
-      String stem = termVector.stemString(i);
-      if (Arrays.asList(queryStems).contains(stem)) {
+      if (queryTerms.contains(termVector, fieldName, i)) {
         score += 1.0;
       }
     }
     // Change to percentage
-    score /= (double) queryStems.length;
+    score /= (double) queryTerms.size();
 
     return score;
   }
@@ -324,6 +806,19 @@ public class FeatureGenerator {
       model = new RetrievalModelIndri();
       model.setParameter("mu", Integer.parseInt(params.get("Indri:mu")));
       model.setParameter("lambda", Double.parseDouble(params.get("Indri:lambda")));
+    } else if (modelName.equals("BM25F")) {
+      // BM25F:fields lists the fields; BM25F:weight:field and BM25F:b:field are optional.
+      model = new RetrievalModelBM25F();
+      model.setParameter("k_1", Double.parseDouble(params.get("BM25F:k_1")));
+      model.setParameter("k_3", Double.parseDouble(params.get("BM25F:k_3")));
+      for (String field : params.get("BM25F:fields").split(",")) {
+        field = field.trim();
+        String weight = params.get("BM25F:weight:" + field);
+        model.setParameter("weight:" + field, (weight == null) ? 1.0 : Double.parseDouble(weight));
+        if (params.containsKey("BM25F:b:" + field)) {
+          model.setParameter("b:" + field, Double.parseDouble(params.get("BM25F:b:" + field)));
+        }
+      }
     }
 
     return model;
@@ -332,21 +827,15 @@ public class FeatureGenerator {
   /*
    * Write the feature vectors for SVM-rank.
    */
-  private static void writeFeature(BufferedWriter writer, String qId, List<Integer> rels,
+  private static void writeFeature(RunFileWriter writer, String qId, List<Integer> rels,
       List<String> externalIds, List<Double[]> vectors) throws IOException {
 
     for (int i = 0; i < rels.size(); i++) {
-      String line = String.format("%d qid:%s", rels.get(i) + 3, qId);
-      Double[] featureVector = vectors.get(i);
-      for (int j = 0; j < featureVector.length; j++) {
-        line += (" " + (j + 1) + ":" + featureVector[j]);
-      }
-      line += (" # " + externalIds.get(i));
-      writer.write(line + '\n');
+      writer.writeFeatureVector(rels.get(i) + 3, qId, vectors.get(i), externalIds.get(i));
     }
   }
 
-  private static void normalizeFeature(List<Double[]> featureValues) {
+  static void normalizeFeature(List<Double[]> featureValues) {
 
     Double[] minValues = new Double[N_FEATURE];
     Double[] maxValues = new Double[N_FEATURE];
@@ -0,0 +1,293 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class attributes the cost of feature generation to each feature, per query, so features
+ * can be chosen by what they cost as well as by what they contribute. The computation of every
+ * feature of every document is bracketed by {@link #begin(int)} and {@link #end(int)}, which charge
+ * the thread CPU time, the bytes allocated, the elapsed time and the I/O made in between to the
+ * feature. The I/O is counted where it happens: term vector decodes, term statistics lookups (df
+ * and ctf) and stored document loads.
+ *
+ * Costs are kept per thread, so queries can be profiled concurrently as long as each query's
+ * features are computed on one platform thread. The JVM does not count the CPU time and allocations
+ * of virtual threads, and a virtual thread may move to another carrier in the middle of a feature,
+ * so queries started on a virtual thread are not profiled. Features are numbered from 1 as in
+ * letor:featureDisable; feature 0 is work shared by several features, such as the stored document
+ * load of features 1 to 3. The report is a CSV file with one row per query and feature, which can
+ * be joined on the feature number with the effectiveness of ablation runs.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class FeatureProfiler {
+
+  public static int SHARED = 0;
+
+  // The I/O that is counted
+  public static int TERM_VECTORS = 0;
+  public static int TERM_STATS = 1;
+  public static int STORED_FIELDS = 2;
+  private static int N_IO = 3;
+
+  // The costs of a feature: calls, CPU ns, elapsed ns, allocated bytes, then the I/O counts
+  private static int CALLS = 0;
+  private static int CPU = 1;
+  private static int WALL = 2;
+  private static int ALLOCATED = 3;
+  private static int IO = 4;
+  private static int N_COSTS = IO + N_IO;
+
+  private static Method IS_VIRTUAL;
+
+  static {
+    try {
+      IS_VIRTUAL = Thread.class.getMethod("isVirtual");
+    } catch (Exception e) {
+      IS_VIRTUAL = null;
+    }
+  }
+
+  /*
+   * The costs of one query, and the state of the feature being computed on this thread.
+   */
+  private static class Probe {
+
+    private String set;
+    private String queryId;
+    private long[][] costs;
+    private long[] io = new long[N_IO];
+    private long cpuStart;
+    private long wallStart;
+    private long allocatedStart;
+    private long[] ioStart = new long[N_IO];
+  }
+
+  private int nFeatures;
+  private String reportPath;
+  private ThreadMXBean threads;
+  private com.sun.management.ThreadMXBean allocations;
+  private ThreadLocal<Probe> probes = new ThreadLocal<Probe>();
+  private List<Probe> finished = new ArrayList<Probe>();
+  private boolean warnedVirtual = false;
+
+  /**
+   * Create a profiler.
+   *
+   * @param nFeatures The number of features.
+   * @param reportPath The CSV file that the report is written to.
+   */
+  public FeatureProfiler(int nFeatures, String reportPath) {
+
+    this.nFeatures = nFeatures;
+    this.reportPath = reportPath;
+    this.threads = ManagementFactory.getThreadMXBean();
+    if (threads.isThreadCpuTimeSupported()) {
+      threads.setThreadCpuTimeEnabled(true);
+    } else {
+      System.err.println("Warning: thread CPU time is not supported; profiling elapsed time only");
+    }
+    if (threads instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+      allocations = (com.sun.management.ThreadMXBean) threads;
+      allocations.setThreadAllocatedMemoryEnabled(true);
+    } else {
+      System.err.println("Warning: allocation accounting is not supported; not profiling it");
+    }
+  }
+
+  /**
+   * Start profiling a query on the calling thread. The query is not profiled if the thread is
+   * virtual.
+   *
+   * @param set The query set, e.g. "train" or "test".
+   * @param queryId The query ID.
+   */
+  public void beginQuery(String set, String queryId) {
+
+    if (isVirtualThread()) {
+      synchronized (this) {
+        if (!warnedVirtual) {
+          System.err.println("Warning: queries on virtual threads are not profiled; "
+              + "set batch:virtualThreads=false");
+          warnedVirtual = true;
+        }
+      }
+      return;
+    }
+    Probe probe = new Probe();
+    probe.set = set;
+    probe.queryId = queryId;
+    probe.costs = new long[nFeatures + 1][N_COSTS];
+    probes.set(probe);
+  }
+
+  /**
+   * Finish profiling the query of the calling thread.
+   */
+  public void endQuery() {
+
+    Probe probe = probes.get();
+    if (probe == null) {
+      return;
+    }
+    probes.remove();
+    synchronized (finished) {
+      finished.add(probe);
+    }
+  }
+
+  /**
+   * Start computing a feature on the calling thread.
+   *
+   * @param feature The feature number, from 1, or {@link #SHARED}.
+   */
+  public void begin(int feature) {
+
+    Probe probe = probes.get();
+    if (probe == null) {
+      return;
+    }
+    System.arraycopy(probe.io, 0, probe.ioStart, 0, N_IO);
+    probe.allocatedStart = allocatedBytes();
+    probe.cpuStart = cpuTime();
+    probe.wallStart = System.nanoTime();
+  }
+
+  /**
+   * Finish computing a feature on the calling thread, and charge it with the costs since
+   * {@link #begin(int)}.
+   *
+   * @param feature The feature number, from 1, or {@link #SHARED}.
+   */
+  public void end(int feature) {
+
+    long wallEnd = System.nanoTime();
+    long cpuEnd = cpuTime();
+    long allocatedEnd = allocatedBytes();
+    Probe probe = probes.get();
+    if (probe == null) {
+      return;
+    }
+    long[] costs = probe.costs[feature];
+    costs[CALLS]++;
+    costs[CPU] += cpuEnd - probe.cpuStart;
+    costs[WALL] += wallEnd - probe.wallStart;
+    costs[ALLOCATED] += allocatedEnd - probe.allocatedStart;
+    for (int i = 0; i < N_IO; i++) {
+      costs[IO + i] += probe.io[i] - probe.ioStart[i];
+    }
+  }
+
+  /**
+   * Count an I/O operation of the calling thread.
+   *
+   * @param kind {@link #TERM_VECTORS}, {@link #TERM_STATS} or {@link #STORED_FIELDS}.
+   */
+  public void countIo(int kind) {
+
+    Probe probe = probes.get();
+    if (probe != null) {
+      probe.io[kind]++;
+    }
+  }
+
+  /*
+   * Whether the calling thread is a virtual thread (Java 21 and later).
+   */
+  private static boolean isVirtualThread() {
+
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    try {
+      return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  private long cpuTime() {
+    return threads.isThreadCpuTimeEnabled() ? threads.getCurrentThreadCpuTime() : 0;
+  }
+
+  private long allocatedBytes() {
+    return (allocations == null) ? 0 : allocations.getThreadAllocatedBytes(Thread.currentThread()
+        .getId());
+  }
+
+  /**
+   * Write the cost of every feature of every profiled query to the report file.
+   *
+   * @throws IOException
+   */
+  public void writeReport() throws IOException {
+
+    BufferedWriter writer = new BufferedWriter(new FileWriter(reportPath));
+    writer.write("set,query,feature,calls,cpuNanos,wallNanos,allocatedBytes,termVectors,"
+        + "termStats,storedFields");
+    writer.newLine();
+    synchronized (finished) {
+      for (Probe probe : finished) {
+        for (int f = 0; f <= nFeatures; f++) {
+          long[] costs = probe.costs[f];
+          if (costs[CALLS] == 0) {
+            continue;
+          }
+          StringBuilder sb = new StringBuilder();
+          sb.append(probe.set).append(',').append(probe.queryId).append(',').append(f);
+          for (long cost : costs) {
+            sb.append(',').append(cost);
+          }
+          writer.write(sb.toString());
+          writer.newLine();
+        }
+      }
+    }
+    writer.close();
+  }
+
+  /**
+   * Print the mean cost per call of every feature over the profiled queries.
+   */
+  public void printReport() {
+
+    long[][] totals = new long[nFeatures + 1][N_COSTS];
+    int nQueries;
+    synchronized (finished) {
+      nQueries = finished.size();
+      for (Probe probe : finished) {
+        for (int f = 0; f <= nFeatures; f++) {
+          for (int c = 0; c < N_COSTS; c++) {
+            totals[f][c] += probe.costs[f][c];
+          }
+        }
+      }
+    }
+
+    System.out.println(String.format("Feature profile: %d queries, mean cost per document",
+        nQueries));
+    System.out.println(String.format("Feature profile: %7s %9s %10s %10s %10s %8s %8s %8s",
+        "feature", "calls", "cpu us", "wall us", "bytes", "vectors", "stats", "loads"));
+    for (int f = 0; f <= nFeatures; f++) {
+      long[] t = totals[f];
+      if (t[CALLS] == 0) {
+        continue;
+      }
+      double n = t[CALLS];
+      System.out.println(String.format(
+          "Feature profile: %7s %9d %10.2f %10.2f %10.0f %8.2f %8.2f %8.2f",
+          (f == SHARED) ? "shared" : Integer.toString(f), t[CALLS], t[CPU] / 1e3 / n,
+          t[WALL] / 1e3 / n, t[ALLOCATED] / n, t[IO + TERM_VECTORS] / n, t[IO + TERM_STATS] / n,
+          t[IO + STORED_FIELDS] / n));
+    }
+  }
+
+}
@@ -0,0 +1,457 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * This class is a compact forward index of per-field term vectors. It is built once from the
+ * Lucene term vectors and memory-mapped afterwards. For every (document, field) it stores the
+ * sorted {@link TermDictionary} ids of the document's stems and their frequencies, and optionally
+ * the stem index at every position. Term statistics come from the dictionary, so the vectors never
+ * have to go back to Lucene.
+ *
+ * The file is laid out as a header, then for each field its document vectors and document offset
+ * table, then a field table, and finally the offset of the field table.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class ForwardIndex {
+
+  private static int MAGIC = 0x46575831; // "FWX1"
+  private static int VERSION = 2;
+  private static int CHUNK_BITS = 30;
+  private static long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+  private MappedByteBuffer[] chunks;
+  private TermDictionary dictionary;
+  private int maxDoc;
+  private long indexVersion;
+  private boolean hasPositions;
+  private int numTerms;
+  private Map<String, Field> fields = new HashMap<String, Field>();
+
+  private ThreadLocal<Vector> vectors = new ThreadLocal<Vector>() {
+    @Override
+    protected Vector initialValue() {
+      return new Vector();
+    }
+  };
+
+  /**
+   * Open a forward index for an index, building it first if the file does not exist or was built
+   * for a different version of the index.
+   *
+   * @param path The forward index file.
+   * @param reader The index reader.
+   * @param dictionary The term dictionary of the index.
+   * @param positions Whether positions should be stored when building.
+   * @return The forward index.
+   * @throws IOException
+   */
+  public static ForwardIndex open(String path, IndexReader reader, TermDictionary dictionary,
+      boolean positions) throws IOException {
+
+    File file = new File(path);
+    if (file.exists()) {
+      ForwardIndex index = new ForwardIndex(file, dictionary);
+      if (index.maxDoc == reader.maxDoc()
+          && index.indexVersion == SearchContext.getIndexVersion(reader)
+          && index.numTerms == dictionary.numTerms() && (index.hasPositions || !positions)) {
+        return index;
+      }
+    }
+
+    build(reader, dictionary, file, positions);
+    return new ForwardIndex(file, dictionary);
+  }
+
+  /**
+   * Map an existing forward index file.
+   *
+   * @param file The forward index file.
+   * @param dictionary The term dictionary the forward index was built with.
+   * @throws IOException
+   */
+  public ForwardIndex(File file, TermDictionary dictionary) throws IOException {
+
+    this.dictionary = dictionary;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      int numChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+      chunks = new MappedByteBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        long start = (long) i << CHUNK_BITS;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(size - start, CHUNK_MASK + 1));
+      }
+
+      if (getInt(0) != MAGIC || getInt(4) != VERSION) {
+        throw new IOException("Not a forward index: " + file);
+      }
+      maxDoc = getInt(8);
+      indexVersion = getLong(12);
+      hasPositions = getInt(20) != 0;
+      numTerms = getInt(24);
+
+      // Read the field table
+      raf.seek(getLong(size - 8));
+      int numFields = raf.readInt();
+      for (int i = 0; i < numFields; i++) {
+        Field field = new Field();
+        field.name = raf.readUTF();
+        field.docOffsetsPos = raf.readLong();
+        fields.put(field.name, field);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Checks whether positions are stored.
+   *
+   * @return true if positions are stored.
+   */
+  public boolean hasPositions() {
+    return hasPositions;
+  }
+
+  /**
+   * Get the vector of a field in a document. The returned object belongs to the calling thread and
+   * is reused by the next call on the same thread, so no allocation is done per call.
+   *
+   * @param docid The internal document id.
+   * @param fieldName The field name.
+   * @return The vector, or null if the document has no vector for the field.
+   */
+  public Vector getVector(int docid, String fieldName) {
+
+    Field field = fields.get(fieldName);
+    if (field == null || docid < 0 || docid >= maxDoc) {
+      return null;
+    }
+    Vector vector = vectors.get();
+    if (!vector.reset(field, docid)) {
+      return null;
+    }
+    return vector;
+  }
+
+  /*
+   * Per-field section offsets.
+   */
+  private static class Field {
+    private String name;
+    private long docOffsetsPos;
+  }
+
+  /**
+   * A reusable view of one (document, field) entry of the forward index.
+   */
+  public class Vector implements DocVector {
+
+    private int length;
+    private long idsPos;
+    private long tfsPos;
+    private int positionsLength;
+    private long positionsPos;
+
+    private boolean reset(Field field, int docid) {
+
+      long start = getLong(field.docOffsetsPos + 8L * docid);
+      long end = getLong(field.docOffsetsPos + 8L * (docid + 1));
+      if (start == end) {
+        return false;
+      }
+
+      this.length = getInt(start);
+      this.idsPos = start + 4;
+      this.tfsPos = idsPos + 4L * length;
+      if (hasPositions) {
+        this.positionsLength = getInt(tfsPos + 4L * length);
+        this.positionsPos = tfsPos + 4L * length + 4;
+      } else {
+        this.positionsLength = 0;
+      }
+      return true;
+    }
+
+    /**
+     * Get the term id of the i'th stem. Term ids increase with i.
+     *
+     * @param i Index of the stem.
+     * @return The term id, or -1 for the stopword entry or an invalid index.
+     */
+    public int stemId(int i) {
+      if (i < 1 || i > length)
+        return -1;
+      return getInt(idsPos + 4L * (i - 1));
+    }
+
+    @Override
+    public int positionsLength() {
+      return positionsLength;
+    }
+
+    @Override
+    public int stemAt(int i) {
+      if (i < positionsLength)
+        return getInt(positionsPos + 4L * i);
+      else
+        return -1;
+    }
+
+    @Override
+    public int stemFreq(int i) {
+      if (i == 0)
+        return 0;
+      if (i <= length)
+        return getInt(tfsPos + 4L * (i - 1));
+      else
+        return -1;
+    }
+
+    @Override
+    public String stemString(int i) {
+      if (i < 1 || i > length)
+        return null;
+      return dictionary.getStem(stemId(i));
+    }
+
+    @Override
+    public int stemsLength() {
+      return length + 1;
+    }
+
+    @Override
+    public long totalStemFreq(int i) {
+      return dictionary.getCtf(stemId(i));
+    }
+
+    @Override
+    public int stemDf(int i) {
+      return dictionary.getDf(stemId(i));
+    }
+  }
+
+  /*
+   * Read an int. Sections are written with 4-byte alignment, so an int never spans two chunks.
+   */
+  private int getInt(long pos) {
+    return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+  }
+
+  /*
+   * Read a long as two ints, since longs are only 4-byte aligned.
+   */
+  private long getLong(long pos) {
+    return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+  }
+
+  /**
+   * Build a forward index file from the Lucene term vectors of every field that stores them.
+   *
+   * @param reader The index reader.
+   * @param dictionary The term dictionary of the index.
+   * @param file The output file.
+   * @param positions Whether positions should be stored.
+   * @throws IOException
+   */
+  public static void build(IndexReader reader, TermDictionary dictionary, File file,
+      boolean positions) throws IOException {
+
+    Output out = new Output(file);
+    int maxDoc = reader.maxDoc();
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(maxDoc);
+    out.writeLong(SearchContext.getIndexVersion(reader));
+    out.writeInt(positions ? 1 : 0);
+    out.writeInt(dictionary.numTerms());
+
+    List<Field> fieldList = new ArrayList<Field>();
+    for (String fieldName : MultiFields.getIndexedFields(reader)) {
+      FieldInfo info = MultiFields.getMergedFieldInfos(reader).fieldInfo(fieldName);
+      int fieldBase = dictionary.getFieldBase(fieldName);
+      if (info == null || !info.hasVectors() || fieldBase < 0) {
+        continue;
+      }
+
+      Field field = new Field();
+      field.name = fieldName;
+
+      // Document vectors
+      long[] docOffsets = new long[maxDoc + 1];
+      for (int docid = 0; docid < maxDoc; docid++) {
+        docOffsets[docid] = out.position();
+        Terms vector = reader.getTermVector(docid, fieldName);
+        if (vector != null) {
+          writeVector(out, vector, dictionary, fieldName, positions);
+        }
+      }
+      docOffsets[maxDoc] = out.position();
+
+      field.docOffsetsPos = out.position();
+      for (long offset : docOffsets) {
+        out.writeLong(offset);
+      }
+      fieldList.add(field);
+    }
+
+    long fieldTablePos = out.position();
+    out.writeInt(fieldList.size());
+    for (Field field : fieldList) {
+      out.writeUTF(field.name);
+      out.writeLong(field.docOffsetsPos);
+    }
+    out.align();
+    out.writeLong(fieldTablePos);
+    out.close();
+  }
+
+  /*
+   * Write one document vector: length, term ids, tfs and optionally the stem index at each
+   * position.
+   */
+  private static void writeVector(Output out, Terms vector, TermDictionary dictionary,
+      String fieldName, boolean positions) throws IOException {
+
+    int length = (int) vector.size();
+    int[] ids = new int[length];
+    int[] tfs = new int[length];
+    int[][] stemPositions = positions ? new int[length][] : null;
+    int positionsLength = 0;
+
+    TermsEnum termsEnum = vector.iterator(null);
+    DocsAndPositionsEnum positionsEnum = null;
+    BytesRef term;
+    for (int i = 0; (term = termsEnum.next()) != null; i++) {
+      ids[i] = dictionary.getId(fieldName, term.utf8ToString());
+      tfs[i] = (int) termsEnum.totalTermFreq();
+      if (positions) {
+        positionsEnum = termsEnum.docsAndPositions(null, positionsEnum);
+        positionsEnum.nextDoc();
+        stemPositions[i] = new int[positionsEnum.freq()];
+        for (int j = 0; j < stemPositions[i].length; j++) {
+          stemPositions[i][j] = positionsEnum.nextPosition();
+          positionsLength = Math.max(positionsLength, stemPositions[i][j] + 1);
+        }
+      }
+    }
+
+    out.writeInt(length);
+    for (int i = 0; i < length; i++) {
+      out.writeInt(ids[i]);
+    }
+    for (int i = 0; i < length; i++) {
+      out.writeInt(tfs[i]);
+    }
+    if (positions) {
+      int[] stemAt = new int[positionsLength];
+      for (int i = 0; i < length; i++) {
+        for (int position : stemPositions[i]) {
+          stemAt[position] = i + 1;
+        }
+      }
+      out.writeInt(positionsLength);
+      for (int stem : stemAt) {
+        out.writeInt(stem);
+      }
+    }
+  }
+
+  /*
+   * A DataOutputStream that keeps a 64-bit position.
+   */
+  private static class Output {
+
+    private DataOutputStream out;
+    private long position = 0;
+
+    private Output(File file) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    private long position() {
+      return position;
+    }
+
+    private void writeInt(int v) throws IOException {
+      out.writeInt(v);
+      position += 4;
+    }
+
+    private void writeLong(long v) throws IOException {
+      out.writeLong(v);
+      position += 8;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+      out.write(bytes);
+      position += bytes.length;
+    }
+
+    private void writeUTF(String s) throws IOException {
+      int before = out.size();
+      out.writeUTF(s);
+      position += out.size() - before;
+    }
+
+    private void align() throws IOException {
+      while (position % 4 != 0) {
+        out.write(0);
+        position++;
+      }
+    }
+
+    private void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Build a forward index offline.
+   *
+   * @param args indexPath dictionaryFile outputFile [positions]
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length < 3) {
+      QryEval.fatalError(
+          "Usage:  java ForwardIndex indexPath dictionaryFile outputFile [positions]");
+    }
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+    TermDictionary dictionary = TermDictionary.open(args[1], reader);
+    boolean positions = args.length > 3 && args[3].equals("positions");
+    long startTime = System.currentTimeMillis();
+    build(reader, dictionary, new File(args[2]), positions);
+    System.out.println("Built forward index for " + reader.maxDoc() + " documents in "
+        + (System.currentTimeMillis() - startTime) + " ms");
+    reader.close();
+  }
+
+}
@@ -0,0 +1,664 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * This class is an impact-ordered index for score-at-a-time evaluation of BM25 bag-of-words
+ * queries. It is built once from the index with fixed b and k_1, and memory-mapped afterwards. The
+ * BM25 weight of every posting is quantized to an 8-bit impact, and the postings of a term are
+ * grouped into segments of equal impact, highest impact first, with docids ascending within a
+ * segment. Postings with a zero weight are dropped.
+ *
+ * A query is evaluated by processing the segments of all its terms in decreasing order of impact
+ * and adding the impacts into a dense accumulator array. Evaluation stops as soon as the set of top
+ * k documents can no longer change, or when a postings budget is used up. The scores of the top k
+ * documents are then finished by looking them up in the segments that were not scored, so the
+ * documents are returned with their full (quantized) score, and in the order of the exhaustive
+ * evaluation; after a budget stop the set itself may still differ. Accumulators hold three ints per
+ * document, so at most one per processor is kept, and searches wait for one when all are in use. A
+ * term repeated in the query is evaluated once, with the
+ * BM25 user weight (k_3 + 1) qtf / (k_3 + qtf) of its query term frequency, as in the exhaustive
+ * evaluation.
+ *
+ * The file is laid out as a header, the segments of every term, a table of (segments offset,
+ * number of segments) indexed by {@link TermDictionary} id, and finally the offset of the table.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class ImpactIndex {
+
+  private static int MAGIC = 0x494d5031; // "IMP1"
+  private static int VERSION = 1;
+  private static int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 8 + 8 + 8;
+  private static int CHUNK_BITS = 30;
+  private static long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+  private static int MAX_IMPACT = 255;
+
+  // The fixed-point unit of the user weights of repeated terms
+  private static int WEIGHT_UNIT = 256;
+
+  private MappedByteBuffer[] chunks;
+  private TermDictionary dictionary;
+  private int maxDoc;
+  private long indexVersion;
+  private int numTerms;
+  private double k_1;
+  private double b;
+  private double scale;
+  private double k_3 = 0.0;
+  private long termTablePos;
+
+  // Statistics over all searches
+  private long queries = 0;
+  private long postingsScored = 0;
+  private long postingsTotal = 0;
+  private long earlyStops = 0;
+  private long budgetStops = 0;
+
+  private Semaphore accumulatorPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+  private List<Accumulator> idleAccumulators = new ArrayList<Accumulator>();
+
+  /**
+   * Open an impact index for an index, building it first if the file does not exist or was built
+   * for a different version of the index or different BM25 parameters.
+   *
+   * @param path The impact index file.
+   * @param reader The index reader.
+   * @param dictionary The term dictionary of the index.
+   * @param model The BM25 retrieval model.
+   * @return The impact index.
+   * @throws IOException
+   */
+  public static ImpactIndex open(String path, IndexReader reader, TermDictionary dictionary,
+      RetrievalModel model) throws IOException {
+
+    File file = new File(path);
+    if (file.exists()) {
+      ImpactIndex index = new ImpactIndex(file, dictionary);
+      if (index.maxDoc == reader.maxDoc()
+          && index.indexVersion == SearchContext.getIndexVersion(reader)
+          && index.numTerms == dictionary.numTerms() && index.k_1 == model.getParameter("k_1")
+          && index.b == model.getParameter("b")) {
+        index.k_3 = model.getParameter("k_3");
+        return index;
+      }
+    }
+
+    build(reader, dictionary, model, file);
+    ImpactIndex index = new ImpactIndex(file, dictionary);
+    index.k_3 = model.getParameter("k_3");
+    return index;
+  }
+
+  /**
+   * Map an existing impact index file. Repeated query terms are weighted with k_3 = 0 unless the
+   * index is opened with {@link #open}.
+   *
+   * @param file The impact index file.
+   * @param dictionary The term dictionary the impact index was built with.
+   * @throws IOException
+   */
+  public ImpactIndex(File file, TermDictionary dictionary) throws IOException {
+
+    this.dictionary = dictionary;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      int numChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+      chunks = new MappedByteBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        long start = (long) i << CHUNK_BITS;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(size - start, CHUNK_MASK + 1));
+      }
+
+      if (getInt(0) != MAGIC || getInt(4) != VERSION) {
+        throw new IOException("Not an impact index: " + file);
+      }
+      maxDoc = getInt(8);
+      indexVersion = getLong(12);
+      numTerms = getInt(20);
+      k_1 = Double.longBitsToDouble(getLong(24));
+      b = Double.longBitsToDouble(getLong(32));
+      scale = Double.longBitsToDouble(getLong(40));
+      termTablePos = getLong(size - 8);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Evaluate a bag-of-words query score-at-a-time.
+   *
+   * @param qTree The query tree, a #SUM of terms.
+   * @param k The number of documents to return.
+   * @param budget The maximum number of postings to score.
+   * @return The top k documents with their scores, or null if the query is not a #SUM of terms.
+   */
+  public QryResult search(Qryop qTree, int k, long budget) {
+
+    if (!(qTree instanceof QryopSlSum)) {
+      return null;
+    }
+    List<QryopIlTerm> args = ((QryopSlSum) qTree).getTerms();
+    if (args == null) {
+      return null;
+    }
+
+    // Collapse repeated terms into one term with its query term frequency
+    List<QryopIlTerm> terms = new ArrayList<QryopIlTerm>();
+    List<Double> qtfs = new ArrayList<Double>();
+    Map<String, Integer> positions = new HashMap<String, Integer>();
+    for (int i = 0; i < args.size(); i++) {
+      Qryop arg = qTree.args.get(i);
+      double qtf = (arg instanceof QryopSlScore) ? ((QryopSlScore) arg).getQtf() : 1.0;
+      String key = args.get(i).getField() + '\0' + args.get(i).getTerm();
+      Integer position = positions.get(key);
+      if (position == null) {
+        positions.put(key, terms.size());
+        terms.add(args.get(i));
+        qtfs.add(qtf);
+      } else {
+        qtfs.set(position, qtfs.get(position) + qtf);
+      }
+    }
+
+    // Impacts are multiplied by the user weight of their term, in fixed point if any weight is not
+    // 1, so the accumulator and the bounds stay integers.
+    int unit = 1;
+    for (double qtf : qtfs) {
+      if ((k_3 + 1) * qtf / (k_3 + qtf) != 1.0) {
+        unit = WEIGHT_UNIT;
+      }
+    }
+    int[] multipliers = new int[terms.size()];
+    for (int t = 0; t < terms.size(); t++) {
+      double qtf = qtfs.get(t);
+      multipliers[t] = (int) Math.round(unit * (k_3 + 1) * qtf / (k_3 + qtf));
+    }
+
+    // Find the segments of every term. A term's segments are contiguous and in decreasing order of
+    // impact.
+    int numSegments = 0;
+    long[] termStarts = new long[terms.size()];
+    int[] termSegments = new int[terms.size()];
+    for (int t = 0; t < terms.size(); t++) {
+      int id = dictionary.getId(terms.get(t).getField(), terms.get(t).getTerm());
+      if (id >= 0) {
+        termStarts[t] = getLong(termTablePos + 12L * id);
+        termSegments[t] = getInt(termTablePos + 12L * id + 8);
+        numSegments += termSegments[t];
+      }
+    }
+
+    long[] segmentPos = new long[numSegments];
+    int[] segmentImpact = new int[numSegments];
+    int[] segmentCount = new int[numSegments];
+    int[] segmentTerm = new int[numSegments];
+    int[] remaining = new int[terms.size()];
+    long[] order = new long[numSegments];
+    long total = 0;
+    int remainingSum = 0;
+    for (int t = 0, s = 0; t < terms.size(); t++) {
+      long pos = termStarts[t];
+      for (int j = 0; j < termSegments[t]; j++, s++) {
+        segmentImpact[s] = getInt(pos) * multipliers[t];
+        segmentCount[s] = getInt(pos + 4);
+        segmentPos[s] = pos + 8;
+        segmentTerm[s] = t;
+        order[s] = ((long) (Integer.MAX_VALUE - segmentImpact[s]) << 32) | s;
+        total += segmentCount[s];
+        pos += 8 + 4L * segmentCount[s];
+      }
+      if (termSegments[t] > 0) {
+        remaining[t] = getInt(termStarts[t]) * multipliers[t];
+        remainingSum += remaining[t];
+      }
+    }
+    Arrays.sort(order);
+
+    // Score-at-a-time
+    Accumulator acc = borrowAccumulator();
+    long scored = 0;
+    boolean stable = false;
+    int i = 0;
+    int partial = 0;
+    int[] top;
+    int[] finished;
+    try {
+      for (; i < numSegments && scored < budget && !stable; i++) {
+        int s = (int) order[i];
+        int impact = segmentImpact[s];
+        int count = (int) Math.min(segmentCount[s], budget - scored);
+        long pos = segmentPos[s];
+        for (int j = 0; j < count; j++) {
+          acc.add(getInt(pos + 4L * j), impact, k + 1);
+        }
+        scored += count;
+        if (count < segmentCount[s]) {
+          partial = count;
+          break;
+        }
+
+        // The term's next segment bounds what it can still add to any document.
+        int t = segmentTerm[s];
+        boolean last = (s + 1 == numSegments) || segmentTerm[s + 1] != t;
+        int next = last ? 0 : segmentImpact[s + 1];
+        remainingSum -= remaining[t] - next;
+        remaining[t] = next;
+
+        stable = remainingSum == 0 || acc.isStable(k, remainingSum);
+      }
+
+      // Finish the scores of the top documents from the postings that were not scored
+      top = acc.top(k);
+      finished = new int[top.length];
+      for (int d = 0; d < top.length; d++) {
+        finished[d] = acc.scores[top[d]];
+      }
+      for (; i < numSegments; i++, partial = 0) {
+        int s = (int) order[i];
+        for (int d = 0; d < top.length; d++) {
+          if (contains(segmentPos[s], partial, segmentCount[s], top[d])) {
+            finished[d] += segmentImpact[s];
+          }
+        }
+      }
+    } finally {
+      acc.clear();
+      returnAccumulator(acc);
+    }
+
+    QryResult result = new QryResult();
+    for (int d = 0; d < top.length; d++) {
+      result.docScores.add(top[d], finished[d] * (scale / unit));
+    }
+
+    synchronized (this) {
+      queries++;
+      postingsScored += scored;
+      postingsTotal += total;
+      if (scored < total) {
+        if (stable) {
+          earlyStops++;
+        } else {
+          budgetStops++;
+        }
+      }
+    }
+    return result;
+  }
+
+  /*
+   * Whether postings from to (exclusive) of a segment contain a document. Docids are ascending
+   * within a segment.
+   */
+  private boolean contains(long pos, int from, int to, int docid) {
+
+    int low = from;
+    int high = to - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int value = getInt(pos + 4L * mid);
+      if (value < docid) {
+        low = mid + 1;
+      } else if (value > docid) {
+        high = mid - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Take an idle accumulator, or create one if there is none, waiting while all are in use.
+   */
+  private Accumulator borrowAccumulator() {
+
+    accumulatorPermits.acquireUninterruptibly();
+    synchronized (idleAccumulators) {
+      if (!idleAccumulators.isEmpty()) {
+        return idleAccumulators.remove(idleAccumulators.size() - 1);
+      }
+    }
+    return new Accumulator(maxDoc);
+  }
+
+  private void returnAccumulator(Accumulator acc) {
+    synchronized (idleAccumulators) {
+      idleAccumulators.add(acc);
+    }
+    accumulatorPermits.release();
+  }
+
+  /**
+   * Print the search statistics.
+   */
+  public synchronized void printStats() {
+    System.out.println(String.format(
+        "Impact index: %d queries, %d of %d postings scored (%.1f%%), %d stopped early, "
+            + "%d stopped by budget", queries, postingsScored, postingsTotal,
+        (postingsTotal == 0) ? 0.0 : 100.0 * postingsScored / postingsTotal, earlyStops,
+        budgetStops));
+  }
+
+  /*
+   * A dense accumulator array with a min-heap of the best k + 1 documents. Scores only grow, so a
+   * document outside the heap never scores more than the heap minimum.
+   */
+  private static class Accumulator {
+
+    private int[] scores;
+    private int[] heapPos;
+    private int[] heap;
+    private int heapSize = 0;
+    private int[] touched;
+    private int numTouched = 0;
+
+    private Accumulator(int maxDoc) {
+      scores = new int[maxDoc];
+      heapPos = new int[maxDoc];
+      Arrays.fill(heapPos, -1);
+      touched = new int[maxDoc];
+      heap = new int[0];
+    }
+
+    private void add(int docid, int impact, int heapCapacity) {
+
+      if (heap.length < heapCapacity) {
+        heap = Arrays.copyOf(heap, heapCapacity);
+      }
+      if (scores[docid] == 0) {
+        touched[numTouched++] = docid;
+      }
+      scores[docid] += impact;
+
+      if (heapPos[docid] >= 0) {
+        siftDown(heapPos[docid]);
+      } else if (heapSize < heapCapacity) {
+        heap[heapSize] = docid;
+        heapPos[docid] = heapSize;
+        siftUp(heapSize++);
+      } else if (scores[docid] > scores[heap[0]]) {
+        heapPos[heap[0]] = -1;
+        heap[0] = docid;
+        heapPos[docid] = 0;
+        siftDown(0);
+      }
+    }
+
+    /*
+     * The top k set can no longer change if its lowest score beats the best score outside it (at
+     * most the heap minimum) plus everything that is left to add.
+     */
+    private boolean isStable(int k, int remaining) {
+
+      if (heapSize <= k) {
+        return false;
+      }
+      int lowestTop = scores[heap[1]];
+      if (heapSize > 2) {
+        lowestTop = Math.min(lowestTop, scores[heap[2]]);
+      }
+      return lowestTop > scores[heap[0]] + remaining;
+    }
+
+    /*
+     * The documents of the top k set. The heap minimum is left out when the heap holds k + 1.
+     */
+    private int[] top(int k) {
+      int from = (heapSize > k) ? 1 : 0;
+      return Arrays.copyOfRange(heap, from, heapSize);
+    }
+
+    private void clear() {
+
+      if (numTouched > scores.length / 8) {
+        Arrays.fill(scores, 0);
+      } else {
+        for (int i = 0; i < numTouched; i++) {
+          scores[touched[i]] = 0;
+        }
+      }
+      numTouched = 0;
+      for (int i = 0; i < heapSize; i++) {
+        heapPos[heap[i]] = -1;
+      }
+      heapSize = 0;
+    }
+
+    private void siftUp(int i) {
+      int docid = heap[i];
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (scores[heap[parent]] <= scores[docid]) {
+          break;
+        }
+        heap[i] = heap[parent];
+        heapPos[heap[i]] = i;
+        i = parent;
+      }
+      heap[i] = docid;
+      heapPos[docid] = i;
+    }
+
+    private void siftDown(int i) {
+      int docid = heap[i];
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= heapSize) {
+          break;
+        }
+        if (child + 1 < heapSize && scores[heap[child + 1]] < scores[heap[child]]) {
+          child++;
+        }
+        if (scores[docid] <= scores[heap[child]]) {
+          break;
+        }
+        heap[i] = heap[child];
+        heapPos[heap[i]] = i;
+        i = child;
+      }
+      heap[i] = docid;
+      heapPos[docid] = i;
+    }
+  }
+
+  /*
+   * Read an int from the mapped chunks. Ints are 4-byte aligned and never straddle chunks.
+   */
+  private int getInt(long pos) {
+    return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+  }
+
+  /*
+   * Read a long as two ints, since longs are only 4-byte aligned.
+   */
+  private long getLong(long pos) {
+    return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+  }
+
+  /**
+   * Build an impact index file for every field that has norms. Impacts are quantized on a scale
+   * set by the largest idf in the index, which bounds every BM25 weight.
+   *
+   * @param reader The index reader.
+   * @param dictionary The term dictionary of the index.
+   * @param model The BM25 retrieval model.
+   * @param file The output file.
+   * @throws IOException
+   */
+  public static void build(IndexReader reader, TermDictionary dictionary, RetrievalModel model,
+      File file) throws IOException {
+
+    double k_1 = model.getParameter("k_1");
+    double b = model.getParameter("b");
+    double N = reader.numDocs();
+    int numTerms = dictionary.numTerms();
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+    List<String> fieldNames = new ArrayList<String>();
+    double maxIdf = 0.0;
+    for (String fieldName : MultiFields.getIndexedFields(reader)) {
+      Terms fieldTerms = MultiFields.getTerms(reader, fieldName);
+      if (fieldTerms == null || MultiDocValues.getNormValues(reader, fieldName) == null
+          || dictionary.getFieldBase(fieldName) < 0) {
+        continue;
+      }
+      fieldNames.add(fieldName);
+      TermsEnum termsEnum = fieldTerms.iterator(null);
+      while (termsEnum.next() != null) {
+        maxIdf = Math.max(maxIdf, idf(N, termsEnum.docFreq()));
+      }
+    }
+    double scale = (maxIdf > 0) ? maxIdf / MAX_IMPACT : 1.0;
+
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(reader.maxDoc());
+    out.writeLong(SearchContext.getIndexVersion(reader));
+    out.writeInt(numTerms);
+    out.writeLong(Double.doubleToLongBits(k_1));
+    out.writeLong(Double.doubleToLongBits(b));
+    out.writeLong(Double.doubleToLongBits(scale));
+    long position = HEADER_SIZE;
+
+    long[] termStarts = new long[numTerms];
+    int[] termSegments = new int[numTerms];
+    int[] docids = new int[16];
+    int[] impacts = new int[16];
+    int[] sorted = new int[16];
+    int[] counts = new int[MAX_IMPACT + 2];
+    for (String fieldName : fieldNames) {
+      NumericDocValues norms = MultiDocValues.getNormValues(reader, fieldName);
+      double avglen =
+          (double) reader.getSumTotalTermFreq(fieldName) / (double) reader.getDocCount(fieldName);
+      TermsEnum termsEnum = MultiFields.getTerms(reader, fieldName).iterator(null);
+      DocsEnum docsEnum = null;
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        int id = dictionary.getId(fieldName, term.utf8ToString());
+        double idf = idf(N, termsEnum.docFreq());
+        if (id < 0 || idf <= 0) {
+          continue;
+        }
+
+        // Quantize the weight of every posting
+        int n = 0;
+        Arrays.fill(counts, 0);
+        docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_FREQS);
+        while (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          double tf = docsEnum.freq();
+          double docLen = norms.get(docsEnum.docID());
+          double weight = idf * tf / (tf + k_1 * ((1 - b) + b * docLen / avglen));
+          int impact = (int) Math.min(MAX_IMPACT, Math.max(1, Math.round(weight / scale)));
+          if (n == docids.length) {
+            docids = Arrays.copyOf(docids, 2 * n);
+            impacts = Arrays.copyOf(impacts, 2 * n);
+          }
+          docids[n] = docsEnum.docID();
+          impacts[n++] = impact;
+          counts[impact]++;
+        }
+
+        // Counting sort by decreasing impact; docids stay ascending within an impact.
+        if (sorted.length < n) {
+          sorted = new int[docids.length];
+        }
+        int[] starts = new int[MAX_IMPACT + 2];
+        for (int impact = MAX_IMPACT - 1; impact >= 0; impact--) {
+          starts[impact] = starts[impact + 1] + counts[impact + 1];
+        }
+        for (int i = 0; i < n; i++) {
+          sorted[starts[impacts[i]]++] = docids[i];
+        }
+
+        termStarts[id] = position;
+        int offset = 0;
+        for (int impact = MAX_IMPACT; impact > 0; impact--) {
+          if (counts[impact] == 0) {
+            continue;
+          }
+          out.writeInt(impact);
+          out.writeInt(counts[impact]);
+          for (int i = 0; i < counts[impact]; i++) {
+            out.writeInt(sorted[offset + i]);
+          }
+          offset += counts[impact];
+          position += 8 + 4L * counts[impact];
+          termSegments[id]++;
+        }
+      }
+    }
+
+    long termTablePos = position;
+    for (int id = 0; id < numTerms; id++) {
+      out.writeLong(termStarts[id]);
+      out.writeInt(termSegments[id]);
+    }
+    out.writeLong(termTablePos);
+    out.close();
+  }
+
+  /*
+   * The BM25 idf weight, as in QryopSlScore.
+   */
+  private static double idf(double N, double df) {
+    return Math.max(Math.log((N - df + 0.5) / (df + 0.5)), 0.0);
+  }
+
+  /**
+   * Build an impact index offline.
+   *
+   * @param args indexPath dictionaryFile outputFile k_1 b
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length < 5) {
+      QryEval.fatalError("Usage:  java ImpactIndex indexPath dictionaryFile outputFile k_1 b");
+    }
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+    TermDictionary dictionary = TermDictionary.open(args[1], reader);
+    RetrievalModel model = new RetrievalModelBM25();
+    model.setParameter("k_1", Double.parseDouble(args[3]));
+    model.setParameter("b", Double.parseDouble(args[4]));
+    long startTime = System.currentTimeMillis();
+    build(reader, dictionary, model, new File(args[2]));
+    System.out.println("Built impact index for " + reader.maxDoc() + " documents in "
+        + (System.currentTimeMillis() - startTime) + " ms");
+    reader.close();
+  }
+
+}
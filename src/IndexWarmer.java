@@ -0,0 +1,185 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.index.MultiFields;
+
+/**
+ * This class warms the index after a restart by replaying a sample of a query log. Every query is
+ * parsed and evaluated, which reads its postings (and fills the postings cache if there is one),
+ * and the stored fields and term vectors of its top documents are read, as feature generation
+ * would. The document length tables are preloaded first.
+ *
+ * The latency of every replayed query is recorded. Latency is considered stable when the median of
+ * a window of queries is within a tolerance of the median of the previous window; warming stops
+ * there unless the whole sample is requested.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class IndexWarmer {
+
+  private SearchContext context;
+  private RetrievalModel model;
+  private String queryLogPath;
+  private int sampleSize = 1000;
+  private int window = 50;
+  private double tolerance = 0.1;
+  private int topDocs = 10;
+  private boolean full = false;
+
+  /**
+   * Configure a warmer from the warmup: parameters.
+   *
+   * @param params The parameters read from the .param file.
+   * @param context The search context to warm.
+   */
+  public IndexWarmer(Map<String, String> params, SearchContext context) {
+
+    this.context = context;
+    this.queryLogPath = params.get("warmup:queryLog");
+    if (params.containsKey("warmup:sampleSize")) {
+      sampleSize = Integer.parseInt(params.get("warmup:sampleSize"));
+    }
+    if (params.containsKey("warmup:window")) {
+      window = Integer.parseInt(params.get("warmup:window"));
+    }
+    if (params.containsKey("warmup:tolerance")) {
+      tolerance = Double.parseDouble(params.get("warmup:tolerance"));
+    }
+    if (params.containsKey("warmup:topDocs")) {
+      topDocs = Integer.parseInt(params.get("warmup:topDocs"));
+    }
+    full = "true".equalsIgnoreCase(params.get("warmup:full"));
+
+    model = new RetrievalModelBM25();
+    model.setParameter("b", Double.parseDouble(params.get("BM25:b")));
+    model.setParameter("k_1", Double.parseDouble(params.get("BM25:k_1")));
+    model.setParameter("k_3", Double.parseDouble(params.get("BM25:k_3")));
+  }
+
+  /**
+   * Checks whether warmup is configured.
+   *
+   * @param params The parameters read from the .param file.
+   * @return true if a warmup query log is given.
+   */
+  public static boolean isEnabled(Map<String, String> params) {
+    return params.containsKey("warmup:queryLog");
+  }
+
+  /**
+   * Preload the document lengths, then replay the sampled queries until latency is stable, and
+   * print a report.
+   *
+   * @throws Exception
+   */
+  public void warm() throws Exception {
+
+    long startTime = System.nanoTime();
+    long checksum = context.getDocLengths().preload();
+    long preloadNanos = System.nanoTime() - startTime;
+
+    List<String> queries = sampleQueries();
+    List<String> fields = new ArrayList<String>(MultiFields.getIndexedFields(context.getReader()));
+    long[] latencies = new long[queries.size()];
+    double previousMedian = -1;
+    int stableAt = -1;
+    long stableNanos = 0;
+    int n = 0;
+
+    for (String query : queries) {
+      long queryStart = System.nanoTime();
+      Qryop qTree = context.parseQuery(query, model);
+      if (qTree != null) {
+        DocScore docScore = new DocScore(context.evaluate(qTree, model), context);
+        for (int i = 0; i < topDocs && i < docScore.scores.size(); i++) {
+          int docid = context.getInternalDocid(docScore.getExternalDocid(i));
+          for (String field : fields) {
+            if (context.getReader().getTermVector(docid, field) != null) {
+              checksum++;
+            }
+          }
+        }
+      }
+      latencies[n++] = System.nanoTime() - queryStart;
+
+      // Compare the medians of consecutive windows
+      if (n % window == 0) {
+        double median = median(latencies, n - window, n);
+        System.out.println(String.format("Warmup: queries %d-%d median latency %.3f ms", n
+            - window + 1, n, median / 1e6));
+        if (stableAt < 0 && previousMedian >= 0
+            && Math.abs(median - previousMedian) <= tolerance * previousMedian) {
+          stableAt = n;
+          stableNanos = System.nanoTime() - startTime;
+          if (!full) {
+            break;
+          }
+        }
+        previousMedian = median;
+      }
+    }
+
+    System.out.println(String.format("Warmup: preloaded document lengths in %.1f ms (%d)",
+        preloadNanos / 1e6, checksum));
+    if (stableAt >= 0) {
+      System.out.println(String.format(
+          "Warmup: latency stabilized after %d queries, %.1f ms; replayed %d queries in %.1f ms",
+          stableAt, stableNanos / 1e6, n, (System.nanoTime() - startTime) / 1e6));
+    } else {
+      System.out.println(String.format(
+          "Warmup: latency did not stabilize; replayed %d queries in %.1f ms", n,
+          (System.nanoTime() - startTime) / 1e6));
+    }
+  }
+
+  /*
+   * Reservoir-sample queries from the log. A line is either a query or queryId:query.
+   */
+  private List<String> sampleQueries() throws IOException {
+
+    List<String> sample = new ArrayList<String>();
+    Random random = new Random(0);
+    BufferedReader in = new BufferedReader(new FileReader(queryLogPath));
+    try {
+      String line;
+      int seen = 0;
+      while ((line = in.readLine()) != null) {
+        line = line.substring(line.indexOf(':') + 1).trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+        if (sample.size() < sampleSize) {
+          sample.add(line);
+        } else {
+          int slot = random.nextInt(seen + 1);
+          if (slot < sampleSize) {
+            sample.set(slot, line);
+          }
+        }
+        seen++;
+      }
+    } finally {
+      in.close();
+    }
+    return sample;
+  }
+
+  /*
+   * The median of latencies[from, to).
+   */
+  private static double median(long[] latencies, int from, int to) {
+    long[] sorted = Arrays.copyOfRange(latencies, from, to);
+    Arrays.sort(sorted);
+    int mid = sorted.length / 2;
+    return (sorted.length % 2 == 1) ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2.0;
+  }
+
+}
@@ -45,6 +45,11 @@ public class InvList {
   public String field;
   public Vector<DocPosting> postings = new Vector<DocPosting>();
 
+  // Lists read from the index keep their postings in compact form
+  // instead of in the postings vector.
+
+  public Postings compactPostings = null;
+
   /**
    * Constructor. An empty inverted list. Useful for some query operators.
    */
@@ -60,47 +65,26 @@ public class InvList {
   /**
    * Fetch an inverted list from the index.
    * 
+   * @param reader The index reader.
    * @param termString The processed (stemmed, lower-cased, etc) term string.
    * @param fieldString The field that the term occurs in.
    * @throws IOException
    */
-  public InvList(String termString, String fieldString) throws IOException {
-
-    // Store the field name. This is used by other query operators.
-
-    this.field = new String(fieldString);
-
-    // Prepare to access the index.
-
-    BytesRef termBytes = new BytesRef(termString);
-    Term term = new Term(fieldString, termBytes);
-
-    if (QryEval.READER.docFreq(term) < 1)
-      return;
-
-    // Lookup the inverted list.
-
-    DocsAndPositionsEnum iList =
-        MultiFields.getTermPositionsEnum(QryEval.READER, MultiFields.getLiveDocs(QryEval.READER),
-            fieldString, termBytes);
-
-    // Copy from Lucene inverted list format to our inverted list
-    // format. This is a little inefficient, but allows query
-    // operators such as #SYN and #NEAR/n to be insulated from the
-    // details of Lucene inverted list implementations.
-
-    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
-
-      int tf = iList.freq();
-      int[] positions = new int[tf];
-
-      for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+  public InvList(IndexReader reader, String termString, String fieldString) throws IOException {
+    this(Postings.read(reader, termString, fieldString));
+  }
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
-    }
+  /**
+   * Constructor. An inverted list backed by compact postings, e.g. from the postings cache. The
+   * postings are shared, not copied.
+   * 
+   * @param p The postings.
+   */
+  public InvList(Postings p) {
+    this.field = p.getField();
+    this.df = p.getDf();
+    this.ctf = (int) p.getCtf();
+    this.compactPostings = p;
   }
 
   /**
@@ -116,9 +100,11 @@ public class InvList {
     // A posting can only be appended if its docid is greater than
     // the last docid.
 
-    if ((this.df > 1) && (this.postings.get(this.df - 1).docid >= docid))
+    if ((this.df > 1) && (getDocid(this.df - 1) >= docid))
       return false;
 
+    expand();
+
     DocPosting p = new DocPosting(docid, positions);
 
     this.postings.add(p);
@@ -134,6 +120,8 @@ public class InvList {
    * @return The internal document id.
    */
   public int getDocid(int n) {
+    if (this.compactPostings != null)
+      return this.compactPostings.getDocid(n);
     return this.postings.get(n).docid;
   }
 
@@ -144,9 +132,42 @@ public class InvList {
    * @return The document's term frequency.
    */
   public int getTf(int n) {
+    if (this.compactPostings != null)
+      return this.compactPostings.getTf(n);
     return this.postings.get(n).tf;
   }
 
+  /**
+   * Get the j'th position in the n'th document of the inverted list.
+   * 
+   * @param n The index of the requested document.
+   * @param j The index of the position within the document.
+   * @return The position.
+   */
+  public int getPosition(int n, int j) {
+    if (this.compactPostings != null)
+      return this.compactPostings.getPosition(n, j);
+    return this.postings.get(n).positions.get(j);
+  }
+
+  /*
+   * Copy compact postings into the postings vector so that they can be modified.
+   */
+  private void expand() {
+
+    if (this.compactPostings == null)
+      return;
+
+    Postings p = this.compactPostings;
+    this.compactPostings = null;
+    for (int n = 0; n < p.getDf(); n++) {
+      int[] locations = new int[p.getTf(n)];
+      for (int j = 0; j < locations.length; j++)
+        locations[j] = p.getPosition(n, j);
+      this.postings.add(new DocPosting(p.getDocid(n), locations));
+    }
+  }
+
   /**
    * Print the inverted list. This is handy for debugging.
    */
@@ -155,11 +176,10 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + getDocid(i) + ", tf: " + getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < getTf(i); j++) {
+        System.out.print(getPosition(i, j) + " ");
       }
 
       System.out.println();
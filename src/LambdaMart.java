@@ -0,0 +1,917 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class is an in-process LambdaMART learner that can be used instead of SVM-rank. It reads the
+ * feature vector files written by {@link FeatureGenerator}, trains gradient-boosted regression
+ * trees on quantized feature histograms, and writes one score per line in the same format as
+ * svm_rank_classify. Its NDCG helpers are shared with the C selection of {@link SvmRank}.
+ *
+ * Split finding is parallelized across features. The trained ensemble is stored as flat arrays of
+ * nodes so that scoring a document is a handful of array reads per tree.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class LambdaMart {
+
+  private static int MAX_BINS = 256;
+
+  private Map<String, String> params;
+  private String modelPath;
+
+  private int numTrees;
+  private int numLeaves;
+  private double learningRate;
+  private int minLeafSupport;
+  private int numBins;
+  private int numThreads;
+
+  private Ensemble ensemble;
+
+  /**
+   * Initialize a LambdaMART learner with parameters.
+   *
+   * @param params The parameters read from the parameter file.
+   */
+  public LambdaMart(Map<String, String> params) {
+
+    this.params = params;
+    this.modelPath = this.params.get("letor:lambdaMartModelFile");
+    if (this.modelPath == null) {
+      this.modelPath = this.params.get("letor:svmRankModelFile");
+    }
+
+    this.numTrees = getIntParam("LambdaMART:numTrees", 100);
+    this.numLeaves = getIntParam("LambdaMART:numLeaves", 10);
+    this.learningRate = getDoubleParam("LambdaMART:learningRate", 0.1);
+    this.minLeafSupport = getIntParam("LambdaMART:minLeafSupport", 1);
+    this.numBins = Math.min(getIntParam("LambdaMART:numBins", MAX_BINS), MAX_BINS);
+    this.numThreads =
+        getIntParam("LambdaMART:threads", Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Train the ensemble on the training features and save it to the model file.
+   *
+   * @throws Exception
+   */
+  public void train() throws Exception {
+
+    DataSet data = DataSet.read(params.get("letor:trainingFeatureVectorsFile"));
+    if (data.size() == 0) {
+      throw new Exception("LambdaMART: no training data.");
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      Trainer trainer = new Trainer(data, pool);
+      ensemble = trainer.run();
+    } finally {
+      pool.shutdown();
+    }
+
+    ensemble.save(modelPath);
+  }
+
+  /**
+   * Score the testing features with the trained model and write one score per line.
+   *
+   * @throws Exception
+   */
+  public void predict() throws Exception {
+
+    if (ensemble == null) {
+      ensemble = Ensemble.load(modelPath);
+    }
+
+    DataSet data = DataSet.read(params.get("letor:testingFeatureVectorsFile"));
+
+    File scoreFile = new File(params.get("letor:testingDocumentScores"));
+    if (!scoreFile.exists()) {
+      scoreFile.createNewFile();
+    }
+    BufferedWriter writer = new BufferedWriter(new FileWriter(scoreFile.getAbsoluteFile()));
+    for (int i = 0; i < data.size(); i++) {
+      writer.write(Double.toString(ensemble.score(data.features, i * data.numFeatures)));
+      writer.write('\n');
+    }
+    writer.close();
+  }
+
+  /**
+   * Returns the trained (or loaded) ensemble, loading it from the model file if needed.
+   *
+   * @return The ensemble.
+   * @throws IOException
+   */
+  public Ensemble getEnsemble() throws IOException {
+
+    if (ensemble == null) {
+      ensemble = Ensemble.load(modelPath);
+    }
+    return ensemble;
+  }
+
+  /*
+   * Read an integer parameter, or return the default value if it is not specified.
+   */
+  private int getIntParam(String name, int defaultValue) {
+    return params.containsKey(name) ? Integer.parseInt(params.get(name)) : defaultValue;
+  }
+
+  /*
+   * Read a double parameter, or return the default value if it is not specified.
+   */
+  private double getDoubleParam(String name, double defaultValue) {
+    return params.containsKey(name) ? Double.parseDouble(params.get(name)) : defaultValue;
+  }
+
+  /**
+   * A trained tree ensemble. All trees share the same node arrays. Internal nodes have
+   * non-negative indexes; a negative child index ~k refers to the k'th leaf value.
+   */
+  public static class Ensemble {
+
+    private int numFeatures;
+    private int[] roots;
+    private int[] feature;
+    private float[] threshold;
+    private int[] left;
+    private int[] right;
+    private double[] leafValue;
+
+    private Ensemble(int numFeatures, int[] roots, int[] feature, float[] threshold, int[] left,
+        int[] right, double[] leafValue) {
+      this.numFeatures = numFeatures;
+      this.roots = roots;
+      this.feature = feature;
+      this.threshold = threshold;
+      this.left = left;
+      this.right = right;
+      this.leafValue = leafValue;
+    }
+
+    /**
+     * Score one feature vector stored in a row-major matrix.
+     *
+     * @param x The feature matrix.
+     * @param offset The offset of the first feature of the vector.
+     * @return The model score.
+     */
+    public double score(float[] x, int offset) {
+
+      double score = 0.0;
+      for (int t = 0; t < roots.length; t++) {
+        int node = roots[t];
+        while (node >= 0) {
+          node = (x[offset + feature[node]] <= threshold[node]) ? left[node] : right[node];
+        }
+        score += leafValue[~node];
+      }
+      return score;
+    }
+
+    /**
+     * Score one feature vector.
+     *
+     * @param x The feature vector.
+     * @return The model score.
+     */
+    public double score(double[] x) {
+
+      double score = 0.0;
+      for (int t = 0; t < roots.length; t++) {
+        int node = roots[t];
+        while (node >= 0) {
+          node = (x[feature[node]] <= threshold[node]) ? left[node] : right[node];
+        }
+        score += leafValue[~node];
+      }
+      return score;
+    }
+
+    /**
+     * The number of features the ensemble was trained on.
+     *
+     * @return The number of features.
+     */
+    public int numFeatures() {
+      return numFeatures;
+    }
+
+    /*
+     * Write the ensemble to a text file.
+     */
+    private void save(String path) throws IOException {
+
+      BufferedWriter writer = new BufferedWriter(new FileWriter(path));
+      writer.write("LambdaMART " + numFeatures + " " + roots.length + " " + feature.length + " "
+          + leafValue.length + "\n");
+      for (int t = 0; t < roots.length; t++) {
+        writer.write(roots[t] + "\n");
+      }
+      for (int n = 0; n < feature.length; n++) {
+        writer.write(feature[n] + " " + threshold[n] + " " + left[n] + " " + right[n] + "\n");
+      }
+      for (int l = 0; l < leafValue.length; l++) {
+        writer.write(leafValue[l] + "\n");
+      }
+      writer.close();
+    }
+
+    /*
+     * Read an ensemble written by save.
+     */
+    private static Ensemble load(String path) throws IOException {
+
+      BufferedReader reader = new BufferedReader(new FileReader(path));
+      String[] header = reader.readLine().split(" ");
+      if (!header[0].equals("LambdaMART")) {
+        reader.close();
+        throw new IOException("Not a LambdaMART model: " + path);
+      }
+      int numFeatures = Integer.parseInt(header[1]);
+      int[] roots = new int[Integer.parseInt(header[2])];
+      int numNodes = Integer.parseInt(header[3]);
+      int[] feature = new int[numNodes];
+      float[] threshold = new float[numNodes];
+      int[] left = new int[numNodes];
+      int[] right = new int[numNodes];
+      double[] leafValue = new double[Integer.parseInt(header[4])];
+
+      for (int t = 0; t < roots.length; t++) {
+        roots[t] = Integer.parseInt(reader.readLine().trim());
+      }
+      for (int n = 0; n < numNodes; n++) {
+        String[] parts = reader.readLine().split(" ");
+        feature[n] = Integer.parseInt(parts[0]);
+        threshold[n] = Float.parseFloat(parts[1]);
+        left[n] = Integer.parseInt(parts[2]);
+        right[n] = Integer.parseInt(parts[3]);
+      }
+      for (int l = 0; l < leafValue.length; l++) {
+        leafValue[l] = Double.parseDouble(reader.readLine().trim());
+      }
+      reader.close();
+
+      return new Ensemble(numFeatures, roots, feature, threshold, left, right, leafValue);
+    }
+  }
+
+  /*
+   * A feature file loaded into a row-major matrix. Documents of the same query are contiguous.
+   */
+  private static class DataSet {
+
+    private int numFeatures;
+    private float[] features;
+    private int[] labels;
+    private int[] queryStart;
+
+    private int size() {
+      return labels.length;
+    }
+
+    /*
+     * Read a feature file in SVM-rank format: "rel qid:q 1:v 2:v ... # externalId".
+     */
+    private static DataSet read(String path) throws IOException {
+
+      List<float[]> rows = new ArrayList<float[]>();
+      List<Integer> labelList = new ArrayList<Integer>();
+      List<Integer> starts = new ArrayList<Integer>();
+      int numFeatures = 0;
+      String lastQueryId = null;
+
+      BufferedReader reader = new BufferedReader(new FileReader(path));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int comment = line.indexOf('#');
+        String body = (comment >= 0) ? line.substring(0, comment) : line;
+        String[] parts = body.trim().split(" ");
+        if (parts.length < 2) {
+          continue;
+        }
+
+        String queryId = parts[1].substring(parts[1].indexOf(':') + 1);
+        if (!queryId.equals(lastQueryId)) {
+          starts.add(labelList.size());
+          lastQueryId = queryId;
+        }
+        labelList.add(Integer.parseInt(parts[0]));
+
+        float[] row = new float[parts.length - 2];
+        for (int i = 2; i < parts.length; i++) {
+          int colon = parts[i].indexOf(':');
+          int index = Integer.parseInt(parts[i].substring(0, colon)) - 1;
+          if (index >= row.length) {
+            row = Arrays.copyOf(row, index + 1);
+          }
+          row[index] = Float.parseFloat(parts[i].substring(colon + 1));
+        }
+        numFeatures = Math.max(numFeatures, row.length);
+        rows.add(row);
+      }
+      reader.close();
+
+      DataSet data = new DataSet();
+      data.numFeatures = numFeatures;
+      data.features = new float[rows.size() * numFeatures];
+      data.labels = new int[rows.size()];
+      for (int i = 0; i < rows.size(); i++) {
+        float[] row = rows.get(i);
+        System.arraycopy(row, 0, data.features, i * numFeatures, row.length);
+        data.labels[i] = labelList.get(i);
+      }
+      data.queryStart = new int[starts.size() + 1];
+      for (int q = 0; q < starts.size(); q++) {
+        data.queryStart[q] = starts.get(q);
+      }
+      data.queryStart[starts.size()] = rows.size();
+
+      return data;
+    }
+  }
+
+  /*
+   * The per-feature histogram of one tree node: gradient sums and sample counts per bin.
+   */
+  private static class Histogram {
+
+    private double[][] sum;
+    private int[][] count;
+
+    private Histogram(int numFeatures, int numBins) {
+      sum = new double[numFeatures][numBins];
+      count = new int[numFeatures][numBins];
+    }
+  }
+
+  /*
+   * A tree node under construction. Its samples are order[start, end).
+   */
+  private static class Node {
+
+    private int start;
+    private int end;
+    private double sumGradient;
+    private double sumWeight;
+    private Histogram histogram;
+
+    private int bestFeature = -1;
+    private int bestBin;
+    private double bestGain;
+
+    private int splitFeature = -1;
+    private float splitThreshold;
+    private Node left;
+    private Node right;
+    private double value;
+    private int index;
+
+    private int size() {
+      return end - start;
+    }
+  }
+
+  /*
+   * Boosting state for one training run.
+   */
+  private class Trainer {
+
+    private DataSet data;
+    private ExecutorService pool;
+    private int numFeatures;
+    private int n;
+
+    private byte[][] bins;
+    private float[][] thresholds;
+
+    private double[] scores;
+    private double[] lambdas;
+    private double[] weights;
+    private double[] maxDcg;
+    private int[] order;
+
+    private Trainer(DataSet data, ExecutorService pool) {
+
+      this.data = data;
+      this.pool = pool;
+      this.numFeatures = data.numFeatures;
+      this.n = data.size();
+      this.scores = new double[n];
+      this.lambdas = new double[n];
+      this.weights = new double[n];
+      this.order = new int[n];
+    }
+
+    private Ensemble run() throws Exception {
+
+      quantize();
+      computeMaxDcg();
+
+      List<Node> trees = new ArrayList<Node>();
+      for (int t = 0; t < numTrees; t++) {
+        computeLambdas();
+        Node root = fitTree();
+        trees.add(root);
+      }
+
+      return flatten(trees);
+    }
+
+    /*
+     * Map every feature value to a bin. A bin's threshold is the largest value it contains.
+     */
+    private void quantize() throws Exception {
+
+      bins = new byte[numFeatures][];
+      thresholds = new float[numFeatures][];
+
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int f = 0; f < numFeatures; f++) {
+        final int feature = f;
+        tasks.add(new Callable<Void>() {
+          public Void call() {
+            quantizeFeature(feature);
+            return null;
+          }
+        });
+      }
+      runAll(tasks);
+    }
+
+    private void quantizeFeature(int f) {
+
+      float[] values = new float[n];
+      for (int i = 0; i < n; i++) {
+        values[i] = data.features[i * numFeatures + f];
+      }
+      float[] sorted = values.clone();
+      Arrays.sort(sorted);
+
+      // Pick cut points at evenly spaced quantiles, dropping duplicates.
+      float[] cuts = new float[numBins];
+      int numCuts = 0;
+      for (int b = 0; b < numBins; b++) {
+        int pos = (int) (((long) (b + 1) * n) / numBins) - 1;
+        if (pos < 0) {
+          continue;
+        }
+        float cut = sorted[pos];
+        if (numCuts == 0 || cut > cuts[numCuts - 1]) {
+          cuts[numCuts++] = cut;
+        }
+      }
+      if (numCuts == 0 || cuts[numCuts - 1] < sorted[n - 1]) {
+        cuts[numCuts++] = sorted[n - 1];
+      }
+      thresholds[f] = Arrays.copyOf(cuts, numCuts);
+
+      byte[] featureBins = new byte[n];
+      for (int i = 0; i < n; i++) {
+        int b = Arrays.binarySearch(thresholds[f], values[i]);
+        featureBins[i] = (byte) ((b >= 0) ? b : -b - 1);
+      }
+      bins[f] = featureBins;
+    }
+
+    /*
+     * Compute the ideal DCG of every query, used to normalize the swap deltas.
+     */
+    private void computeMaxDcg() {
+
+      int numQueries = data.queryStart.length - 1;
+      maxDcg = new double[numQueries];
+      for (int q = 0; q < numQueries; q++) {
+        int start = data.queryStart[q];
+        int end = data.queryStart[q + 1];
+        maxDcg[q] = idealDcg(Arrays.copyOfRange(data.labels, start, end), end - start);
+      }
+    }
+
+    /*
+     * Compute the LambdaRank gradients and second-order weights for all documents.
+     */
+    private void computeLambdas() throws Exception {
+
+      Arrays.fill(lambdas, 0.0);
+      Arrays.fill(weights, 0.0);
+
+      int numQueries = data.queryStart.length - 1;
+      int chunk = Math.max(1, (numQueries + numThreads - 1) / numThreads);
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int q = 0; q < numQueries; q += chunk) {
+        final int from = q;
+        final int to = Math.min(numQueries, q + chunk);
+        tasks.add(new Callable<Void>() {
+          public Void call() {
+            for (int query = from; query < to; query++) {
+              computeQueryLambdas(query);
+            }
+            return null;
+          }
+        });
+      }
+      runAll(tasks);
+    }
+
+    private void computeQueryLambdas(int q) {
+
+      if (maxDcg[q] <= 0.0) {
+        return;
+      }
+      final int start = data.queryStart[q];
+      int size = data.queryStart[q + 1] - start;
+
+      // Rank the documents of the query by their current score.
+      Integer[] ranked = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        ranked[i] = start + i;
+      }
+      Arrays.sort(ranked, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Double.compare(scores[b], scores[a]);
+        }
+      });
+
+      for (int i = 0; i < size; i++) {
+        int di = ranked[i];
+        for (int j = 0; j < size; j++) {
+          int dj = ranked[j];
+          if (data.labels[di] <= data.labels[dj]) {
+            continue;
+          }
+          double deltaNdcg =
+              Math.abs((gain(data.labels[di]) - gain(data.labels[dj]))
+                  * (discount(i) - discount(j)))
+                  / maxDcg[q];
+          double rho = 1.0 / (1.0 + Math.exp(scores[di] - scores[dj]));
+          double lambda = rho * deltaNdcg;
+          double weight = rho * (1.0 - rho) * deltaNdcg;
+          lambdas[di] += lambda;
+          lambdas[dj] -= lambda;
+          weights[di] += weight;
+          weights[dj] += weight;
+        }
+      }
+    }
+
+    /*
+     * Grow one regression tree leaf-wise on the current lambdas and update the scores.
+     */
+    private Node fitTree() throws Exception {
+
+      for (int i = 0; i < n; i++) {
+        order[i] = i;
+      }
+      Node root = new Node();
+      root.start = 0;
+      root.end = n;
+      for (int i = 0; i < n; i++) {
+        root.sumGradient += lambdas[i];
+        root.sumWeight += weights[i];
+      }
+      root.histogram = buildHistogram(root);
+      findBestSplit(root);
+
+      List<Node> leaves = new ArrayList<Node>();
+      leaves.add(root);
+      while (leaves.size() < numLeaves) {
+        Node best = null;
+        for (Node leaf : leaves) {
+          if (leaf.bestFeature >= 0 && (best == null || leaf.bestGain > best.bestGain)) {
+            best = leaf;
+          }
+        }
+        if (best == null) {
+          break;
+        }
+
+        split(best);
+        leaves.remove(best);
+        leaves.add(best.left);
+        leaves.add(best.right);
+      }
+
+      // Newton step for each leaf, then add the tree's output to the scores.
+      for (Node leaf : leaves) {
+        double value = (leaf.sumWeight > 1e-12) ? leaf.sumGradient / leaf.sumWeight : 0.0;
+        value *= learningRate;
+        leaf.value = value;
+        leaf.histogram = null;
+        for (int k = leaf.start; k < leaf.end; k++) {
+          scores[order[k]] += value;
+        }
+      }
+
+      return root;
+    }
+
+    /*
+     * Partition the node's samples on its best split and compute the children's histograms. The
+     * smaller child is scanned and the larger one is obtained by subtraction.
+     */
+    private void split(Node node) throws Exception {
+
+      int f = node.bestFeature;
+      int bin = node.bestBin;
+      byte[] featureBins = bins[f];
+
+      int i = node.start;
+      int j = node.end - 1;
+      while (i <= j) {
+        if ((featureBins[order[i]] & 0xff) <= bin) {
+          i++;
+        } else {
+          int tmp = order[i];
+          order[i] = order[j];
+          order[j] = tmp;
+          j--;
+        }
+      }
+
+      Node left = new Node();
+      left.start = node.start;
+      left.end = i;
+      Node right = new Node();
+      right.start = i;
+      right.end = node.end;
+      for (int k = left.start; k < left.end; k++) {
+        left.sumGradient += lambdas[order[k]];
+        left.sumWeight += weights[order[k]];
+      }
+      right.sumGradient = node.sumGradient - left.sumGradient;
+      right.sumWeight = node.sumWeight - left.sumWeight;
+
+      Node small = (left.size() <= right.size()) ? left : right;
+      Node large = (small == left) ? right : left;
+      small.histogram = buildHistogram(small);
+      large.histogram = node.histogram;
+      for (int ff = 0; ff < numFeatures; ff++) {
+        double[] largeSum = large.histogram.sum[ff];
+        int[] largeCount = large.histogram.count[ff];
+        double[] smallSum = small.histogram.sum[ff];
+        int[] smallCount = small.histogram.count[ff];
+        for (int b = 0; b < largeSum.length; b++) {
+          largeSum[b] -= smallSum[b];
+          largeCount[b] -= smallCount[b];
+        }
+      }
+
+      node.splitFeature = f;
+      node.splitThreshold = thresholds[f][bin];
+      node.left = left;
+      node.right = right;
+      node.histogram = null;
+
+      findBestSplit(left);
+      findBestSplit(right);
+    }
+
+    /*
+     * Build the gradient histograms of a node, one feature per task.
+     */
+    private Histogram buildHistogram(final Node node) throws Exception {
+
+      final Histogram histogram = new Histogram(numFeatures, numBins);
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int f = 0; f < numFeatures; f++) {
+        final int feature = f;
+        tasks.add(new Callable<Void>() {
+          public Void call() {
+            byte[] featureBins = bins[feature];
+            double[] sum = histogram.sum[feature];
+            int[] count = histogram.count[feature];
+            for (int k = node.start; k < node.end; k++) {
+              int i = order[k];
+              int b = featureBins[i] & 0xff;
+              sum[b] += lambdas[i];
+              count[b]++;
+            }
+            return null;
+          }
+        });
+      }
+      runAll(tasks);
+      return histogram;
+    }
+
+    /*
+     * Find the split with the largest reduction in squared error, one feature per task.
+     */
+    private void findBestSplit(final Node node) throws Exception {
+
+      node.bestFeature = -1;
+      node.bestGain = 0.0;
+      if (node.size() < 2 * minLeafSupport) {
+        return;
+      }
+
+      final double[] gains = new double[numFeatures];
+      final int[] splitBins = new int[numFeatures];
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int f = 0; f < numFeatures; f++) {
+        final int feature = f;
+        tasks.add(new Callable<Void>() {
+          public Void call() {
+            double[] sum = node.histogram.sum[feature];
+            int[] count = node.histogram.count[feature];
+            int numFeatureBins = thresholds[feature].length;
+            double total = node.sumGradient;
+            int totalCount = node.size();
+            double base = total * total / totalCount;
+
+            double leftSum = 0.0;
+            int leftCount = 0;
+            gains[feature] = 0.0;
+            splitBins[feature] = -1;
+            for (int b = 0; b < numFeatureBins - 1; b++) {
+              leftSum += sum[b];
+              leftCount += count[b];
+              int rightCount = totalCount - leftCount;
+              if (leftCount < minLeafSupport) {
+                continue;
+              }
+              if (rightCount < minLeafSupport) {
+                break;
+              }
+              double rightSum = total - leftSum;
+              double gain =
+                  leftSum * leftSum / leftCount + rightSum * rightSum / rightCount - base;
+              if (gain > gains[feature]) {
+                gains[feature] = gain;
+                splitBins[feature] = b;
+              }
+            }
+            return null;
+          }
+        });
+      }
+      runAll(tasks);
+
+      for (int f = 0; f < numFeatures; f++) {
+        if (splitBins[f] >= 0 && gains[f] > node.bestGain) {
+          node.bestGain = gains[f];
+          node.bestFeature = f;
+          node.bestBin = splitBins[f];
+        }
+      }
+    }
+
+    /*
+     * Lay out all trees in shared node arrays.
+     */
+    private Ensemble flatten(List<Node> trees) {
+
+      List<Node> internal = new ArrayList<Node>();
+      List<Node> leaves = new ArrayList<Node>();
+      for (Node root : trees) {
+        collect(root, internal, leaves);
+      }
+
+      int[] feature = new int[internal.size()];
+      float[] threshold = new float[internal.size()];
+      int[] left = new int[internal.size()];
+      int[] right = new int[internal.size()];
+      double[] leafValue = new double[leaves.size()];
+
+      for (int l = 0; l < leaves.size(); l++) {
+        leaves.get(l).index = ~l;
+        leafValue[l] = leaves.get(l).value;
+      }
+      for (int k = 0; k < internal.size(); k++) {
+        internal.get(k).index = k;
+      }
+      for (int k = 0; k < internal.size(); k++) {
+        Node node = internal.get(k);
+        feature[k] = node.splitFeature;
+        threshold[k] = node.splitThreshold;
+        left[k] = node.left.index;
+        right[k] = node.right.index;
+      }
+
+      int[] roots = new int[trees.size()];
+      for (int t = 0; t < trees.size(); t++) {
+        roots[t] = trees.get(t).index;
+      }
+
+      return new Ensemble(numFeatures, roots, feature, threshold, left, right, leafValue);
+    }
+
+    /*
+     * Collect nodes in pre-order so that each tree's nodes are adjacent in memory.
+     */
+    private void collect(Node node, List<Node> internal, List<Node> leaves) {
+
+      if (node.splitFeature < 0) {
+        leaves.add(node);
+      } else {
+        internal.add(node);
+        collect(node.left, internal, leaves);
+        collect(node.right, internal, leaves);
+      }
+    }
+
+    private void runAll(List<Callable<Void>> tasks) throws Exception {
+
+      if (numThreads <= 1 || tasks.size() == 1) {
+        for (Callable<Void> task : tasks) {
+          task.call();
+        }
+        return;
+      }
+      for (Future<Void> future : pool.invokeAll(tasks)) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw new Exception("LambdaMART training failed.", e.getCause());
+        }
+      }
+    }
+  }
+
+  /**
+   * Gain of a relevance label. Feature files store relevance + 3, so labels are shifted back, and
+   * labels of 3 or less have no gain.
+   *
+   * @param label The label in the feature file.
+   * @return The gain, 2^(label - 3) - 1.
+   */
+  static double gain(int label) {
+    return Math.pow(2.0, Math.max(label - 3, 0)) - 1.0;
+  }
+
+  /**
+   * DCG discount of a zero-based rank.
+   *
+   * @param rank The rank, from 0.
+   * @return The discount, 1 / log2(rank + 2).
+   */
+  static double discount(int rank) {
+    return 1.0 / (Math.log(rank + 2.0) / Math.log(2.0));
+  }
+
+  /**
+   * The DCG at k of the best ranking of a query's documents.
+   *
+   * @param labels The labels of the documents in the feature file. The array is sorted.
+   * @param k The cutoff.
+   * @return The ideal DCG.
+   */
+  static double idealDcg(int[] labels, int k) {
+
+    Arrays.sort(labels);
+    double dcg = 0.0;
+    for (int r = 0; r < k && r < labels.length; r++) {
+      dcg += gain(labels[labels.length - 1 - r]) * discount(r);
+    }
+    return dcg;
+  }
+
+  /**
+   * NDCG at k of one query ranked by predicted scores.
+   *
+   * @param labels The labels of the documents in the feature file.
+   * @param predicted The predicted scores of the documents.
+   * @param k The cutoff.
+   * @return The NDCG, or 0 if no document has a gain.
+   */
+  static double ndcg(int[] labels, final double[] predicted, int k) {
+
+    Integer[] order = new Integer[labels.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(predicted[b], predicted[a]);
+      }
+    });
+    double dcg = 0.0;
+    for (int r = 0; r < k && r < order.length; r++) {
+      dcg += gain(labels[order[r]]) * discount(r);
+    }
+
+    double idcg = idealDcg(labels.clone(), k);
+    return (idcg == 0) ? 0 : dcg / idcg;
+  }
+
+}
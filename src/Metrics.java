@@ -0,0 +1,448 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class collects latency histograms and counters for the stages of query evaluation and
+ * feature generation: parsing, postings fetch, scoring, top-k, stored field access, term vector
+ * decoding, every feature family, training and prediction. A stage's timer is looked up by name
+ * and records one latency per call. Timers of nested stages are inclusive, so the time of "scoring"
+ * includes the "postings" fetches made while scoring.
+ *
+ * Latencies are counted in logarithmic buckets, 16 per power of two, so a percentile is exact to
+ * within about 3% and recording is a few atomic increments, without locks or allocation. The
+ * p50, p95 and p99 of every stage are printed at the end of a run, written to metrics:jsonFile,
+ * and served in the Prometheus text format at http://127.0.0.1:metrics:port/metrics while the
+ * program runs.
+ *
+ * Metrics are collected if metrics:enabled is true, or if a JSON file or port is set. Otherwise
+ * every timer is a no-op.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class Metrics {
+
+  // Values below 2^SUB_BITS ns have their own bucket; above, each power of two has 2^SUB_BITS
+  private static int SUB_BITS = 4;
+  private static int N_BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+
+  private static double[] QUANTILES = {0.5, 0.95, 0.99};
+
+  /**
+   * The latency histogram of one stage.
+   */
+  public static class Timer {
+
+    private boolean enabled;
+    private AtomicLongArray buckets;
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    private Timer(boolean enabled) {
+      this.enabled = enabled;
+      this.buckets = enabled ? new AtomicLongArray(N_BUCKETS) : null;
+    }
+
+    /**
+     * Start timing a call.
+     *
+     * @return The start time, to be passed to {@link #stop(long)}.
+     */
+    public long start() {
+      return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the latency of a call.
+     *
+     * @param startNanos The start time returned by {@link #start()}.
+     */
+    public void stop(long startNanos) {
+      if (enabled) {
+        record(System.nanoTime() - startNanos);
+      }
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency in ns.
+     */
+    public void record(long nanos) {
+
+      if (!enabled) {
+        return;
+      }
+      nanos = Math.max(0, nanos);
+      buckets.incrementAndGet(bucket(nanos));
+      count.incrementAndGet();
+      sum.addAndGet(nanos);
+      long m;
+      while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+      }
+    }
+
+    /**
+     * The number of recorded latencies.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+      return count.get();
+    }
+
+    /**
+     * The sum of the recorded latencies.
+     *
+     * @return The sum in ns.
+     */
+    public long getSum() {
+      return sum.get();
+    }
+
+    /**
+     * The largest recorded latency.
+     *
+     * @return The maximum in ns.
+     */
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * A percentile of the recorded latencies, as the middle of the bucket that holds it.
+     *
+     * @param q The quantile, between 0 and 1.
+     * @return The latency in ns, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double q) {
+
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(q * n));
+      long seen = 0;
+      for (int i = 0; i < N_BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          long low = lowerBound(i);
+          long high = lowerBound(i + 1) - 1;
+          return Math.min(low + (high - low) / 2, max.get());
+        }
+      }
+      return max.get();
+    }
+  }
+
+  /**
+   * A count of events, such as queries or feature vectors.
+   */
+  public static class Counter {
+
+    private AtomicLong value = new AtomicLong();
+
+    /**
+     * Add to the count.
+     *
+     * @param n The number of events.
+     */
+    public void add(long n) {
+      value.addAndGet(n);
+    }
+
+    /**
+     * The count.
+     *
+     * @return The number of events so far.
+     */
+    public long get() {
+      return value.get();
+    }
+  }
+
+  private static Timer DISABLED_TIMER = new Timer(false);
+
+  private boolean enabled;
+  private long startTime = System.currentTimeMillis();
+  private String jsonPath;
+  private HttpServer server;
+
+  // Timers and counters by name, and their names in the order they were first used
+  private Map<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+  private Map<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+  private List<String> timerNames = new CopyOnWriteArrayList<String>();
+  private List<String> counterNames = new CopyOnWriteArrayList<String>();
+
+  /**
+   * Create a metrics registry.
+   *
+   * @param enabled Whether to collect metrics; if false, the timers do nothing.
+   */
+  public Metrics(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Create a metrics registry from the metrics: parameters, and start the Prometheus endpoint if
+   * metrics:port is set.
+   *
+   * @param params The parameters read from the .param file.
+   * @return The registry, which is disabled unless metrics were asked for.
+   * @throws IOException if the endpoint cannot be started.
+   */
+  public static Metrics create(Map<String, String> params) throws IOException {
+
+    String jsonPath = params.get("metrics:jsonFile");
+    String port = params.get("metrics:port");
+    boolean enabled =
+        "true".equalsIgnoreCase(params.get("metrics:enabled")) || jsonPath != null
+            || port != null;
+    Metrics metrics = new Metrics(enabled);
+    metrics.jsonPath = jsonPath;
+    if (port != null) {
+      metrics.startServer(Integer.parseInt(port));
+    }
+    return metrics;
+  }
+
+  /**
+   * Whether metrics are collected.
+   *
+   * @return true if the timers record.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * The timer of a stage, created on first use.
+   *
+   * @param name The name of the stage.
+   * @return The timer.
+   */
+  public Timer timer(String name) {
+
+    if (!enabled) {
+      return DISABLED_TIMER;
+    }
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      synchronized (timers) {
+        timer = timers.get(name);
+        if (timer == null) {
+          timer = new Timer(true);
+          timers.put(name, timer);
+          timerNames.add(name);
+        }
+      }
+    }
+    return timer;
+  }
+
+  /**
+   * A counter, created on first use.
+   *
+   * @param name The name of the counter.
+   * @return The counter.
+   */
+  public Counter counter(String name) {
+
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      synchronized (counters) {
+        counter = counters.get(name);
+        if (counter == null) {
+          counter = new Counter();
+          counters.put(name, counter);
+          counterNames.add(name);
+        }
+      }
+    }
+    return counter;
+  }
+
+  /*
+   * The bucket of a latency. Bucket i < 2^SUB_BITS holds i ns; above, the bucket is given by the
+   * position of the highest bit and the SUB_BITS bits below it.
+   */
+  private static int bucket(long nanos) {
+
+    if (nanos < (1L << SUB_BITS)) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int sub = (int) (nanos >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+    return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+  }
+
+  /*
+   * The smallest latency in a bucket.
+   */
+  private static long lowerBound(int bucket) {
+
+    if (bucket < (1 << SUB_BITS)) {
+      return bucket;
+    }
+    int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+    if (exponent >= 63) {
+      return Long.MAX_VALUE;
+    }
+    long sub = bucket & ((1 << SUB_BITS) - 1);
+    return (1L << exponent) + (sub << (exponent - SUB_BITS));
+  }
+
+  /**
+   * Print the count, mean and percentiles of every stage, and the counters.
+   */
+  public void printReport() {
+
+    if (!enabled) {
+      return;
+    }
+    System.out.println(String.format("Metrics: %-16s %9s %10s %10s %10s %10s %10s", "stage",
+        "count", "total ms", "mean us", "p50 us", "p95 us", "p99 us"));
+    for (String name : timerNames) {
+      Timer timer = timers.get(name);
+      long count = timer.getCount();
+      System.out.println(String.format("Metrics: %-16s %9d %10.1f %10.1f %10.1f %10.1f %10.1f",
+          name, count, timer.getSum() / 1e6, (count == 0) ? 0 : timer.getSum() / 1e3 / count,
+          timer.getPercentile(0.5) / 1e3, timer.getPercentile(0.95) / 1e3,
+          timer.getPercentile(0.99) / 1e3));
+    }
+    for (String name : counterNames) {
+      System.out.println(String.format("Metrics: %-16s %9d", name, counters.get(name).get()));
+    }
+  }
+
+  /**
+   * The metrics as a JSON object. Latencies are in ns.
+   *
+   * @return The JSON text.
+   */
+  public String toJson() {
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n  \"uptimeMillis\": ").append(System.currentTimeMillis() - startTime);
+    sb.append(",\n  \"stages\": {");
+    String separator = "\n";
+    for (String name : timerNames) {
+      Timer timer = timers.get(name);
+      sb.append(separator).append("    \"").append(name).append("\": {\"count\": ")
+          .append(timer.getCount()).append(", \"sumNanos\": ").append(timer.getSum())
+          .append(", \"p50Nanos\": ").append(timer.getPercentile(0.5))
+          .append(", \"p95Nanos\": ").append(timer.getPercentile(0.95))
+          .append(", \"p99Nanos\": ").append(timer.getPercentile(0.99))
+          .append(", \"maxNanos\": ").append(timer.getMax()).append("}");
+      separator = ",\n";
+    }
+    sb.append("\n  },\n  \"counters\": {");
+    separator = "\n";
+    for (String name : counterNames) {
+      sb.append(separator).append("    \"").append(name).append("\": ")
+          .append(counters.get(name).get());
+      separator = ",\n";
+    }
+    sb.append("\n  }\n}\n");
+    return sb.toString();
+  }
+
+  /**
+   * The metrics in the Prometheus text exposition format: a summary of the latency of every stage
+   * in seconds, and a counter for every counter.
+   *
+   * @return The exposition text.
+   */
+  public String toPrometheus() {
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("# HELP letor_stage_seconds Latency of a stage of query evaluation or "
+        + "feature generation.\n");
+    sb.append("# TYPE letor_stage_seconds summary\n");
+    for (String name : timerNames) {
+      Timer timer = timers.get(name);
+      for (double q : QUANTILES) {
+        sb.append("letor_stage_seconds{stage=\"").append(name).append("\",quantile=\"")
+            .append(q).append("\"} ").append(timer.getPercentile(q) / 1e9).append('\n');
+      }
+      sb.append("letor_stage_seconds_sum{stage=\"").append(name).append("\"} ")
+          .append(timer.getSum() / 1e9).append('\n');
+      sb.append("letor_stage_seconds_count{stage=\"").append(name).append("\"} ")
+          .append(timer.getCount()).append('\n');
+    }
+    for (String name : counterNames) {
+      String metric = "letor_" + name.replaceAll("[^a-zA-Z0-9_]", "_") + "_total";
+      sb.append("# TYPE ").append(metric).append(" counter\n");
+      sb.append(metric).append(' ').append(counters.get(name).get()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /*
+   * Serve /metrics (Prometheus text) and /metrics.json on the loopback interface.
+   */
+  private void startServer(int port) throws IOException {
+
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+        byte[] body = (json ? toJson() : toPrometheus()).getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type",
+            json ? "application/json" : "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "metrics-http");
+        thread.setDaemon(true);
+        return thread;
+      }
+    }));
+    server.start();
+    System.out.println("Metrics: serving http://127.0.0.1:" + server.getAddress().getPort()
+        + "/metrics");
+  }
+
+  /**
+   * Write the JSON file, if there is one, and stop the endpoint.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+
+    if (jsonPath != null) {
+      BufferedWriter writer = new BufferedWriter(new FileWriter(jsonPath));
+      writer.write(toJson());
+      writer.close();
+    }
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+}
@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This class runs items through a sequence of stages, each on its own thread, connected by bounded
+ * queues. While one stage works on an item, the previous stage already works on the next one, so
+ * a stage that waits on the disk overlaps with a stage that uses the CPU. A full queue blocks the
+ * stage that feeds it, which keeps a fast stage from running ahead of a slow one. Every stage sees
+ * the items in order, and the sink runs on the calling thread.
+ *
+ * If a stage fails, the items that are still in flight are discarded, and the first failure is
+ * thrown once every stage has stopped.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class Pipeline<T> {
+
+  /**
+   * A step of the pipeline, which works on an item in place.
+   */
+  public interface Stage<T> {
+
+    /**
+     * Process one item.
+     *
+     * @param item The item.
+     * @throws Exception
+     */
+    public void process(T item) throws Exception;
+  }
+
+  // Marks the end of the items in a queue
+  private static final Object END = new Object();
+
+  private int queueSize;
+  private List<String> names = new ArrayList<String>();
+  private List<Stage<T>> stages = new ArrayList<Stage<T>>();
+  private long[] busyNanos;
+  private volatile Throwable failure;
+
+  /**
+   * Create an empty pipeline.
+   *
+   * @param queueSize The capacity of the queue in front of every stage.
+   */
+  public Pipeline(int queueSize) {
+    this.queueSize = Math.max(1, queueSize);
+  }
+
+  /**
+   * Append a stage.
+   *
+   * @param name The name of the stage, used in the report.
+   * @param stage The stage.
+   */
+  public void addStage(String name, Stage<T> stage) {
+    names.add(name);
+    stages.add(stage);
+  }
+
+  /**
+   * Run all items through the stages, then through the sink on the calling thread.
+   *
+   * @param items The items, which are read by a feeder thread.
+   * @param sink The last stage.
+   * @throws Exception
+   */
+  public void run(final Iterator<T> items, Stage<T> sink) throws Exception {
+
+    int n = stages.size();
+    busyNanos = new long[n + 1];
+    failure = null;
+    List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+    for (int i = 0; i <= n; i++) {
+      queues.add(new ArrayBlockingQueue<Object>(queueSize));
+    }
+
+    // The feeder fills the first queue; stage i moves items from queue i to queue i + 1.
+    List<Thread> threads = new ArrayList<Thread>();
+    final BlockingQueue<Object> first = queues.get(0);
+    threads.add(newThread("pipeline-feeder", new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (items.hasNext() && failure == null) {
+            first.put(items.next());
+          }
+        } catch (Throwable e) {
+          fail(e);
+        } finally {
+          putEnd(first);
+        }
+      }
+    }));
+    for (int i = 0; i < n; i++) {
+      final int stage = i;
+      final BlockingQueue<Object> in = queues.get(i);
+      final BlockingQueue<Object> out = queues.get(i + 1);
+      threads.add(newThread("pipeline-" + names.get(i), new Runnable() {
+        @Override
+        public void run() {
+          drain(stage, stages.get(stage), in, out);
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    drain(n, sink, queues.get(n), null);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw (Exception) failure;
+    }
+  }
+
+  /*
+   * Process the items of a queue until its end marker, and pass them on. After a failure, the
+   * remaining items are only taken, so that no stage blocks on a full queue.
+   */
+  @SuppressWarnings("unchecked")
+  private void drain(int stage, Stage<T> s, BlockingQueue<Object> in, BlockingQueue<Object> out) {
+
+    try {
+      while (true) {
+        Object item = in.take();
+        if (item == END) {
+          break;
+        }
+        if (failure != null) {
+          continue;
+        }
+        try {
+          long startTime = System.nanoTime();
+          s.process((T) item);
+          busyNanos[stage] += System.nanoTime() - startTime;
+          if (out != null) {
+            out.put(item);
+          }
+        } catch (Throwable e) {
+          fail(e);
+        }
+      }
+    } catch (InterruptedException e) {
+      fail(e);
+    } finally {
+      if (out != null) {
+        putEnd(out);
+      }
+    }
+  }
+
+  private synchronized void fail(Throwable e) {
+    if (failure == null) {
+      failure = e;
+    }
+  }
+
+  /*
+   * Put the end marker. The consumer drains its queue until the marker, so this only waits for
+   * space.
+   */
+  private void putEnd(BlockingQueue<Object> queue) {
+    while (true) {
+      try {
+        queue.put(END);
+        return;
+      } catch (InterruptedException e) {
+        fail(e);
+      }
+    }
+  }
+
+  private static Thread newThread(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /**
+   * Print how long each stage was busy in the last run, against the elapsed time.
+   *
+   * @param wallNanos The elapsed time of the run.
+   */
+  public void printReport(long wallNanos) {
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Pipeline: %.1f ms;", wallNanos / 1e6));
+    for (int i = 0; i < busyNanos.length; i++) {
+      String name = (i < names.size()) ? names.get(i) : "sink";
+      sb.append(String.format(" %s %.1f ms", name, busyNanos[i] / 1e6));
+    }
+    System.out.println(sb.toString());
+  }
+
+}
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * This class stores a decoded inverted list in flat int arrays: the docids, the term frequencies,
+ * and the positions of all postings back to back. Posting n's positions are
+ * positions[positionStarts[n], positionStarts[n + 1]). Postings are immutable once built, so they
+ * can be cached and shared between threads.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class Postings {
+
+  private String field;
+  private int df;
+  private long ctf;
+  private int[] docids;
+  private int[] tfs;
+  private int[] positionStarts;
+  private int[] positions;
+
+  private Postings(String field, int df, long ctf, int[] docids, int[] tfs, int[] positionStarts,
+      int[] positions) {
+    this.field = field;
+    this.df = df;
+    this.ctf = ctf;
+    this.docids = docids;
+    this.tfs = tfs;
+    this.positionStarts = positionStarts;
+    this.positions = positions;
+  }
+
+  /**
+   * Read the postings of a term from the index.
+   *
+   * @param reader The index reader.
+   * @param termString The processed (stemmed, lower-cased, etc) term string.
+   * @param fieldString The field that the term occurs in.
+   * @return The postings, empty if the term does not occur in the field.
+   * @throws IOException
+   */
+  public static Postings read(IndexReader reader, String termString, String fieldString)
+      throws IOException {
+
+    BytesRef termBytes = new BytesRef(termString);
+    Term term = new Term(fieldString, termBytes);
+
+    int docFreq = reader.docFreq(term);
+    Builder builder = new Builder(fieldString, Math.max(docFreq, 0));
+    if (docFreq < 1)
+      return builder.build();
+
+    // Read each segment's postings and offset its docids; segments are in docid order.
+    DocsAndPositionsEnum iList = null;
+    for (AtomicReaderContext context : reader.leaves()) {
+      Terms terms = context.reader().terms(fieldString);
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = terms.iterator(null);
+      if (!termsEnum.seekExact(termBytes, true)) {
+        continue;
+      }
+      iList = termsEnum.docsAndPositions(context.reader().getLiveDocs(), iList);
+      while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        int tf = iList.freq();
+        builder.startPosting(context.docBase + iList.docID());
+        for (int j = 0; j < tf; j++)
+          builder.addPosition(iList.nextPosition());
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * The field the postings belong to.
+   *
+   * @return The field name.
+   */
+  public String getField() {
+    return field;
+  }
+
+  /**
+   * The number of postings.
+   *
+   * @return The document frequency.
+   */
+  public int getDf() {
+    return df;
+  }
+
+  /**
+   * The total number of positions.
+   *
+   * @return The collection term frequency.
+   */
+  public long getCtf() {
+    return ctf;
+  }
+
+  /**
+   * Get the docid of the n'th posting.
+   *
+   * @param n The index of the posting.
+   * @return The internal document id.
+   */
+  public int getDocid(int n) {
+    return docids[n];
+  }
+
+  /**
+   * Get the term frequency of the n'th posting.
+   *
+   * @param n The index of the posting.
+   * @return The term frequency.
+   */
+  public int getTf(int n) {
+    return tfs[n];
+  }
+
+  /**
+   * Get the j'th position of the n'th posting.
+   *
+   * @param n The index of the posting.
+   * @param j The index of the position within the posting.
+   * @return The position.
+   */
+  public int getPosition(int n, int j) {
+    return positions[positionStarts[n] + j];
+  }
+
+  /**
+   * The approximate heap size of the postings, used for cache accounting.
+   *
+   * @return The size in bytes.
+   */
+  public long sizeInBytes() {
+    return 64 + 4L * (docids.length + tfs.length + positionStarts.length + positions.length);
+  }
+
+  /**
+   * Builds postings in docid order.
+   */
+  public static class Builder {
+
+    private String field;
+    private int df = 0;
+    private long ctf = 0;
+    private int[] docids;
+    private int[] tfs;
+    private int[] positionStarts;
+    private int[] positions;
+    private int numPositions = 0;
+
+    /**
+     * Start building postings.
+     *
+     * @param field The field of the postings.
+     * @param expectedDf A hint for the number of postings.
+     */
+    public Builder(String field, int expectedDf) {
+      this.field = field;
+      int capacity = Math.max(expectedDf, 4);
+      docids = new int[capacity];
+      tfs = new int[capacity];
+      positionStarts = new int[capacity + 1];
+      positions = new int[capacity];
+    }
+
+    /**
+     * Start a posting for a document. Docids must be increasing.
+     *
+     * @param docid The internal document id.
+     */
+    public void startPosting(int docid) {
+      if (df == docids.length) {
+        int capacity = docids.length * 2;
+        docids = Arrays.copyOf(docids, capacity);
+        tfs = Arrays.copyOf(tfs, capacity);
+        positionStarts = Arrays.copyOf(positionStarts, capacity + 1);
+      }
+      docids[df] = docid;
+      tfs[df] = 0;
+      positionStarts[df] = numPositions;
+      df++;
+    }
+
+    /**
+     * Add a position to the current posting.
+     *
+     * @param position The position.
+     */
+    public void addPosition(int position) {
+      if (numPositions == positions.length) {
+        positions = Arrays.copyOf(positions, positions.length * 2);
+      }
+      positions[numPositions++] = position;
+      tfs[df - 1]++;
+      ctf++;
+    }
+
+    /**
+     * Add a posting with a term frequency but no positions.
+     *
+     * @param docid The internal document id.
+     * @param tf The term frequency.
+     */
+    public void addPosting(int docid, int tf) {
+      startPosting(docid);
+      tfs[df - 1] = tf;
+      ctf += tf;
+    }
+
+    /**
+     * Finish building. The arrays are trimmed to size.
+     *
+     * @return The postings.
+     */
+    public Postings build() {
+      positionStarts[df] = numPositions;
+      return new Postings(field, df, ctf, Arrays.copyOf(docids, df), Arrays.copyOf(tfs, df),
+          Arrays.copyOf(positionStarts, df + 1), Arrays.copyOf(positions, numPositions));
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * This class caches decoded postings of query terms, keyed by (field, term), so that a term that
+ * occurs in many queries is read from the index once. The cache holds at most a configured number
+ * of bytes and evicts the least recently used postings first.
+ *
+ * Lookups are synchronized on the cache; postings are read from the index outside the lock, so
+ * concurrent misses do not block hits. Two threads missing on the same term may both read it.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class PostingsCache {
+
+  private IndexReader reader;
+  private long maxBytes;
+  private long bytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  private LinkedHashMap<String, Postings> entries = new LinkedHashMap<String, Postings>(16, 0.75f,
+      true);
+
+  /**
+   * Create an empty cache.
+   *
+   * @param reader The index reader that postings are read from.
+   * @param maxBytes The byte budget.
+   */
+  public PostingsCache(IndexReader reader, long maxBytes) {
+    this.reader = reader;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Get the postings of a term, reading them from the index on a miss.
+   *
+   * @param termString The processed (stemmed, lower-cased, etc) term string.
+   * @param fieldString The field that the term occurs in.
+   * @return The postings.
+   * @throws IOException
+   */
+  public Postings get(String termString, String fieldString) throws IOException {
+
+    String key = fieldString + '\u0000' + termString;
+    synchronized (this) {
+      Postings p = entries.get(key);
+      if (p != null) {
+        hits++;
+        return p;
+      }
+      misses++;
+    }
+
+    Postings p = Postings.read(reader, termString, fieldString);
+    put(key, p);
+    return p;
+  }
+
+  /*
+   * Add postings and evict least recently used entries until the cache fits its budget. Postings
+   * larger than the whole budget are not cached.
+   */
+  private synchronized void put(String key, Postings p) {
+
+    long size = p.sizeInBytes() + 2L * key.length();
+    if (size > maxBytes || entries.containsKey(key)) {
+      return;
+    }
+
+    entries.put(key, p);
+    bytes += size;
+
+    Iterator<Map.Entry<String, Postings>> it = entries.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Postings> eldest = it.next();
+      bytes -= eldest.getValue().sizeInBytes() + 2L * eldest.getKey().length();
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * The fraction of lookups that were hits.
+   *
+   * @return The hit rate, or 0 if there were no lookups.
+   */
+  public synchronized double getHitRate() {
+    long lookups = hits + misses;
+    return (lookups == 0) ? 0.0 : (double) hits / lookups;
+  }
+
+  /**
+   * The number of bytes of postings held.
+   *
+   * @return The size of the cache in bytes.
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Print the cache statistics.
+   */
+  public synchronized void printStats() {
+    System.out.println(String.format(
+        "Postings cache: %d hits, %d misses, hit rate %.3f, %d entries, %d bytes, %d evictions",
+        hits, misses, getHitRate(), entries.size(), bytes, evictions));
+  }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * This class is a forward cursor over the postings of an inverted list. Besides stepping to the
+ * next posting, it can advance to the first posting at or after a target docid by galloping: it
+ * probes postings 1, 2, 4, ... ahead of its position until it passes the target, then binary
+ * searches the last gap. Advancing over k postings costs O(log k), so intersecting a rare list with
+ * a common one costs time proportional to the rare list (times a log factor), not to the common
+ * one.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class PostingsCursor {
+
+  public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  private InvList list;
+  private int index = 0;
+
+  /**
+   * Create a cursor on the first posting of a list.
+   *
+   * @param list The inverted list.
+   */
+  public PostingsCursor(InvList list) {
+    this.list = list;
+  }
+
+  /**
+   * The docid of the current posting.
+   *
+   * @return The internal docid, or NO_MORE_DOCS if the cursor is past the last posting.
+   */
+  public int docid() {
+    return (index < list.df) ? list.getDocid(index) : NO_MORE_DOCS;
+  }
+
+  /**
+   * The index of the current posting in the list, for getTf and getPosition.
+   *
+   * @return The posting index.
+   */
+  public int index() {
+    return index;
+  }
+
+  /**
+   * Move to the next posting.
+   *
+   * @return The docid of the next posting, or NO_MORE_DOCS.
+   */
+  public int next() {
+    index++;
+    return docid();
+  }
+
+  /**
+   * Move to the first posting whose docid is at least target. The cursor does not move back.
+   *
+   * @param target The target docid.
+   * @return The docid of that posting, or NO_MORE_DOCS if there is none.
+   */
+  public int advance(int target) {
+
+    int df = list.df;
+    if (index >= df || list.getDocid(index) >= target) {
+      return docid();
+    }
+
+    // Gallop until a posting at or after the target, or the end, bounds the search.
+    int low = index;
+    int step = 1;
+    int high = index + step;
+    while (high < df && list.getDocid(high) < target) {
+      low = high;
+      step <<= 1;
+      high = index + step;
+    }
+    if (high >= df) {
+      high = df;
+    }
+
+    // Binary search (low, high] for the first docid >= target; low is known to be < target.
+    while (high - low > 1) {
+      int mid = (low + high) >>> 1;
+      if (list.getDocid(mid) < target) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+    index = high;
+    return docid();
+  }
+
+}
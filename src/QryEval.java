@@ -1,32 +1,9 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.Stack;
-import java.util.StringTokenizer;
-
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopScoreDocCollector;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.Version;
 
 /**
  * QryEval illustrates the architecture for the portion of a search engine that evaluates queries
@@ -41,24 +18,6 @@ public class QryEval {
   private static String usage = "Usage:  java " + System.getProperty("sun.java.command")
       + " paramFile\n\n";
 
-  // The index file reader is accessible via a global variable. This
-  // isn't great programming style, but the alternative is for every
-  // query operator to store or pass this value, which creates its
-  // own headaches.
-
-  public static IndexReader READER;
-
-  // Create and configure an English analyzer that will be used for
-  // query parsing.
-
-  public static EnglishAnalyzerConfigurable analyzer = new EnglishAnalyzerConfigurable(
-      Version.LUCENE_43);
-  static {
-    analyzer.setLowercase(true);
-    analyzer.setStopwordRemoval(true);
-    analyzer.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
-  }
-
   /**
    * @param args The only argument is the path to the parameter file.
    * @throws Exception
@@ -74,217 +33,137 @@ public class QryEval {
 
     Map<String, String> params = readParam(args[0]);
 
-    // open the index
-    READER = DirectoryReader.open(FSDirectory.open(new File(params.get("indexPath"))));
-    if (READER == null) {
-      fatalError(usage);
+    // open the index with the caches, planner and sharded searcher configured for it
+    SearchContext context = SearchContext.open(params);
+
+    // warm the index with a sample of the query log before taking queries
+    if (IndexWarmer.isEnabled(params)) {
+      new IndexWarmer(params, context).warm();
     }
 
-    FeatureGenerator featureGenerator = new FeatureGenerator(params);
+    FeatureGenerator featureGenerator = new FeatureGenerator(params, context);
 
     // generate training data
     featureGenerator.generateTrainData();
 
-    SvmRank svmRank = new SvmRank(params);
-
-    // train
-    svmRank.trainSvm();
+    // train with the configured learner, SVM-rank by default
+    Metrics.Timer trainTimer = context.getMetrics().timer("train");
+    long trainTime = trainTimer.start();
+    boolean useLambdaMart = "lambdamart".equalsIgnoreCase(params.get("letor:learner"));
+    SvmRank svmRank = null;
+    LambdaMart lambdaMart = null;
+    if (useLambdaMart) {
+      lambdaMart = new LambdaMart(params);
+      lambdaMart.train();
+    } else {
+      svmRank = new SvmRank(params);
+      svmRank.trainSvm();
+    }
+    trainTimer.stop(trainTime);
 
     // generate testing data for top 100 documents in initial BM25 ranking
     featureGenerator.generateTestData();
 
     // produce scores for the test data
-    svmRank.predict();
+    Metrics.Timer predictTimer = context.getMetrics().timer("predict");
+    long predictTime = predictTimer.start();
+    if (useLambdaMart) {
+      lambdaMart.predict();
+    } else {
+      svmRank.predict();
+    }
+    predictTimer.stop(predictTime);
 
     // re-rank the initial ranking and output new result
-    writeResults(params);
+    writeResults(params, featureGenerator);
 
     // print running time and memory usage
     long endTime = System.currentTimeMillis();
     System.out.println("Running Time: " + (endTime - startTime) + " ms");
+    context.printStats();
+    context.close();
     printMemoryUsage(false);
   }
 
-  /**
-   * parseQuery converts a query string into a query tree.
-   * 
-   * @param qString A string containing a query
-   * @param r The retrieval model for the query
-   * @return currentOp
-   * @throws IOException
-   */
-  protected static Qryop parseQuery(String qString, RetrievalModel r) throws IOException {
-
-    Qryop currentOp = null;
-    Stack<Qryop> stack = new Stack<Qryop>();
-
-    // Add a default query operator to an unstructured query. This
-    // is a tiny bit easier if unnecessary whitespace is removed.
-    qString = qString.trim();
-    // Add a default operators for BM25 retrieval model
-    if (r instanceof RetrievalModelBM25) {
-      qString = "#SUM(" + qString + ")";
-    } else {
-      return null;
-    }
-
-    // Tokenize the query.
-    StringTokenizer tokens = new StringTokenizer(qString, "\t\n\r ,()", true);
-    String token = null;
-
-    // Each pass of the loop processes one token. To improve
-    // efficiency and clarity, the query operator on the top of the
-    // stack is also stored in currentOp.
-    while (tokens.hasMoreTokens()) {
-
-      token = tokens.nextToken();
-
-      if (token.matches("[ ,(\t\n\r]")) {
-        // Ignore most delimiters.
-      } else if (token.equalsIgnoreCase("#sum")) {
-        currentOp = new QryopSlSum();
-        stack.push(currentOp);
-      } else if (token.startsWith(")")) { // Finish current query operator.
-        // If the current query operator is not an argument to
-        // another query operator (i.e., the stack is empty when it
-        // is removed), we're done (assuming correct syntax - see
-        // below). Otherwise, add the current operator as an
-        // argument to the higher-level operator, and shift
-        // processing back to the higher-level operator.
-        stack.pop();
-        if (stack.empty())
-          break;
-        Qryop arg = currentOp;
-        if (arg.args.size() > 0) {
-          currentOp = stack.peek();
-          currentOp.add(arg);
-        }
-      } else {
-        // Lexical processing of the token before creating the query term, and check to see whether
-        // the token specifies a particular field (e.g., apple.title).
-        String[] termAndField = token.split("\\.");
-        String term;
-        String field;
-        if (termAndField.length == 2) {
-          field = termAndField[1];
-          if (!(field.equalsIgnoreCase("url") || field.equalsIgnoreCase("keywords")
-              || field.equalsIgnoreCase("title") || field.equalsIgnoreCase("body") || field
-                .equalsIgnoreCase("inlink"))) {
-            term = token;
-            field = "body";
-          } else {
-            term = termAndField[0];
-          }
-        } else {
-          term = token;
-          field = "body";
-        }
-
-        String[] processedToken = tokenizeQuery(term);
-        if (processedToken.length > 1) {
-          System.err.println("Error: Invalid query term.");
-          return null;
-        } else if (processedToken.length > 0) {
-          currentOp.add(new QryopIlTerm(processedToken[0], field));
-        }
-      }
-    }
-
-    // A broken structured query can leave unprocessed tokens on the
-    // stack, so check for that.
-    if (tokens.hasMoreTokens()) {
-      System.err.println("Error:  Query syntax is incorrect.  " + qString);
-      return null;
-    }
-
-    return currentOp;
-  }
-
-  private static void writeResults(Map<String, String> params) throws IOException {
+  private static void writeResults(Map<String, String> params, FeatureGenerator featureGenerator)
+      throws IOException {
 
     // create the output file
-    File evalOut = new File(params.get("trecEvalOutputPath"));
-    if (!evalOut.exists()) {
-      evalOut.createNewFile();
-    }
-    BufferedWriter writer = new BufferedWriter(new FileWriter(evalOut.getAbsoluteFile()));
+    RunFileWriter writer = new RunFileWriter(params.get("trecEvalOutputPath"));
 
-    // Get the scanners ready
-    Scanner idScanner =
-        new Scanner(new BufferedReader(
-            new FileReader(params.get("letor:testingFeatureVectorsFile"))));
-    Scanner scoreScanner =
-        new Scanner(new BufferedReader(new FileReader(params.get("letor:testingDocumentScores"))));
+    // Get the readers ready: the feature file gives the query and document of every score
+    RunFileReader idReader = new RunFileReader(params.get("letor:testingFeatureVectorsFile"));
+    RunFileReader scoreReader = new RunFileReader(params.get("letor:testingDocumentScores"));
 
     String lastQueryId = "";
     DocScore docScore = null;
-    while (idScanner.hasNextLine()) {
-      String line = idScanner.nextLine();
-      String queryIdSeg = line.split(" ")[1];
-      String queryId = queryIdSeg.substring(queryIdSeg.indexOf(':') + 1);
-      if (!queryId.equals(lastQueryId)) {
+    while (idReader.nextLine()) {
+      if (!idReader.nextToken() || !idReader.nextToken()) {
+        continue;
+      }
+      int colon = idReader.tokenIndexOf(':');
+      if (!idReader.tokenEquals(colon + 1, lastQueryId)) {
         // A query is finished, sort the scores and write the results
         if (docScore != null) {
           docScore.sort();
+          addCascadeTail(docScore, featureGenerator.getCascadeTail(lastQueryId));
           writeQueryResult(writer, docScore, lastQueryId);
         }
-        lastQueryId = queryId;
+        lastQueryId = idReader.token(colon + 1);
         docScore = new DocScore();
       }
-      String externalId = line.substring(line.indexOf('#') + 2);
-      double score = scoreScanner.nextDouble();
+      idReader.skipPast('#');
+      idReader.nextToken();
+      String externalId = idReader.token();
+      double score = scoreReader.nextDouble();
       docScore.add(externalId, score);
     }
-    idScanner.close();
-    scoreScanner.close();
+    idReader.close();
+    scoreReader.close();
 
-    docScore.sort();
-    writeQueryResult(writer, docScore, lastQueryId);
+    if (docScore != null) {
+      docScore.sort();
+      addCascadeTail(docScore, featureGenerator.getCascadeTail(lastQueryId));
+      writeQueryResult(writer, docScore, lastQueryId);
+    }
     writer.close();
   }
 
   /**
-   * Write the query results into a file.
+   * Append the documents pruned by the reranking cascade below the reranked documents, keeping
+   * their stage one order.
    * 
-   * @param writer The writer used to write out the results.
-   * @param docScore The scores of top ranked documents.
-   * @param queryId A String specifying the ID of the query.
-   * @throws IOException
+   * @param docScore The sorted scores of the reranked documents.
+   * @param tail External IDs of the pruned documents.
    */
-  private static void writeQueryResult(BufferedWriter writer, DocScore docScore, String queryId)
-      throws IOException {
-    for (int i = 0; i < docScore.scores.size(); i++) {
-      String line =
-          String.format("%s Q0 %s %d %f zexim", queryId, docScore.getExternalDocid(i), i + 1,
-              docScore.getDocidScore(i));
-      writer.write(line + '\n');
+  private static void addCascadeTail(DocScore docScore, List<String> tail) {
+
+    if (tail.isEmpty()) {
+      return;
+    }
+    double lastScore = 0.0;
+    if (docScore.scores.size() > 0) {
+      lastScore = docScore.getDocidScore(docScore.scores.size() - 1);
+    }
+    for (int i = 0; i < tail.size(); i++) {
+      docScore.add(tail.get(i), lastScore - (i + 1));
     }
   }
 
   /**
-   * Given a query string, returns the terms one at a time with stopwords removed and the terms
-   * stemmed using the Krovetz stemmer.
-   * 
-   * Use this method to process raw query terms.
+   * Write the query results into a file.
    * 
-   * @param query String containing query
-   * @return Array of query tokens
+   * @param writer The writer used to write out the results.
+   * @param docScore The scores of top ranked documents.
+   * @param queryId A String specifying the ID of the query.
    * @throws IOException
    */
-  static String[] tokenizeQuery(String query) throws IOException {
-
-    TokenStreamComponents comp = analyzer.createComponents("dummy", new StringReader(query));
-    TokenStream tokenStream = comp.getTokenStream();
-
-    CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
-    tokenStream.reset();
-
-    List<String> tokens = new ArrayList<String>();
-    while (tokenStream.incrementToken()) {
-      String term = charTermAttribute.toString();
-      tokens.add(term);
+  private static void writeQueryResult(RunFileWriter writer, DocScore docScore, String queryId)
+      throws IOException {
+    for (int i = 0; i < docScore.scores.size(); i++) {
+      writer.writeResult(queryId, docScore.getExternalDocid(i), i + 1, docScore.getDocidScore(i),
+          "zexim");
     }
-    return tokens.toArray(new String[tokens.size()]);
   }
 
   /**
@@ -315,42 +194,6 @@ public class QryEval {
     return params;
   }
 
-  /**
-   * Get the external document id for a document specified by an internal document id. If the
-   * internal id doesn't exists, returns null.
-   * 
-   * @param iid The internal document id of the document.
-   * @throws IOException
-   */
-  static String getExternalDocid(int iid) throws IOException {
-    Document d = QryEval.READER.document(iid);
-    String eid = d.get("externalId");
-    return eid;
-  }
-
-  /**
-   * Finds the internal document id for a document specified by its external id, e.g.
-   * clueweb09-enwp00-88-09710. If no such document exists, it throws an exception.
-   * 
-   * @param externalId The external document id of a document.s
-   * @return An internal doc id suitable for finding document vectors etc.
-   * @throws Exception
-   */
-  static int getInternalDocid(String externalId) throws Exception {
-    Query q = new TermQuery(new Term("externalId", externalId));
-
-    IndexSearcher searcher = new IndexSearcher(QryEval.READER);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-    searcher.search(q, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-    if (hits.length < 1) {
-      throw new Exception("External id not found.");
-    } else {
-      return hits[0].doc;
-    }
-  }
-
   /**
    * Print a message indicating the amount of memory used. The caller can indicate whether garbage
    * collection should be performed, which slows the program but reduces memory usage.
@@ -68,19 +68,21 @@ public abstract class Qryop {
    * that the query operator can use.
    * 
    * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
    * @return The argPtrs.
    * @throws IOException
    */
-  public abstract void allocArgPtrs(RetrievalModel r) throws IOException;
+  public abstract void allocArgPtrs(RetrievalModel r, SearchContext context) throws IOException;
 
   /**
    * Evaluates the query operator, including any child operators and returns the result.
    * 
    * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
    * @return The result of evaluating the query.
    * @throws IOException
    */
-  public abstract QryResult evaluate(RetrievalModel r) throws IOException;
+  public abstract QryResult evaluate(RetrievalModel r, SearchContext context) throws IOException;
 
   /**
    * Free this operator's ArgPtrs.
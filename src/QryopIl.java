@@ -17,14 +17,15 @@ public abstract class QryopIl extends Qryop {
    * pointers that the query operator can use.
    * 
    * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
    * @return void
    * @throws IOException
    */
-  public void allocArgPtrs(RetrievalModel r) throws IOException {
+  public void allocArgPtrs(RetrievalModel r, SearchContext context) throws IOException {
 
     for (int i = 0; i < this.args.size(); i++) {
       ArgPtr ptri = new ArgPtr();
-      ptri.invList = this.args.get(i).evaluate(r).invertedList;
+      ptri.invList = this.args.get(i).evaluate(r, context).invertedList;
       ptri.scoreList = null;
       ptri.nextDoc = 0;
 
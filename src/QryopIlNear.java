@@ -0,0 +1,94 @@
+/**
+ * This class implements the NEAR/n operator for all retrieval models. It matches its arguments in
+ * order, each one at most n positions after the previous one. A match is recorded at the position
+ * of the last argument, and the positions of a match are not used by another match.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class QryopIlNear extends QryopIlProximity {
+
+  /**
+   * Create a NEAR/n operator.
+   *
+   * @param distance The maximum distance n between consecutive arguments.
+   * @param q The query arguments.
+   */
+  public QryopIlNear(int distance, Qryop... q) {
+    super(distance);
+    for (int i = 0; i < q.length; i++)
+      this.args.add(q[i]);
+  }
+
+  @Override
+  protected void match(InvList[] lists, int[] postings, int[] ptrs, int docid,
+      Postings.Builder builder) {
+
+    int n = lists.length;
+    for (int i = 0; i < n; i++) {
+      ptrs[i] = 0;
+    }
+    boolean started = false;
+
+    // Every argument pointer only moves forward, so the pass is linear in the positions.
+    while (ptrs[0] < lists[0].getTf(postings[0])) {
+      int previous = lists[0].getPosition(postings[0], ptrs[0]);
+      boolean matched = true;
+      for (int i = 1; i < n; i++) {
+        int tf = lists[i].getTf(postings[i]);
+        while (ptrs[i] < tf && lists[i].getPosition(postings[i], ptrs[i]) <= previous) {
+          ptrs[i]++;
+        }
+        if (ptrs[i] == tf) {
+          return;
+        }
+        int position = lists[i].getPosition(postings[i], ptrs[i]);
+        if (position - previous > distance) {
+          matched = false;
+          break;
+        }
+        previous = position;
+      }
+
+      if (matched) {
+        if (!started) {
+          builder.startPosting(docid);
+          started = true;
+        }
+        builder.addPosition(previous);
+        for (int i = 1; i < n; i++) {
+          ptrs[i]++;
+        }
+      }
+      ptrs[0]++;
+    }
+  }
+
+  /*
+   * Return a string version of this query operator.
+   *
+   * @return The string version of this query operator.
+   */
+  @Override
+  public String toString() {
+    String result = new String();
+
+    for (int i = 0; i < this.args.size(); i++)
+      result += this.args.get(i).toString() + " ";
+
+    return ("#NEAR/" + distance + "( " + result + ")");
+  }
+
+  @Override
+  public void addWeight(double w) {}
+
+  @Override
+  public boolean needWeight() {
+    return false;
+  }
+
+  @Override
+  public void removeWeight() {}
+
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class is the base of the positional operators that match their arguments within a distance
+ * of each other, #NEAR/n and #WINDOW/n. The documents that contain every argument are found by
+ * taking each document of the rarest argument list in turn and advancing the other lists to it
+ * with {@link PostingsCursor}, which skips over their postings by galloping. The positions of each
+ * such document are matched by the subclass in one forward pass over the argument positions.
+ * Matches are written to compact postings, so no positions are boxed.
+ *
+ * @author KyleMao
+ *
+ */
+
+public abstract class QryopIlProximity extends QryopIl {
+
+  protected int distance;
+
+  /**
+   * Create the operator.
+   *
+   * @param distance The distance n of the operator.
+   */
+  protected QryopIlProximity(int distance) {
+    this.distance = distance;
+  }
+
+  @Override
+  public void add(Qryop q) throws IOException {
+    this.args.add(q);
+  }
+
+  /**
+   * Evaluates the query operator, including any child operators and returns the result.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
+   * @return The result of evaluating the query.
+   * @throws IOException
+   */
+  @Override
+  public QryResult evaluate(RetrievalModel r, SearchContext context) throws IOException {
+
+    allocArgPtrs(r, context);
+    int n = argPtrs.size();
+    InvList[] lists = new InvList[n];
+    for (int i = 0; i < n; i++) {
+      lists[i] = argPtrs.get(i).invList;
+    }
+    freeArgPtrs();
+
+    String field = (n > 0) ? lists[0].field : null;
+    Postings.Builder builder = new Postings.Builder(field, 16);
+    if (n == 0) {
+      return result(builder);
+    }
+
+    // Cursors in increasing order of df: the rarest list proposes candidate documents, and the
+    // others gallop to them.
+    PostingsCursor[] cursors = new PostingsCursor[n];
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      cursors[i] = new PostingsCursor(lists[i]);
+      order[i] = i;
+    }
+    final InvList[] sortLists = lists;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return sortLists[a].df - sortLists[b].df;
+      }
+    });
+
+    int[] postings = new int[n];
+    int[] positionPtrs = new int[n];
+    int docid = cursors[order[0]].docid();
+    while (docid != PostingsCursor.NO_MORE_DOCS) {
+      boolean found = true;
+      for (int k = 1; k < n; k++) {
+        int d = cursors[order[k]].advance(docid);
+        if (d != docid) {
+          docid = cursors[order[0]].advance(d);
+          found = false;
+          break;
+        }
+      }
+      if (found) {
+        for (int i = 0; i < n; i++) {
+          postings[i] = cursors[i].index();
+        }
+        match(lists, postings, positionPtrs, docid, builder);
+        docid = cursors[order[0]].next();
+      }
+    }
+    return result(builder);
+  }
+
+  private static QryResult result(Postings.Builder builder) {
+    QryResult result = new QryResult();
+    result.invertedList = new InvList(builder.build());
+    return result;
+  }
+
+  /**
+   * Match the positions of the arguments in a document that contains all of them, and add a
+   * posting with the match positions if there is any.
+   *
+   * @param lists The inverted lists of the arguments.
+   * @param postings The index of the document's posting in each list.
+   * @param ptrs Scratch space for one position index per argument.
+   * @param docid The document.
+   * @param builder The postings being built.
+   */
+  protected abstract void match(InvList[] lists, int[] postings, int[] ptrs, int docid,
+      Postings.Builder builder);
+
+}
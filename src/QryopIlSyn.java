@@ -0,0 +1,126 @@
+/**
+ * This class implements the SYN operator for all retrieval models. Its arguments are treated as one
+ * term: the inverted list is the union of the argument lists, with the positions of a document
+ * merged in order. The lists are merged in one pass into compact postings.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.IOException;
+
+public class QryopIlSyn extends QryopIl {
+
+  /**
+   * It is convenient for the constructor to accept a variable number of arguments. Thus new
+   * QryopIlSyn (arg1, arg2, arg3, ...).
+   *
+   * @param q A query argument (a query operator).
+   */
+  public QryopIlSyn(Qryop... q) {
+    for (int i = 0; i < q.length; i++)
+      this.args.add(q[i]);
+  }
+
+  @Override
+  public void add(Qryop q) throws IOException {
+    this.args.add(q);
+  }
+
+  /**
+   * Evaluates the query operator, including any child operators and returns the result.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
+   * @return The result of evaluating the query.
+   * @throws IOException
+   */
+  @Override
+  public QryResult evaluate(RetrievalModel r, SearchContext context) throws IOException {
+
+    allocArgPtrs(r, context);
+    int n = argPtrs.size();
+    InvList[] lists = new InvList[n];
+    int expectedDf = 0;
+    for (int i = 0; i < n; i++) {
+      lists[i] = argPtrs.get(i).invList;
+      expectedDf = Math.max(expectedDf, lists[i].df);
+    }
+    freeArgPtrs();
+
+    Postings.Builder builder = new Postings.Builder((n > 0) ? lists[0].field : null, expectedDf);
+    int[] next = new int[n];
+    int[] ptrs = new int[n];
+    while (true) {
+      int docid = Integer.MAX_VALUE;
+      for (int i = 0; i < n; i++) {
+        if (next[i] < lists[i].df) {
+          docid = Math.min(docid, lists[i].getDocid(next[i]));
+        }
+      }
+      if (docid == Integer.MAX_VALUE) {
+        break;
+      }
+
+      // Merge the positions of the lists that contain the document.
+      builder.startPosting(docid);
+      for (int i = 0; i < n; i++) {
+        ptrs[i] = (next[i] < lists[i].df && lists[i].getDocid(next[i]) == docid) ? 0 : -1;
+      }
+      while (true) {
+        int minArg = -1;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+          if (ptrs[i] >= 0 && ptrs[i] < lists[i].getTf(next[i])) {
+            int position = lists[i].getPosition(next[i], ptrs[i]);
+            if (position < min) {
+              min = position;
+              minArg = i;
+            }
+          }
+        }
+        if (minArg < 0) {
+          break;
+        }
+        builder.addPosition(min);
+        ptrs[minArg]++;
+      }
+      for (int i = 0; i < n; i++) {
+        if (ptrs[i] >= 0) {
+          next[i]++;
+        }
+      }
+    }
+
+    QryResult result = new QryResult();
+    result.invertedList = new InvList(builder.build());
+    return result;
+  }
+
+  /*
+   * Return a string version of this query operator.
+   *
+   * @return The string version of this query operator.
+   */
+  @Override
+  public String toString() {
+    String result = new String();
+
+    for (int i = 0; i < this.args.size(); i++)
+      result += this.args.get(i).toString() + " ";
+
+    return ("#SYN( " + result + ")");
+  }
+
+  @Override
+  public void addWeight(double w) {}
+
+  @Override
+  public boolean needWeight() {
+    return false;
+  }
+
+  @Override
+  public void removeWeight() {}
+
+}
@@ -51,15 +51,34 @@ public class QryopIlTerm extends QryopIl {
    * Evaluates the query operator and returns the result.
    * 
    * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
    * @return The result of evaluating the query.
    * @throws IOException
    */
-  public QryResult evaluate(RetrievalModel r) throws IOException {
+  public QryResult evaluate(RetrievalModel r, SearchContext context) throws IOException {
     QryResult result = new QryResult();
-    result.invertedList = new InvList(this.term, this.field);
+    result.invertedList = new InvList(context.getPostings(this.term, this.field));
     return result;
   }
 
+  /**
+   * Get the term string.
+   * 
+   * @return The processed (stemmed, lower-cased, etc) term.
+   */
+  public String getTerm() {
+    return this.term;
+  }
+
+  /**
+   * Get the field the term matches in.
+   * 
+   * @return The field name.
+   */
+  public String getField() {
+    return this.field;
+  }
+
   /*
    * Return a string version of this query operator.
    * 
@@ -0,0 +1,93 @@
+/**
+ * This class implements the WINDOW/n operator for all retrieval models. It matches its arguments in
+ * any order within a window of n positions, i.e. the last of them is less than n positions after
+ * the first. A match is recorded at its last position, and the positions of a match are not used by
+ * another match.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class QryopIlWindow extends QryopIlProximity {
+
+  /**
+   * Create a WINDOW/n operator.
+   *
+   * @param distance The size n of the window.
+   * @param q The query arguments.
+   */
+  public QryopIlWindow(int distance, Qryop... q) {
+    super(distance);
+    for (int i = 0; i < q.length; i++)
+      this.args.add(q[i]);
+  }
+
+  @Override
+  protected void match(InvList[] lists, int[] postings, int[] ptrs, int docid,
+      Postings.Builder builder) {
+
+    int n = lists.length;
+    for (int i = 0; i < n; i++) {
+      ptrs[i] = 0;
+    }
+    boolean started = false;
+
+    // Slide the window by advancing the argument at its start until some argument runs out.
+    while (true) {
+      int minArg = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int i = 0; i < n; i++) {
+        if (ptrs[i] == lists[i].getTf(postings[i])) {
+          return;
+        }
+        int position = lists[i].getPosition(postings[i], ptrs[i]);
+        if (position < min) {
+          min = position;
+          minArg = i;
+        }
+        max = Math.max(max, position);
+      }
+
+      if (max - min < distance) {
+        if (!started) {
+          builder.startPosting(docid);
+          started = true;
+        }
+        builder.addPosition(max);
+        for (int i = 0; i < n; i++) {
+          ptrs[i]++;
+        }
+      } else {
+        ptrs[minArg]++;
+      }
+    }
+  }
+
+  /*
+   * Return a string version of this query operator.
+   *
+   * @return The string version of this query operator.
+   */
+  @Override
+  public String toString() {
+    String result = new String();
+
+    for (int i = 0; i < this.args.size(); i++)
+      result += this.args.get(i).toString() + " ";
+
+    return ("#WINDOW/" + distance + "( " + result + ")");
+  }
+
+  @Override
+  public void addWeight(double w) {}
+
+  @Override
+  public boolean needWeight() {
+    return false;
+  }
+
+  @Override
+  public void removeWeight() {}
+
+}
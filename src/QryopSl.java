@@ -16,10 +16,11 @@ public abstract class QryopSl extends Qryop {
    * that the query operator can use.
    * 
    * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
    * @return void
    * @throws IOException
    */
-  public void allocArgPtrs(RetrievalModel r) throws IOException {
+  public void allocArgPtrs(RetrievalModel r, SearchContext context) throws IOException {
 
     for (int i = 0; i < this.args.size(); i++) {
 
@@ -30,7 +31,7 @@ public abstract class QryopSl extends Qryop {
 
       ArgPtr ptri = new ArgPtr();
       ptri.invList = null;
-      ptri.scoreList = this.args.get(i).evaluate(r).docScores;
+      ptri.scoreList = this.args.get(i).evaluate(r, context).docScores;
       ptri.nextDoc = 0;
 
       this.argPtrs.add(ptri);
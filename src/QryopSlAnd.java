@@ -0,0 +1,144 @@
+/**
+ * This class implements the AND operator for the Indri retrieval model. The score of a document is
+ * the geometric mean of the scores of the arguments, where an argument that does not match the
+ * document contributes its default score. The argument score lists are merged in one pass in docid
+ * order.
+ * 
+ * @author KyleMao
+ *
+ */
+
+import java.io.IOException;
+
+public class QryopSlAnd extends QryopSl {
+
+  /**
+   * It is convenient for the constructor to accept a variable number of arguments. Thus new
+   * QryopSlAnd (arg1, arg2, arg3, ...).
+   * 
+   * @param q A query argument (a query operator).
+   */
+  public QryopSlAnd(Qryop... q) {
+    for (int i = 0; i < q.length; i++)
+      this.args.add(q[i]);
+  }
+
+  /**
+   * Calculate the default score for the specified document if it does not match the query operator,
+   * the geometric mean of the default scores of the arguments.
+   * 
+   * @param r A retrieval model that controls how the operator behaves.
+   * @param docid The internal id of the document that needs a default score.
+   * @return The default score.
+   */
+  @Override
+  public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+
+    if (!(r instanceof RetrievalModelIndri)) {
+      return 0.0;
+    }
+    double score = 1.0;
+    double power = 1.0 / this.args.size();
+    for (Qryop arg : this.args) {
+      score *= Math.pow(((QryopSl) arg).getDefaultScore(r, docid), power);
+    }
+    return score;
+  }
+
+  /**
+   * Appends an argument to the list of query operator arguments. This simplifies the design of some
+   * query parsing architectures.
+   * 
+   * @param {q} q The query argument (query operator) to append
+   * @return void
+   * @throws IOException
+   */
+  @Override
+  public void add(Qryop q) throws IOException {
+    this.args.add(q);
+  }
+
+  /**
+   * Evaluates the query operator, including any child operators and returns the result.
+   * 
+   * @param r A retrieval model that controls how the operator behaves
+   * @param context The search context.
+   * @return The result of evaluating the query
+   * @throws IOException
+   */
+  @Override
+  public QryResult evaluate(RetrievalModel r, SearchContext context) throws IOException {
+
+    if (r instanceof RetrievalModelIndri) {
+      return evaluateIndri(r, context);
+    }
+
+    return null;
+  }
+
+  /**
+   * Evaluates the query operator for Indri retrieval model, including any child operators and
+   * returns the result.
+   * 
+   * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
+   * @return The result of evaluating the query.
+   * @throws IOException
+   */
+  public QryResult evaluateIndri(RetrievalModel r, SearchContext context) throws IOException {
+
+    allocArgPtrs(r, context);
+    QryResult result = new QryResult();
+    double power = 1.0 / argPtrs.size();
+
+    while (!isListEnd()) {
+      int docid = getMinDocid();
+      double score = 1.0;
+      for (int i = 0; i < argPtrs.size(); i++) {
+        ArgPtr argPtr = argPtrs.get(i);
+        double argScore;
+        if (argPtr.nextDoc < argPtr.scoreList.scores.size()
+            && argPtr.scoreList.getDocid(argPtr.nextDoc) == docid) {
+          argScore = argPtr.scoreList.getDocidScore(argPtr.nextDoc++);
+        } else {
+          argScore = ((QryopSl) this.args.get(i)).getDefaultScore(r, docid);
+        }
+        score *= Math.pow(argScore, power);
+      }
+      result.docScores.add(docid, score);
+    }
+
+    freeArgPtrs();
+
+    return result;
+  }
+
+  /**
+   * Return a string version of this query operator.
+   * 
+   * @return The string version of this query operator.
+   */
+  @Override
+  public String toString() {
+    String result = new String();
+
+    for (int i = 0; i < this.args.size(); i++)
+      result += this.args.get(i).toString() + " ";
+
+    return ("#AND( " + result + ")");
+  }
+
+  @Override
+  public void addWeight(double w) throws IOException {
+  }
+
+  @Override
+  public boolean needWeight() {
+    return false;
+  }
+
+  @Override
+  public void removeWeight() throws IOException {
+  }
+
+}
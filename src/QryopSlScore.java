@@ -9,9 +9,18 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.NumericDocValues;
+
 public class QryopSlScore extends QryopSl {
 
   private String field;
+  private double qtf = 1.0;
+
+  // Saved by Indri evaluation for getDefaultScore
+  private DocLengthStore dls;
+  private double p_mle;
+  private double mu;
+  private double lambda;
 
   /**
    * Construct a new SCORE operator. The SCORE operator accepts just one argument.
@@ -23,6 +32,19 @@ public class QryopSlScore extends QryopSl {
     this.args.add(q);
   }
 
+  /**
+   * Construct a new SCORE operator for an argument that occurs qtf times in the query. BM25 weights
+   * the argument by its query term frequency instead of scoring it qtf times.
+   * 
+   * @param q The query operator argument.
+   * @param qtf The query term frequency.
+   * @return @link{QryopSlScore}
+   */
+  public QryopSlScore(Qryop q, double qtf) {
+    this.args.add(q);
+    this.qtf = qtf;
+  }
+
   /**
    * Construct a new SCORE operator. Allow a SCORE operator to be created with no arguments. This
    * simplifies the design of some query parsing architectures.
@@ -45,13 +67,16 @@ public class QryopSlScore extends QryopSl {
    * Evaluate the query operator.
    * 
    * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
    * @return The result of evaluating the query.
    * @throws IOException
    */
-  public QryResult evaluate(RetrievalModel r) throws IOException {
+  public QryResult evaluate(RetrievalModel r, SearchContext context) throws IOException {
 
     if (r instanceof RetrievalModelBM25) {
-      return (evaluateBM25(r));
+      return (evaluateBM25(r, context));
+    } else if (r instanceof RetrievalModelIndri) {
+      return (evaluateIndri(r, context));
     }
 
     return null;
@@ -61,15 +86,16 @@ public class QryopSlScore extends QryopSl {
    * Evaluate the query operator for BM25 retrieval model.
    * 
    * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
    * @return The result of evaluating the query.
    * @throws IOException
    */
-  public QryResult evaluateBM25(RetrievalModel r) throws IOException {
+  public QryResult evaluateBM25(RetrievalModel r, SearchContext context) throws IOException {
 
-    DocLengthStore dls = new DocLengthStore(QryEval.READER);
+    DocLengthStore dls = context.getDocLengths();
 
     // Evaluate the query argument.
-    QryResult result = args.get(0).evaluate(r);
+    QryResult result = args.get(0).evaluate(r, context);
 
     // No need to save the parameters into SCORE operator because BM25 does not make use of
     // QryopSlScore.defaultScore()
@@ -77,22 +103,31 @@ public class QryopSlScore extends QryopSl {
     double k_1 = r.getParameter("k_1");
     double k_3 = r.getParameter("k_3");
     this.field = result.invertedList.field;
-    double N = QryEval.READER.numDocs();
-    double avglen =
-        (double) QryEval.READER.getSumTotalTermFreq(field)
-            / (double) QryEval.READER.getDocCount(field);
-    double qtf = 1.0;
+    double N = context.getReader().numDocs();
+    double avglen = context.getAverageLength(field);
     double df = result.invertedList.df;
 
+    // Postings are in docid order, so the segment (leaf) of each document is found by walking
+    // forward, and its length is read from that segment's norms.
+    int leaf = -1;
+    int leafEnd = 0;
+    NumericDocValues norms = null;
+
     for (int i = 0; i < df; i++) {
-      double tf = result.invertedList.postings.get(i).tf;
-      double docLen = dls.getDocLength(field, result.invertedList.postings.get(i).docid);
+      int docid = result.invertedList.getDocid(i);
+      double tf = result.invertedList.getTf(i);
+      while (docid >= leafEnd) {
+        leaf++;
+        leafEnd = dls.getDocBase(leaf + 1);
+        norms = dls.getLeafValues(field, leaf);
+      }
+      double docLen = (norms == null) ? 0 : norms.get(docid - dls.getDocBase(leaf));
       double idf_weight = Math.log((N - df + 0.5) / (df + 0.5));
       idf_weight = Math.max(idf_weight, 0.0);
       double tf_weight = tf / (tf + k_1 * ((1 - b) + b * docLen / avglen));
       double user_weight = (k_3 + 1) * qtf / (k_3 + qtf);
       double score = idf_weight * tf_weight * user_weight;
-      result.docScores.add(result.invertedList.postings.get(i).docid, score);
+      result.docScores.add(docid, score);
     }
 
     // The SCORE operator should not return a populated inverted list.
@@ -103,6 +138,57 @@ public class QryopSlScore extends QryopSl {
     return result;
   }
 
+  /**
+   * Evaluate the query operator for Indri retrieval model. The parameters and the collection
+   * probability of the argument are saved for getDefaultScore.
+   * 
+   * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
+   * @return The result of evaluating the query.
+   * @throws IOException
+   */
+  public QryResult evaluateIndri(RetrievalModel r, SearchContext context) throws IOException {
+
+    this.dls = context.getDocLengths();
+
+    // Evaluate the query argument.
+    QryResult result = args.get(0).evaluate(r, context);
+
+    this.mu = r.getParameter("mu");
+    this.lambda = r.getParameter("lambda");
+    this.field = result.invertedList.field;
+    if (field == null) {
+      this.p_mle = 0.0;
+      return result;
+    }
+    // A term that does not occur in the collection counts as half an occurrence, so that it does
+    // not zero the score of every document.
+    this.p_mle =
+        Math.max(result.invertedList.ctf, 0.5) / context.getReader().getSumTotalTermFreq(field);
+
+    int leaf = -1;
+    int leafEnd = 0;
+    NumericDocValues norms = null;
+
+    for (int i = 0; i < result.invertedList.df; i++) {
+      int docid = result.invertedList.getDocid(i);
+      double tf = result.invertedList.getTf(i);
+      while (docid >= leafEnd) {
+        leaf++;
+        leafEnd = dls.getDocBase(leaf + 1);
+        norms = dls.getLeafValues(field, leaf);
+      }
+      double docLen = (norms == null) ? 0 : norms.get(docid - dls.getDocBase(leaf));
+      double score = (1.0 - lambda) * (tf + mu * p_mle) / (docLen + mu) + lambda * p_mle;
+      result.docScores.add(docid, score);
+    }
+
+    if (result.invertedList.df > 0)
+      result.invertedList = new InvList();
+
+    return result;
+  }
+
   /*
    * Calculate the default score for a document that does not match the query argument. This score
    * is 0 for many retrieval models, but not all retrieval models.
@@ -114,9 +200,23 @@ public class QryopSlScore extends QryopSl {
    * @return The default score.
    */
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+
+    if (r instanceof RetrievalModelIndri && field != null) {
+      double docLen = dls.getDocLength(field, (int) docid);
+      return (1.0 - lambda) * mu * p_mle / (docLen + mu) + lambda * p_mle;
+    }
     return 0.0;
   }
 
+  /**
+   * Get the query term frequency of the argument.
+   * 
+   * @return The query term frequency.
+   */
+  public double getQtf() {
+    return qtf;
+  }
+
   /**
    * Return a string version of this query operator.
    * 
@@ -129,6 +229,9 @@ public class QryopSlScore extends QryopSl {
     for (Iterator<Qryop> i = this.args.iterator(); i.hasNext();)
       result += (i.next().toString() + " ");
 
+    if (qtf != 1.0) {
+      return ("#SCORE[qtf=" + (int) qtf + "]( " + result + ")");
+    }
     return ("#SCORE( " + result + ")");
   }
 
@@ -6,9 +6,14 @@
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.lucene.index.NumericDocValues;
+
 public class QryopSlSum extends QryopSl {
 
   /**
@@ -52,14 +57,17 @@ public class QryopSlSum extends QryopSl {
    * Evaluates the query operator, including any child operators and returns the result.
    * 
    * @param r A retrieval model that controls how the operator behaves
+   * @param context The search context.
    * @return The result of evaluating the query
    * @throws IOException
    */
   @Override
-  public QryResult evaluate(RetrievalModel r) throws IOException {
+  public QryResult evaluate(RetrievalModel r, SearchContext context) throws IOException {
 
     if (r instanceof RetrievalModelBM25) {
-      return evaluateBM25(r);
+      return evaluateBM25(r, context);
+    } else if (r instanceof RetrievalModelBM25F) {
+      return evaluateBM25F((RetrievalModelBM25F) r, context);
     }
 
     return null;
@@ -70,13 +78,14 @@ public class QryopSlSum extends QryopSl {
    * returns the result.
    * 
    * @param r A retrieval model that controls how the operator behaves.
+   * @param context The search context.
    * @return The result of evaluating the query.
    * @throws IOException
    */
-  public QryResult evaluateBM25(RetrievalModel r) throws IOException {
+  public QryResult evaluateBM25(RetrievalModel r, SearchContext context) throws IOException {
 
     // Initialization
-    allocArgPtrs(r);
+    allocArgPtrs(r, context);
     QryResult result = new QryResult();
 
     Map<Integer, Double> docScores = new HashMap<Integer, Double>();
@@ -101,6 +110,149 @@ public class QryopSlSum extends QryopSl {
     return result;
   }
 
+  /**
+   * Evaluates a bag-of-words query for BM25F retrieval model. The postings of every (term, field)
+   * pair are merged document-at-a-time in one pass; for each document the term's field frequencies
+   * are combined into its pseudo-frequency, and the number of documents that contain the term in
+   * any field is counted for its idf. The documents are scored when the pass is over.
+   * 
+   * @param r The BM25F retrieval model.
+   * @param context The search context.
+   * @return The result of evaluating the query.
+   * @throws IOException
+   */
+  public QryResult evaluateBM25F(RetrievalModelBM25F r, SearchContext context)
+      throws IOException {
+
+    QryResult result = new QryResult();
+    List<QryopIlTerm> terms = getTerms();
+    if (terms == null) {
+      System.err.println("Error: BM25F only evaluates a #SUM of terms: " + this);
+      return result;
+    }
+
+    String[] fields = r.getFields();
+    int numTerms = terms.size();
+    int numFields = fields.length;
+    double k_1 = r.getParameter("k_1");
+    double k_3 = r.getParameter("k_3");
+    double[] weights = new double[numFields];
+    double[] bs = new double[numFields];
+    double[] avglens = new double[numFields];
+    for (int f = 0; f < numFields; f++) {
+      weights[f] = r.getParameter("weight:" + fields[f]);
+      bs[f] = r.getParameter("b:" + fields[f]);
+      avglens[f] = context.getAverageLength(fields[f]);
+    }
+
+    // One cursor per (term, field), in term-major order. A term matches in every field, whatever
+    // its field suffix.
+    InvList[] lists = new InvList[numTerms * numFields];
+    PostingsCursor[] cursors = new PostingsCursor[numTerms * numFields];
+    for (int t = 0; t < numTerms; t++) {
+      for (int f = 0; f < numFields; f++) {
+        lists[t * numFields + f] =
+            new QryopIlTerm(terms.get(t).getTerm(), fields[f]).evaluate(r, context).invertedList;
+        cursors[t * numFields + f] = new PostingsCursor(lists[t * numFields + f]);
+      }
+    }
+
+    // Document-at-a-time: the pseudo-frequencies of the terms in each matching document
+    DocLengthStore dls = context.getDocLengths();
+    int leaf = -1;
+    int leafEnd = 0;
+    NumericDocValues[] norms = new NumericDocValues[numFields];
+    int numDocs = 0;
+    int[] docids = new int[64];
+    double[] pseudoTfs = new double[64 * numTerms];
+    int[] termDfs = new int[numTerms];
+    while (true) {
+      int docid = PostingsCursor.NO_MORE_DOCS;
+      for (PostingsCursor cursor : cursors) {
+        docid = Math.min(docid, cursor.docid());
+      }
+      if (docid == PostingsCursor.NO_MORE_DOCS) {
+        break;
+      }
+
+      // Documents come in docid order, so the segment (leaf) of each is found by walking forward.
+      while (docid >= leafEnd) {
+        leaf++;
+        leafEnd = dls.getDocBase(leaf + 1);
+        for (int f = 0; f < numFields; f++) {
+          norms[f] = dls.getLeafValues(fields[f], leaf);
+        }
+      }
+
+      if (numDocs == docids.length) {
+        docids = Arrays.copyOf(docids, 2 * numDocs);
+        pseudoTfs = Arrays.copyOf(pseudoTfs, 2 * numDocs * numTerms);
+      }
+      docids[numDocs] = docid;
+      for (int t = 0; t < numTerms; t++) {
+        double pseudoTf = 0.0;
+        boolean matched = false;
+        for (int f = 0; f < numFields; f++) {
+          PostingsCursor cursor = cursors[t * numFields + f];
+          if (cursor.docid() == docid) {
+            double tf = lists[t * numFields + f].getTf(cursor.index());
+            double docLen = (norms[f] == null) ? 0 : norms[f].get(docid - dls.getDocBase(leaf));
+            pseudoTf += weights[f] * tf / ((1 - bs[f]) + bs[f] * docLen / avglens[f]);
+            matched = true;
+            cursor.next();
+          }
+        }
+        pseudoTfs[numDocs * numTerms + t] = pseudoTf;
+        if (matched) {
+          termDfs[t]++;
+        }
+      }
+      numDocs++;
+    }
+
+    double N = context.getReader().numDocs();
+    double[] termWeights = new double[numTerms];
+    for (int t = 0; t < numTerms; t++) {
+      Qryop arg = this.args.get(t);
+      double qtf = (arg instanceof QryopSlScore) ? ((QryopSlScore) arg).getQtf() : 1.0;
+      double idf_weight = Math.log((N - termDfs[t] + 0.5) / (termDfs[t] + 0.5));
+      idf_weight = Math.max(idf_weight, 0.0);
+      double user_weight = (k_3 + 1) * qtf / (k_3 + qtf);
+      termWeights[t] = idf_weight * user_weight;
+    }
+    for (int i = 0; i < numDocs; i++) {
+      double score = 0.0;
+      for (int t = 0; t < numTerms; t++) {
+        double pseudoTf = pseudoTfs[i * numTerms + t];
+        score += termWeights[t] * pseudoTf / (k_1 + pseudoTf);
+      }
+      result.docScores.add(docids[i], score);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the terms of a bag-of-words query, i.e. a SUM whose arguments are all terms, possibly
+   * wrapped in SCORE operators.
+   * 
+   * @return The term operators, or null if an argument is not a term.
+   */
+  public List<QryopIlTerm> getTerms() {
+
+    List<QryopIlTerm> terms = new ArrayList<QryopIlTerm>();
+    for (Qryop arg : this.args) {
+      if (arg instanceof QryopSlScore && arg.args.size() == 1) {
+        arg = arg.args.get(0);
+      }
+      if (!(arg instanceof QryopIlTerm)) {
+        return null;
+      }
+      terms.add((QryopIlTerm) arg);
+    }
+    return terms;
+  }
+
   /**
    * Return a string version of this query operator.
    * 
@@ -0,0 +1,365 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class parses a query string into a query tree in a single pass over its characters. The
+ * grammar is
+ *
+ * <pre>
+ * query    := args
+ * args     := { separator | arg }
+ * arg      := operator | term
+ * operator := '#' name { whitespace } '(' args ')'
+ * term     := { any character but a separator or parenthesis }
+ * </pre>
+ *
+ * where separators are whitespace and commas. The arguments of the query are the arguments of a
+ * default operator that depends on the retrieval model, #SUM for BM25 and BM25F and #AND for
+ * Indri. #SYN, #NEAR/n and #WINDOW/n take terms and other such operators, and can be used with
+ * BM25 and Indri; #SUM is a BM25 and BM25F operator and #AND and #OR are Indri operators.
+ *
+ * A term may name a field with a suffix such as apple.title; other terms match the body field
+ * (BM25F matches every term in all of its fields). Terms are analyzed (stopped and stemmed), and
+ * terms that analyze to nothing are dropped, as are operators left without arguments.
+ *
+ * Syntax errors are reported with the position in the query string where they were found.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class QueryParser {
+
+  private static String[] FIELDS = {"body", "title", "url", "keywords", "inlink"};
+
+  /**
+   * A syntax error at a position of the query string.
+   */
+  public static class SyntaxError extends Exception {
+
+    private static final long serialVersionUID = 1L;
+    private int position;
+
+    public SyntaxError(String message, int position) {
+      super(message + " at position " + position);
+      this.position = position;
+    }
+
+    /**
+     * The position of the error.
+     *
+     * @return A 0-based character offset in the query string.
+     */
+    public int getPosition() {
+      return position;
+    }
+  }
+
+  private char[] chars;
+  private int pos;
+  private RetrievalModel model;
+  private EnglishAnalyzerConfigurable analyzer;
+
+  /**
+   * Create a parser for a query string.
+   *
+   * @param qString The query string.
+   * @param analyzer The analyzer that query terms are tokenized and stemmed with.
+   */
+  public QueryParser(String qString, EnglishAnalyzerConfigurable analyzer) {
+    this.analyzer = analyzer;
+    this.chars = qString.toCharArray();
+    this.pos = 0;
+  }
+
+  /**
+   * Parse the query.
+   *
+   * @param r The retrieval model, which selects the default operator.
+   * @return The query tree, or null if the retrieval model has no default operator.
+   * @throws SyntaxError
+   * @throws IOException
+   */
+  public Qryop parse(RetrievalModel r) throws SyntaxError, IOException {
+
+    Qryop root;
+    if (r instanceof RetrievalModelBM25 || r instanceof RetrievalModelBM25F) {
+      root = new QryopSlSum();
+    } else if (r instanceof RetrievalModelIndri) {
+      root = new QryopSlAnd();
+    } else {
+      return null;
+    }
+    this.model = r;
+
+    parseArgs(root);
+    if (pos < chars.length) {
+      throw new SyntaxError("Unmatched ')'", pos);
+    }
+    return root;
+  }
+
+  /*
+   * Parse arguments into an operator until a ')' or the end of the query.
+   */
+  private void parseArgs(Qryop op) throws SyntaxError, IOException {
+
+    while (true) {
+      skipSeparators();
+      if (pos == chars.length || chars[pos] == ')') {
+        return;
+      }
+      if (chars[pos] == '(') {
+        throw new SyntaxError("Unexpected '('", pos);
+      }
+
+      if (chars[pos] == '#') {
+        int start = pos;
+        Qryop arg = parseOperator();
+        if (op instanceof QryopIl && !(arg instanceof QryopIl)) {
+          throw new SyntaxError("Only terms and #syn, #near and #window operators can be nested in "
+              + name(op), start);
+        }
+        if (arg.args.size() > 0) {
+          op.add(arg);
+        }
+      } else {
+        QryopIlTerm arg = parseTerm();
+        if (arg != null) {
+          op.add(arg);
+        }
+      }
+    }
+  }
+
+  /*
+   * Parse an operator and its arguments, starting at the '#'.
+   */
+  private Qryop parseOperator() throws SyntaxError, IOException {
+
+    int start = pos++;
+    int nameStart = pos;
+    while (pos < chars.length && isNameChar(chars[pos])) {
+      pos++;
+    }
+    int nameEnd = pos;
+
+    Qryop op = newOperator(nameStart, nameEnd);
+    if (op == null) {
+      throw new SyntaxError("Unknown query operator '" + new String(chars, start, nameEnd - start)
+          + "'", start);
+    }
+    boolean isIndriOp = op instanceof QryopSlAnd || op instanceof QryopSlOr;
+    if ((op instanceof QryopSlSum && model instanceof RetrievalModelIndri)
+        || (isIndriOp && !(model instanceof RetrievalModelIndri))
+        || (op instanceof QryopIl && model instanceof RetrievalModelBM25F)) {
+      throw new SyntaxError("Query operator '" + new String(chars, start, nameEnd - start)
+          + "' is not supported by the retrieval model", start);
+    }
+
+    while (pos < chars.length && isWhitespace(chars[pos])) {
+      pos++;
+    }
+    if (pos == chars.length || chars[pos] != '(') {
+      throw new SyntaxError("Expected '(' after " + new String(chars, start, nameEnd - start), pos);
+    }
+    pos++;
+
+    parseArgs(op);
+    if (pos == chars.length) {
+      throw new SyntaxError("Missing ')' for " + new String(chars, start, nameEnd - start), pos);
+    }
+    pos++;
+
+    // The positions of different fields cannot be matched with each other.
+    if (op instanceof QryopIl) {
+      String field = null;
+      for (Qryop arg : op.args) {
+        String argField = fieldOf(arg);
+        if (field != null && !field.equals(argField)) {
+          throw new SyntaxError("Arguments of " + name(op) + " are in different fields", start);
+        }
+        field = argField;
+      }
+    }
+    return op;
+  }
+
+  /*
+   * Create the operator named by chars[start, end), or return null if there is none. #NEAR and
+   * #WINDOW names end with /n.
+   */
+  private Qryop newOperator(int start, int end) {
+
+    if (matches(start, end, "sum")) {
+      return new QryopSlSum();
+    } else if (matches(start, end, "and")) {
+      return new QryopSlAnd();
+    } else if (matches(start, end, "or")) {
+      return new QryopSlOr();
+    } else if (matches(start, end, "syn")) {
+      return new QryopIlSyn();
+    }
+
+    int slash = start;
+    while (slash < end && chars[slash] != '/') {
+      slash++;
+    }
+    if (slash == end || slash + 1 == end || end - slash > 10) {
+      return null;
+    }
+    int distance = 0;
+    for (int i = slash + 1; i < end; i++) {
+      if (chars[i] < '0' || chars[i] > '9') {
+        return null;
+      }
+      distance = 10 * distance + (chars[i] - '0');
+    }
+    if (matches(start, slash, "near")) {
+      return new QryopIlNear(distance);
+    } else if (matches(start, slash, "window")) {
+      return new QryopIlWindow(distance);
+    }
+    return null;
+  }
+
+  /*
+   * The field of the terms of an inverted list operator.
+   */
+  private static String fieldOf(Qryop op) {
+
+    if (op instanceof QryopIlTerm) {
+      return ((QryopIlTerm) op).getField();
+    }
+    return op.args.isEmpty() ? null : fieldOf(op.args.get(0));
+  }
+
+  /*
+   * The name of an operator for error messages, e.g. #NEAR/3.
+   */
+  private static String name(Qryop op) {
+    String string = op.toString();
+    return string.substring(0, string.indexOf('('));
+  }
+
+  /*
+   * Parse a term with an optional field suffix and analyze it. Returns null if the term is a
+   * stopword.
+   */
+  private QryopIlTerm parseTerm() throws SyntaxError, IOException {
+
+    int start = pos;
+    int dot = -1;
+    int dots = 0;
+    while (pos < chars.length && !isSeparator(chars[pos]) && chars[pos] != '('
+        && chars[pos] != ')') {
+      if (chars[pos] == '.') {
+        dot = pos;
+        dots++;
+      }
+      pos++;
+    }
+
+    // A single '.' followed by a field name selects the field.
+    int termEnd = pos;
+    String field = "body";
+    if (dots == 1) {
+      for (String name : FIELDS) {
+        if (matches(dot + 1, pos, name)) {
+          field = name;
+          termEnd = dot;
+          break;
+        }
+      }
+    }
+
+    String[] processed = analyzer.analyze(new String(chars, start, termEnd - start));
+    if (processed.length > 1) {
+      throw new SyntaxError("Invalid query term '" + new String(chars, start, pos - start) + "'",
+          start);
+    }
+    return (processed.length == 0) ? null : new QryopIlTerm(processed[0], field);
+  }
+
+  private void skipSeparators() {
+    while (pos < chars.length && isSeparator(chars[pos])) {
+      pos++;
+    }
+  }
+
+  /*
+   * Case-insensitive comparison of chars[start, end) with a lower case name.
+   */
+  private boolean matches(int start, int end, String name) {
+
+    if (end - start != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      if (Character.toLowerCase(chars[start + i]) != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isSeparator(char c) {
+    return c == ',' || isWhitespace(c);
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+  }
+
+  private static boolean isNameChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || c == '/';
+  }
+
+  /**
+   * Benchmark the parser on the queries of a query file: the queries are parsed in batches, after
+   * a warmup batch, and the cost per query of each batch is printed.
+   *
+   * @param args queryFile [batchSize] [batches]
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      QryEval.fatalError("Usage:  java QueryParser queryFile [batchSize] [batches]");
+    }
+    int batchSize = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+    int batches = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+    List<String> queries = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(args[0]));
+    String line;
+    while ((line = in.readLine()) != null) {
+      queries.add(line.substring(line.indexOf(':') + 1));
+    }
+    in.close();
+    if (queries.isEmpty()) {
+      QryEval.fatalError("Error: No queries in " + args[0]);
+    }
+
+    RetrievalModel model = new RetrievalModelBM25();
+    EnglishAnalyzerConfigurable analyzer = SearchContext.newAnalyzer();
+    long checksum = 0;
+    for (int batch = -1; batch < batches; batch++) {
+      long startTime = System.nanoTime();
+      for (int i = 0; i < batchSize; i++) {
+        Qryop qTree = new QueryParser(queries.get(i % queries.size()), analyzer).parse(model);
+        checksum += (qTree == null) ? 0 : qTree.args.size();
+      }
+      long elapsed = System.nanoTime() - startTime;
+      System.out.println(String.format("%s: %d queries in %.1f ms, %.0f ns/query",
+          (batch < 0) ? "warmup" : "batch " + batch, batchSize, elapsed / 1e6, (double) elapsed
+              / batchSize));
+    }
+    System.out.println("checksum " + checksum);
+  }
+
+}
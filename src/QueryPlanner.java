@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class rewrites a parsed query tree before it is evaluated. In every #SUM operator
+ *
+ * <ul>
+ * <li>nested #SUM operators are flattened into their parent, which gives the same scores;</li>
+ * <li>repeated terms are collapsed into one #SCORE operator with the number of repetitions as its
+ * query term frequency, instead of being scored once per repetition;</li>
+ * <li>terms that do not occur in their field are dropped, since they match nothing;</li>
+ * <li>the remaining arguments are ordered by increasing document frequency, so that the shortest
+ * lists are evaluated first.</li>
+ * </ul>
+ *
+ * Other operators are left as they are, but the operators nested in them are planned.
+ *
+ * BM25F matches every term in all of the model's fields, whatever its field suffix. For BM25F, a
+ * term's document frequency is therefore summed over the model's fields, and terms are collapsed
+ * by their stem alone, so apple and apple.title are one term with a query term frequency of 2.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class QueryPlanner {
+
+  private SearchContext context;
+  private boolean explain;
+  private long queries = 0;
+  private long collapsed = 0;
+  private long dropped = 0;
+
+  /**
+   * Create a planner.
+   *
+   * @param context The search context that document frequencies are read from.
+   * @param explain Whether to print every plan.
+   */
+  public QueryPlanner(SearchContext context, boolean explain) {
+    this.context = context;
+    this.explain = explain;
+  }
+
+  /**
+   * Create a planner from the planner: parameters, or return null if planning is disabled.
+   *
+   * @param params The parameters read from the .param file.
+   * @param context The search context.
+   * @return The planner or null.
+   */
+  public static QueryPlanner create(Map<String, String> params, SearchContext context) {
+
+    if ("false".equalsIgnoreCase(params.get("planner:enabled"))) {
+      return null;
+    }
+    return new QueryPlanner(context, "true".equalsIgnoreCase(params.get("planner:explain")));
+  }
+
+  /**
+   * Plan a query tree. The tree is rewritten in place.
+   *
+   * @param qTree The parsed query tree.
+   * @param r The retrieval model that the tree will be evaluated with.
+   * @return The planned query tree.
+   * @throws IOException
+   */
+  public Qryop plan(Qryop qTree, RetrievalModel r) throws IOException {
+
+    String original = explain ? qTree.toString() : null;
+    List<String> notes = explain ? new ArrayList<String>() : null;
+    String[] fields =
+        (r instanceof RetrievalModelBM25F) ? ((RetrievalModelBM25F) r).getFields() : null;
+    qTree = rewrite(qTree, fields, notes);
+
+    synchronized (this) {
+      queries++;
+      if (explain) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Plan: ").append(original).append("\n  => ").append(qTree.toString());
+        for (String note : notes) {
+          sb.append("\n     ").append(note);
+        }
+        System.out.println(sb.toString());
+      }
+    }
+    return qTree;
+  }
+
+  /*
+   * Rewrite an operator and the operators nested in it. fields are the fields that every term is
+   * matched in (BM25F), or null if a term is matched in its own field.
+   */
+  private Qryop rewrite(Qryop op, String[] fields, List<String> notes) throws IOException {
+
+    if (op instanceof QryopSlSum) {
+      return rewriteSum((QryopSlSum) op, fields, notes);
+    }
+    for (int i = 0; i < op.args.size(); i++) {
+      op.args.set(i, rewrite(op.args.get(i), fields, notes));
+    }
+    return op;
+  }
+
+  /*
+   * Flatten, collapse, prune and order the arguments of a #SUM.
+   */
+  private Qryop rewriteSum(QryopSlSum sum, String[] fields, List<String> notes)
+      throws IOException {
+
+    // Terms in order of first occurrence with their query term frequencies, and other arguments
+    Map<String, QryopIlTerm> terms = new LinkedHashMap<String, QryopIlTerm>();
+    Map<String, Double> qtfs = new LinkedHashMap<String, Double>();
+    List<Qryop> others = new ArrayList<Qryop>();
+    collectSumArgs(sum, fields, terms, qtfs, others, notes);
+
+    final Map<Qryop, Long> dfs = new LinkedHashMap<Qryop, Long>();
+    List<Qryop> args = new ArrayList<Qryop>();
+    for (Map.Entry<String, QryopIlTerm> entry : terms.entrySet()) {
+      QryopIlTerm term = entry.getValue();
+      double qtf = qtfs.get(entry.getKey());
+      long df = 0;
+      if (fields == null) {
+        df = context.docFreq(term.getField(), term.getTerm());
+      } else {
+        for (String field : fields) {
+          df += context.docFreq(field, term.getTerm());
+        }
+      }
+      if (df == 0) {
+        synchronized (this) {
+          dropped++;
+        }
+        if (notes != null) {
+          notes.add(term + ": df=0, dropped");
+        }
+        continue;
+      }
+      if (qtf > 1) {
+        synchronized (this) {
+          collapsed++;
+        }
+      }
+      if (notes != null) {
+        notes.add(term + ": df=" + df + ", qtf=" + (int) qtf);
+      }
+      Qryop arg = new QryopSlScore(term, qtf);
+      dfs.put(arg, df);
+      args.add(arg);
+    }
+
+    // Other operators have no single df; they are evaluated after the terms.
+    for (Qryop other : others) {
+      args.add(rewrite(other, fields, notes));
+    }
+
+    Collections.sort(args, new Comparator<Qryop>() {
+      @Override
+      public int compare(Qryop a, Qryop b) {
+        Long dfA = dfs.get(a);
+        Long dfB = dfs.get(b);
+        long x = (dfA == null) ? Long.MAX_VALUE : dfA;
+        long y = (dfB == null) ? Long.MAX_VALUE : dfB;
+        return (x < y) ? -1 : ((x == y) ? 0 : 1);
+      }
+    });
+
+    sum.args.clear();
+    sum.args.addAll(args);
+    return sum;
+  }
+
+  /*
+   * Gather the terms of a #SUM and of the #SUMs nested in it, counting repetitions. Terms are the
+   * same if they have the same field, or the same stem if every term is matched in all fields.
+   */
+  private void collectSumArgs(QryopSlSum sum, String[] fields, Map<String, QryopIlTerm> terms,
+      Map<String, Double> qtfs, List<Qryop> others, List<String> notes) {
+
+    for (Qryop arg : sum.args) {
+      double qtf = 1.0;
+      if (arg instanceof QryopSlScore && arg.args.size() == 1
+          && arg.args.get(0) instanceof QryopIlTerm) {
+        qtf = ((QryopSlScore) arg).getQtf();
+        arg = arg.args.get(0);
+      }
+
+      if (arg instanceof QryopSlSum) {
+        collectSumArgs((QryopSlSum) arg, fields, terms, qtfs, others, notes);
+      } else if (arg instanceof QryopIlTerm) {
+        String key = (fields == null) ? arg.toString() : ((QryopIlTerm) arg).getTerm();
+        if (terms.containsKey(key)) {
+          qtfs.put(key, qtfs.get(key) + qtf);
+        } else {
+          terms.put(key, (QryopIlTerm) arg);
+          qtfs.put(key, qtf);
+        }
+      } else {
+        others.add(arg);
+      }
+    }
+  }
+
+  /**
+   * Print the planner statistics.
+   */
+  public synchronized void printStats() {
+    System.out.println(String.format(
+        "Query planner: %d queries, %d repeated terms collapsed, %d absent terms dropped", queries,
+        collapsed, dropped));
+  }
+
+}
@@ -0,0 +1,339 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * This class caches the results of queries. A result is keyed by the retrieval model with its
+ * parameters, the evaluation settings of the search context (query planning and sharding) and the
+ * normalized query tree, i.e. the tree string after tokenization and stemming, so that queries
+ * that only differ in case, stopwords or inflection share an entry. Only the top k
+ * documents are kept; documents tied with the k'th score are kept too, so that the ranking after
+ * sorting by external id is the same as for the full result.
+ *
+ * The memory tier holds at most a configured number of bytes and evicts the least recently used
+ * results first. An optional disk tier is an append-only log of results that survives between runs.
+ * Its header records the index version, and a log written for another index is discarded.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class QueryResultCache {
+
+  private static int MAGIC = 0x51524331; // "QRC1"
+  private static int VERSION = 2;
+  private static int HEADER_SIZE = 4 + 4 + 4 + 8;
+  private static int MAX_RAW_QUERIES = 10000;
+
+  private SearchContext context;
+  private int topK;
+  private long maxBytes;
+  private long bytes = 0;
+  private long hits = 0;
+  private long diskHits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  private LinkedHashMap<String, ScoreList> entries = new LinkedHashMap<String, ScoreList>(16,
+      0.75f, true);
+
+  // Normalized keys of raw query strings, so that a repeated query is not parsed again
+  private LinkedHashMap<String, String> rawKeys = new LinkedHashMap<String, String>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_RAW_QUERIES;
+    }
+  };
+
+  // The disk tier and the offsets of its results
+  private RandomAccessFile log;
+  private Map<String, Long> logOffsets = new HashMap<String, Long>();
+
+  /**
+   * Create a cache with a memory tier only.
+   *
+   * @param context The search context that queries are evaluated in.
+   * @param topK The number of top documents kept for each query.
+   * @param maxBytes The byte budget of the memory tier.
+   */
+  public QueryResultCache(SearchContext context, int topK, long maxBytes) {
+    this.context = context;
+    this.topK = topK;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Create a cache from the queryCache: parameters, or return null if the cache is not enabled.
+   *
+   * @param params The parameters read from the .param file.
+   * @param context The search context. Its index version is checked against the disk tier.
+   * @return The cache or null.
+   * @throws IOException
+   */
+  public static QueryResultCache create(Map<String, String> params, SearchContext context)
+      throws IOException {
+
+    if (!params.containsKey("queryCache:maxBytes") && !params.containsKey("queryCache:file")) {
+      return null;
+    }
+
+    int topK = 1000;
+    if (params.containsKey("queryCache:topK")) {
+      topK = Integer.parseInt(params.get("queryCache:topK"));
+    }
+    long maxBytes = 64L << 20;
+    if (params.containsKey("queryCache:maxBytes")) {
+      maxBytes = Long.parseLong(params.get("queryCache:maxBytes"));
+    }
+
+    QueryResultCache cache = new QueryResultCache(context, topK, maxBytes);
+    if (params.containsKey("queryCache:file")) {
+      cache.openLog(new File(params.get("queryCache:file")),
+          SearchContext.getIndexVersion(context.getReader()), context.getReader().maxDoc());
+    }
+    return cache;
+  }
+
+  /**
+   * Get the result of a query, evaluating it on a miss.
+   *
+   * @param qString The query string.
+   * @param r The retrieval model.
+   * @return The result with the top k documents, or null if the query cannot be parsed.
+   * @throws IOException
+   */
+  public QryResult get(String qString, RetrievalModel r) throws IOException {
+    return get(qString, null, r);
+  }
+
+  /**
+   * Get the result of a query that may already be parsed, evaluating it on a miss.
+   *
+   * @param qString The query string.
+   * @param qTree The query tree parsed from qString with the retrieval model and not yet
+   *        evaluated, or null to parse it if it is needed.
+   * @param r The retrieval model.
+   * @return The result with the top k documents, or null if the query cannot be parsed.
+   * @throws IOException
+   */
+  public QryResult get(String qString, Qryop qTree, RetrievalModel r) throws IOException {
+
+    String prefix = r.toString() + "|k=" + topK + "|" + context.getEvaluationKey() + "|";
+    String key;
+    synchronized (this) {
+      key = rawKeys.get(prefix + qString);
+    }
+    if (key == null) {
+      if (qTree == null) {
+        qTree = context.parseQuery(qString, r);
+      }
+      if (qTree == null) {
+        return null;
+      }
+      key = prefix + qTree.toString();
+      synchronized (this) {
+        rawKeys.put(prefix + qString, key);
+      }
+    }
+
+    ScoreList scores = lookup(key);
+    if (scores == null) {
+      if (qTree == null) {
+        qTree = context.parseQuery(qString, r);
+      }
+      scores = context.evaluate(qTree, r).docScores.topK(topK);
+      put(key, scores, true);
+    }
+
+    QryResult result = new QryResult();
+    result.docScores = scores;
+    return result;
+  }
+
+  /*
+   * Look a key up in the memory tier, then in the disk tier.
+   */
+  private synchronized ScoreList lookup(String key) throws IOException {
+
+    ScoreList scores = entries.get(key);
+    if (scores != null) {
+      hits++;
+      return scores;
+    }
+
+    Long offset = logOffsets.get(key);
+    if (offset != null) {
+      log.seek(offset);
+      scores = readScores(log);
+      diskHits++;
+      put(key, scores, false);
+      return scores;
+    }
+
+    misses++;
+    return null;
+  }
+
+  /*
+   * Add a result to the memory tier, and to the disk tier if it is new. Evicts least recently used
+   * results until the memory tier fits its budget.
+   */
+  private synchronized void put(String key, ScoreList scores, boolean isNew) throws IOException {
+
+    if (isNew && log != null && !logOffsets.containsKey(key)) {
+      long offset = log.length();
+      log.seek(offset);
+      byte[] keyBytes = key.getBytes("UTF-8");
+      byte[] record = new byte[4 + keyBytes.length + 4 + 12 * scores.scores.size()];
+      ByteBuffer buf = ByteBuffer.wrap(record);
+      buf.putInt(keyBytes.length);
+      buf.put(keyBytes);
+      buf.putInt(scores.scores.size());
+      for (int i = 0; i < scores.scores.size(); i++) {
+        buf.putInt(scores.getDocid(i));
+        buf.putDouble(scores.getDocidScore(i));
+      }
+      log.write(record);
+      logOffsets.put(key, offset + 4 + keyBytes.length);
+    }
+
+    long size = sizeInBytes(key, scores);
+    if (size > maxBytes || entries.containsKey(key)) {
+      return;
+    }
+    entries.put(key, scores);
+    bytes += size;
+
+    Iterator<Map.Entry<String, ScoreList>> it = entries.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, ScoreList> eldest = it.next();
+      bytes -= sizeInBytes(eldest.getKey(), eldest.getValue());
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /*
+   * The approximate heap size of a cached result.
+   */
+  private static long sizeInBytes(String key, ScoreList scores) {
+    return 64 + 2L * key.length() + 40L * scores.scores.size();
+  }
+
+  /*
+   * Open the disk tier and read the offsets of its results. A log for another index, or with a
+   * broken header, is emptied; a record cut short by a crash is dropped.
+   */
+  private void openLog(File file, long indexVersion, int maxDoc) throws IOException {
+
+    log = new RandomAccessFile(file, "rw");
+    boolean valid = false;
+    if (log.length() >= HEADER_SIZE) {
+      log.seek(0);
+      valid =
+          log.readInt() == MAGIC && log.readInt() == VERSION && log.readInt() == maxDoc
+              && log.readLong() == indexVersion;
+    }
+    if (!valid) {
+      log.setLength(0);
+      log.writeInt(MAGIC);
+      log.writeInt(VERSION);
+      log.writeInt(maxDoc);
+      log.writeLong(indexVersion);
+      return;
+    }
+
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    long offset = HEADER_SIZE;
+    try {
+      in.skipBytes(HEADER_SIZE);
+      while (true) {
+        int keyLength = in.readInt();
+        byte[] keyBytes = new byte[keyLength];
+        in.readFully(keyBytes);
+        int n = in.readInt();
+        long skip = 12L * n;
+        skipFully(in, skip);
+        logOffsets.put(new String(keyBytes, "UTF-8"), offset + 4 + keyLength);
+        offset += 4 + keyLength + 4 + skip;
+      }
+    } catch (EOFException e) {
+      // End of the log
+    } finally {
+      in.close();
+    }
+    log.setLength(offset);
+  }
+
+  /*
+   * Skip bytes of a stream. A buffered stream may skip fewer bytes than asked before its end.
+   */
+  private static void skipFully(DataInputStream in, long n) throws IOException {
+
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException();
+        }
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  /*
+   * Read a result from the disk tier at the current position.
+   */
+  private static ScoreList readScores(RandomAccessFile in) throws IOException {
+
+    int n = in.readInt();
+    byte[] record = new byte[12 * n];
+    in.readFully(record);
+    ByteBuffer buf = ByteBuffer.wrap(record);
+    ScoreList scores = new ScoreList();
+    for (int i = 0; i < n; i++) {
+      scores.add(buf.getInt(), buf.getDouble());
+    }
+    return scores;
+  }
+
+  /**
+   * Close the disk tier.
+   *
+   * @throws IOException
+   */
+  public synchronized void close() throws IOException {
+    if (log != null) {
+      log.close();
+      log = null;
+    }
+  }
+
+  /**
+   * Print the cache statistics.
+   */
+  public synchronized void printStats() {
+    long lookups = hits + diskHits + misses;
+    System.out.println(String.format(
+        "Query result cache: %d hits, %d disk hits, %d misses, hit rate %.3f, %d entries, "
+            + "%d bytes, %d evictions", hits, diskHits, misses,
+        (lookups == 0) ? 0.0 : (double) (hits + diskHits) / lookups, entries.size(), bytes,
+        evictions));
+  }
+
+}
@@ -0,0 +1,214 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class holds the stems of a bag-of-words query for feature computation, and matches document
+ * vector stems against them. With a {@link TermDictionary}, query stems are translated to term ids
+ * once per field, and a forward index vector stem is matched with an int hash probe. Otherwise
+ * stems are matched with a string hash lookup.
+ *
+ * Instances are not thread-safe; each query being processed has its own.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class QueryTerms {
+
+  private String[] stems;
+  private TermDictionary dictionary;
+  private int[] qtfs;
+  private Map<String, Integer> stemIndex = new HashMap<String, Integer>();
+
+  // Open-addressing table from term id to query stem index, for every prepared field
+  private Set<String> preparedFields = new HashSet<String>();
+  private String lastField;
+  private Map<String, int[]> fieldIds = new HashMap<String, int[]>();
+  private int[] idKeys;
+  private int[] idValues;
+  private int idCount = 0;
+
+  /**
+   * Create the query terms.
+   *
+   * @param stems The stemmed BOW query.
+   * @param dictionary The term dictionary, or null if there is none.
+   */
+  public QueryTerms(String[] stems, TermDictionary dictionary) {
+
+    this.stems = stems;
+    this.dictionary = dictionary;
+
+    // Keep the first index of repeated stems, like List.indexOf, and count the repetitions there.
+    this.qtfs = new int[stems.length];
+    for (int i = stems.length - 1; i >= 0; i--) {
+      stemIndex.put(stems[i], i);
+    }
+    for (int i = 0; i < stems.length; i++) {
+      qtfs[stemIndex.get(stems[i])]++;
+    }
+  }
+
+  /**
+   * The stems of the query.
+   *
+   * @return The stemmed BOW query.
+   */
+  public String[] getStems() {
+    return stems;
+  }
+
+  /**
+   * The number of stems in the query.
+   *
+   * @return The query length.
+   */
+  public int size() {
+    return stems.length;
+  }
+
+  /**
+   * The query term frequency of a stem.
+   *
+   * @param index The first index of the stem, as returned by indexOf.
+   * @return The number of times the stem occurs in the query.
+   */
+  public int getQtf(int index) {
+    return qtfs[index];
+  }
+
+  /**
+   * The term dictionary used to translate stems, if any.
+   *
+   * @return The term dictionary or null.
+   */
+  public TermDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * Get the term ids of the query stems in a field.
+   *
+   * @param fieldName The field name.
+   * @return The term ids, with -1 for stems that do not occur in the field, or null if there is no
+   *         dictionary.
+   */
+  public int[] getIds(String fieldName) {
+
+    if (dictionary == null) {
+      return null;
+    }
+    prepare(fieldName);
+    return fieldIds.get(fieldName);
+  }
+
+  /**
+   * Returns the index of the query stem that matches the i'th stem of a document vector, or -1 if
+   * the stem is not in the query. A repeated query stem matches at its first index.
+   *
+   * @param vector The document vector.
+   * @param fieldName The field of the document vector.
+   * @param i Index of the stem in the document vector.
+   * @return The query stem index, or -1.
+   */
+  public int indexOf(DocVector vector, String fieldName, int i) {
+
+    if (dictionary != null && vector instanceof ForwardIndex.Vector) {
+      prepare(fieldName);
+      int id = ((ForwardIndex.Vector) vector).stemId(i);
+      int mask = idKeys.length - 1;
+      for (int slot = (id * 0x9E3779B9) & mask; idKeys[slot] != -1; slot = (slot + 1) & mask) {
+        if (idKeys[slot] == id) {
+          return idValues[slot];
+        }
+      }
+      return -1;
+    }
+
+    Integer index = stemIndex.get(vector.stemString(i));
+    return (index == null) ? -1 : index;
+  }
+
+  /**
+   * Checks whether the i'th stem of a document vector is a query stem.
+   *
+   * @param vector The document vector.
+   * @param fieldName The field of the document vector.
+   * @param i Index of the stem in the document vector.
+   * @return true if the stem is in the query.
+   */
+  public boolean contains(DocVector vector, String fieldName, int i) {
+    return indexOf(vector, fieldName, i) >= 0;
+  }
+
+  /*
+   * Translate the query stems to ids in a field and add them to the id table.
+   */
+  private void prepare(String fieldName) {
+
+    if (fieldName == lastField) {
+      return;
+    }
+    lastField = fieldName;
+    if (preparedFields.contains(fieldName)) {
+      return;
+    }
+    preparedFields.add(fieldName);
+
+    int[] ids = dictionary.getIds(fieldName, stems);
+    fieldIds.put(fieldName, ids);
+
+    if (idKeys == null) {
+      int size = 8;
+      while (size < 4 * stems.length) {
+        size <<= 1;
+      }
+      idKeys = new int[size];
+      idValues = new int[size];
+      Arrays.fill(idKeys, -1);
+    }
+    if (2 * (idCount + ids.length) > idKeys.length) {
+      rehash(2 * idKeys.length);
+    }
+
+    // Insert in reverse so that the first index of a repeated stem wins.
+    for (int i = ids.length - 1; i >= 0; i--) {
+      if (ids[i] >= 0) {
+        put(ids[i], i);
+      }
+    }
+  }
+
+  private void put(int id, int index) {
+
+    int mask = idKeys.length - 1;
+    int slot = (id * 0x9E3779B9) & mask;
+    while (idKeys[slot] != -1 && idKeys[slot] != id) {
+      slot = (slot + 1) & mask;
+    }
+    if (idKeys[slot] == -1) {
+      idCount++;
+    }
+    idKeys[slot] = id;
+    idValues[slot] = index;
+  }
+
+  private void rehash(int size) {
+
+    int[] oldKeys = idKeys;
+    int[] oldValues = idValues;
+    idKeys = new int[size];
+    idValues = new int[size];
+    Arrays.fill(idKeys, -1);
+    idCount = 0;
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldKeys[slot] != -1) {
+        put(oldKeys[slot], oldValues[slot]);
+      }
+    }
+  }
+
+}
@@ -1,10 +1,7 @@
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
-import org.apache.lucene.index.Term;
-import org.apache.lucene.util.BytesRef;
 
 /**
  * This class evaluates the score of a query and a document with a specific retrieval model.
@@ -15,7 +12,9 @@ import org.apache.lucene.util.BytesRef;
 
 public class RetrievalEvaluator {
 
-  private DocLengthStore dls;
+  private SearchContext context;
+  private ForwardIndex forwardIndex;
+  private FeatureProfiler profiler;
 
   private boolean hasBM25;
   private boolean hasIndri;
@@ -30,7 +29,6 @@ public class RetrievalEvaluator {
   private double avgLenTitle;
   private double avgLenUrl;
   private double avgLenInlink;
-  private double qtf;
 
   private long colLenBody;
   private long colLenTitle;
@@ -40,14 +38,19 @@ public class RetrievalEvaluator {
   /**
    * Initialize the RetrievalEvaluator with BM25 and Indri models.
    * 
+   * @param context The search context.
    * @param modelBM25 The BM25 retrieval model.
    * @param modelIndri The Indri retrieval model.
+   * @param forwardIndex The forward index used for document vectors, or null to read the Lucene
+   *        term vectors.
    * @throws IOException
    */
-  public RetrievalEvaluator(RetrievalModel modelBM25, RetrievalModel modelIndri) throws IOException {
+  public RetrievalEvaluator(SearchContext context, RetrievalModel modelBM25,
+      RetrievalModel modelIndri, ForwardIndex forwardIndex) throws IOException {
 
-    this.dls = new DocLengthStore(QryEval.READER);
-    this.N = QryEval.READER.numDocs();
+    this.context = context;
+    this.forwardIndex = forwardIndex;
+    this.N = context.getReader().numDocs();
 
     // Read the BM25 parameters if BM25 model is available
     if (modelBM25 != null) {
@@ -55,17 +58,10 @@ public class RetrievalEvaluator {
       this.b = modelBM25.getParameter("b");
       this.k_1 = modelBM25.getParameter("k_1");
       this.k_3 = modelBM25.getParameter("k_3");
-      this.avgLenBody =
-          (double) QryEval.READER.getSumTotalTermFreq("body") / QryEval.READER.getDocCount("body");
-      this.avgLenTitle =
-          (double) QryEval.READER.getSumTotalTermFreq("title")
-              / QryEval.READER.getDocCount("title");
-      this.avgLenUrl =
-          (double) QryEval.READER.getSumTotalTermFreq("url") / QryEval.READER.getDocCount("url");
-      this.avgLenInlink =
-          (double) QryEval.READER.getSumTotalTermFreq("inlink")
-              / QryEval.READER.getDocCount("inlink");
-      this.qtf = 1.0;
+      this.avgLenBody = context.getAverageLength("body");
+      this.avgLenTitle = context.getAverageLength("title");
+      this.avgLenUrl = context.getAverageLength("url");
+      this.avgLenInlink = context.getAverageLength("inlink");
     } else {
       this.hasBM25 = false;
     }
@@ -75,26 +71,35 @@ public class RetrievalEvaluator {
       this.hasIndri = true;
       this.mu = (int) modelIndri.getParameter("mu");
       this.lambda = modelIndri.getParameter("lambda");
-      this.colLenBody = QryEval.READER.getSumTotalTermFreq("body");
-      this.colLenTitle = QryEval.READER.getSumTotalTermFreq("title");
-      this.colLenUrl = QryEval.READER.getSumTotalTermFreq("url");
-      this.colLenInlink = QryEval.READER.getSumTotalTermFreq("inlink");
+      this.colLenBody = context.getReader().getSumTotalTermFreq("body");
+      this.colLenTitle = context.getReader().getSumTotalTermFreq("title");
+      this.colLenUrl = context.getReader().getSumTotalTermFreq("url");
+      this.colLenInlink = context.getReader().getSumTotalTermFreq("inlink");
     } else {
       this.hasIndri = false;
     }
   }
 
+  /**
+   * Set the profiler that term vector decodes and term statistics lookups are counted for.
+   * 
+   * @param profiler The profiler, or null to count nothing.
+   */
+  public void setProfiler(FeatureProfiler profiler) {
+    this.profiler = profiler;
+  }
+
   /**
    * Get the BM25 score for (q, d) of a specified field.
    * 
-   * @param queryStems The stemmed BOW query.
+   * @param queryTerms The stemmed BOW query.
    * @param internalId The internal document ID.
    * @param fieldName The field name.
    * @param featureDisable Specifies which feature is disabled.
    * @return BM25 score.
    * @throws IOException
    */
-  public double getFeatureBM25(String[] queryStems, int internalId, String fieldName,
+  public double getFeatureBM25(QueryTerms queryTerms, int internalId, String fieldName,
       Set<Integer> featureDisable) throws IOException {
 
     // Return 0.0 when this score is not needed
@@ -115,20 +120,19 @@ public class RetrievalEvaluator {
     }
 
     double score = 0.0;
-    TermVector termVector = null;
-    try {
-      termVector = new TermVector(internalId, fieldName);
-    } catch (Exception e) {
+    DocVector termVector = getDocVector(internalId, fieldName);
+    if (termVector == null) {
       return Double.NaN;
     }
 
-    double docLen = dls.getDocLength(fieldName, internalId);
+    double docLen = context.getDocLengths().getDocLength(fieldName, internalId);
     double avgLen = getAvglen(fieldName);
 
     for (int i = 1; i < termVector.stemsLength(); i++) {
-      String stem = termVector.stemString(i);
-      if (Arrays.asList(queryStems).contains(stem)) {
+      int queryIndex = queryTerms.indexOf(termVector, fieldName, i);
+      if (queryIndex >= 0) {
         // Calculate the BM25 score
+        double qtf = queryTerms.getQtf(queryIndex);
         double tf = termVector.stemFreq(i);
         double df = termVector.stemDf(i);
         double idf_weight = Math.log(((double) N - df + 0.5) / (df + 0.5));
@@ -144,14 +148,14 @@ public class RetrievalEvaluator {
   /**
    * Get the Indri score for (q, d) of a specified field.
    * 
-   * @param queryStems The stemmed BOW query.
+   * @param queryTerms The stemmed BOW query.
    * @param internalId The internal document ID.
    * @param fieldName The field name.
    * @param featureDisable Specifies which feature is disabled.
    * @return Indri score.
    * @throws IOException
    */
-  public double getFeatureIndri(String[] queryStems, int internalId, String fieldName,
+  public double getFeatureIndri(QueryTerms queryTerms, int internalId, String fieldName,
       Set<Integer> featureDisable) throws IOException {
 
     // Return 0.0 when this score is not needed
@@ -171,29 +175,28 @@ public class RetrievalEvaluator {
       return 0.0;
     }
 
-    TermVector termVector = null;
-    try {
-      termVector = new TermVector(internalId, fieldName);
-    } catch (Exception e) {
+    DocVector termVector = getDocVector(internalId, fieldName);
+    if (termVector == null) {
       return Double.NaN;
     }
 
     double score = 1.0;
     Set<Integer> hasScore = new HashSet<Integer>();
 
-    double docLen = dls.getDocLength(fieldName, internalId);
+    double docLen = context.getDocLengths().getDocLength(fieldName, internalId);
     double colLen = getColLen(fieldName);
 
+    int queryLength = queryTerms.size();
     for (int i = 1; i < termVector.stemsLength(); i++) {
-      String stem = termVector.stemString(i);
-      if (Arrays.asList(queryStems).contains(stem)) {
-        hasScore.add(Arrays.asList(queryStems).indexOf(stem));
+      int queryIndex = queryTerms.indexOf(termVector, fieldName, i);
+      if (queryIndex >= 0) {
+        hasScore.add(queryIndex);
         // Calculate the Indri scores
         double tf = termVector.stemFreq(i);
         double ctf = termVector.totalStemFreq(i);
         double p_mle = ctf / colLen;
         double p = (1.0 - lambda) * (tf + mu * p_mle) / (docLen + mu) + lambda * p_mle;
-        score *= Math.pow(p, 1.0 / queryStems.length);
+        score *= Math.pow(p, 1.0 / queryLength);
       }
     }
 
@@ -201,13 +204,12 @@ public class RetrievalEvaluator {
     if (hasScore.isEmpty()) {
       score = 0.0;
     } else {
-      for (int i = 0; i < queryStems.length; i++) {
+      for (int i = 0; i < queryLength; i++) {
         if (!hasScore.contains(i)) {
-          double ctf =
-              QryEval.READER.totalTermFreq(new Term(fieldName, new BytesRef(queryStems[i])));
+          double ctf = getCtf(queryTerms, fieldName, i);
           double p_mle = ctf / colLen;
           double p = (1.0 - lambda) * mu * p_mle / (docLen + mu) + lambda * p_mle;
-          score *= Math.pow(p, 1.0 / queryStems.length);
+          score *= Math.pow(p, 1.0 / queryLength);
         }
       }
     }
@@ -218,14 +220,14 @@ public class RetrievalEvaluator {
   /**
    * Get the lnc.ltc score for (q, d) of a specified field.
    * 
-   * @param queryStems The stemmed BOW query.
+   * @param queryTerms The stemmed BOW query.
    * @param internalId The internal document ID.
    * @param fieldName The field name.
    * @param featureDisable Specifies which feature is disabled.
    * @return lnc.ltc score
    * @throws IOException
    */
-  public double getFeatureLncltc(String[] queryStems, int internalId, String fieldName,
+  public double getFeatureLncltc(QueryTerms queryTerms, int internalId, String fieldName,
       Set<Integer> featureDisable) throws IOException {
 
     // Return 0.0 when this score is not needed
@@ -238,30 +240,27 @@ public class RetrievalEvaluator {
 
     // Query length normalization
     double qryLenSum = 0.0;
-    for (int i = 0; i < queryStems.length; i++) {
-      double df = QryEval.READER.docFreq(new Term(fieldName, new BytesRef(queryStems[i])));
+    for (int i = 0; i < queryTerms.size(); i++) {
+      double df = getDf(queryTerms, fieldName, i);
       double idf = Math.log((double) N / df);
       qryLenSum += Math.pow(idf, 2);
     }
 
-    TermVector termVector = null;
-    try {
-      termVector = new TermVector(internalId, fieldName);
-    } catch (Exception e) {
+    DocVector termVector = getDocVector(internalId, fieldName);
+    if (termVector == null) {
       return Double.NaN;
     }
 
     double docLenSum = 0.0;
     double tfIdfSum = 0.0;
     for (int i = 1; i < termVector.stemsLength(); i++) {
-      String stem = termVector.stemString(i);
       double tf = termVector.stemFreq(i);
       double tf_weight = Math.log(tf) + 1.0;
       // Document length normalization
       docLenSum += Math.pow(tf_weight, 2);
 
       // tf-idf
-      if (Arrays.asList(queryStems).contains(stem)) {
+      if (queryTerms.contains(termVector, fieldName, i)) {
         double df = termVector.stemDf(i);
         double idf = Math.log((double) N / df);
         tfIdfSum += tf_weight * idf;
@@ -275,6 +274,68 @@ public class RetrievalEvaluator {
     return score;
   }
 
+  /**
+   * Get the vector of a field in a document, from the forward index if there is one and otherwise
+   * from the Lucene term vector. A forward index vector is reused by the next call on the same
+   * thread.
+   * 
+   * @param internalId The internal document ID.
+   * @param fieldName The field name.
+   * @return The document vector, or null if the document has no vector for the field.
+   */
+  public DocVector getDocVector(int internalId, String fieldName) {
+
+    if (profiler != null) {
+      profiler.countIo(FeatureProfiler.TERM_VECTORS);
+    }
+    Metrics.Timer timer = context.getMetrics().timer("termVector");
+    long startTime = timer.start();
+    try {
+      if (forwardIndex != null) {
+        return forwardIndex.getVector(internalId, fieldName);
+      }
+      try {
+        return new TermVector(context, internalId, fieldName);
+      } catch (Exception e) {
+        return null;
+      }
+    } finally {
+      timer.stop(startTime);
+    }
+  }
+
+  /*
+   * Get the df of the i'th query stem in a field, from the term dictionary if there is one.
+   */
+  private double getDf(QueryTerms queryTerms, String fieldName, int i) throws IOException {
+
+    if (profiler != null) {
+      profiler.countIo(FeatureProfiler.TERM_STATS);
+    }
+
+    int[] ids = queryTerms.getIds(fieldName);
+    if (ids != null) {
+      return (ids[i] < 0) ? 0 : queryTerms.getDictionary().getDf(ids[i]);
+    }
+    return context.docFreq(fieldName, queryTerms.getStems()[i]);
+  }
+
+  /*
+   * Get the ctf of the i'th query stem in a field, from the term dictionary if there is one.
+   */
+  private double getCtf(QueryTerms queryTerms, String fieldName, int i) throws IOException {
+
+    if (profiler != null) {
+      profiler.countIo(FeatureProfiler.TERM_STATS);
+    }
+
+    int[] ids = queryTerms.getIds(fieldName);
+    if (ids != null) {
+      return (ids[i] < 0) ? 0 : queryTerms.getDictionary().getCtf(ids[i]);
+    }
+    return context.totalTermFreq(fieldName, queryTerms.getStems()[i]);
+  }
+
   /*
    * Get the average document length for a specified field.
    */
@@ -58,4 +58,14 @@ public class RetrievalModelBM25 extends RetrievalModel {
     return 0.0;
   }
 
+  /**
+   * The model name and its parameters, used to key cached query results.
+   * 
+   * @return A string describing the model.
+   */
+  @Override
+  public String toString() {
+    return "BM25(k_1=" + k_1 + ",b=" + b + ",k_3=" + k_3 + ")";
+  }
+
 }
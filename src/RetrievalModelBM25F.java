@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BM25F retrieval model. A query term is matched in every configured field, and its frequencies in
+ * the fields of a document are combined into one pseudo-frequency, each field's frequency weighted
+ * and normalized by the field's length with its own b. The pseudo-frequency is then saturated with
+ * k_1 once, as in BM25.
+ *
+ * Fields are configured with the parameters weight:field and b:field, e.g. weight:title.
+ *
+ * @author KyleMao
+ *
+ */
+public class RetrievalModelBM25F extends RetrievalModel {
+
+  private double k_1;
+  private double k_3;
+  private List<String> fields = new ArrayList<String>();
+  private Map<String, Double> weights = new HashMap<String, Double>();
+  private Map<String, Double> bs = new HashMap<String, Double>();
+
+  /**
+   * Set a retrieval model parameter. Setting the weight or b of a new field adds the field, with a
+   * default weight of 1.0 and b of 0.75.
+   *
+   * @param parameterName
+   * @param value
+   * @return Whether the parameter is successfully set.
+   */
+  @Override
+  public boolean setParameter(String parameterName, double value) {
+    if (parameterName.equals("k_1")) {
+      this.k_1 = value;
+      return true;
+    } else if (parameterName.equals("k_3")) {
+      this.k_3 = value;
+      return true;
+    } else if (parameterName.startsWith("weight:")) {
+      addField(parameterName.substring("weight:".length()));
+      weights.put(parameterName.substring("weight:".length()), value);
+      return true;
+    } else if (parameterName.startsWith("b:")) {
+      addField(parameterName.substring("b:".length()));
+      bs.put(parameterName.substring("b:".length()), value);
+      return true;
+    } else {
+      System.err.println("Error: Unknown parameter name for retrieval model " + "BM25F: "
+          + parameterName);
+    }
+
+    return false;
+  }
+
+  /**
+   * Get a retrieval model parameter.
+   *
+   * @param parameterName The name of the parameter to set.
+   * @return value of the parameter.
+   */
+  @Override
+  public double getParameter(String parameterName) {
+    if (parameterName.equals("k_1")) {
+      return this.k_1;
+    } else if (parameterName.equals("k_3")) {
+      return this.k_3;
+    } else if (parameterName.startsWith("weight:")
+        && weights.containsKey(parameterName.substring("weight:".length()))) {
+      return weights.get(parameterName.substring("weight:".length()));
+    } else if (parameterName.startsWith("b:")
+        && bs.containsKey(parameterName.substring("b:".length()))) {
+      return bs.get(parameterName.substring("b:".length()));
+    } else {
+      System.err.println("Error: Unknown parameter name for retrieval model " + "BM25F: "
+          + parameterName);
+    }
+
+    return 0.0;
+  }
+
+  /**
+   * The configured fields, in the order they were added.
+   *
+   * @return The field names.
+   */
+  public String[] getFields() {
+    return fields.toArray(new String[fields.size()]);
+  }
+
+  private void addField(String field) {
+    if (!fields.contains(field)) {
+      fields.add(field);
+      weights.put(field, 1.0);
+      bs.put(field, 0.75);
+    }
+  }
+
+  /**
+   * The model name and its parameters, used to key cached query results.
+   *
+   * @return A string describing the model.
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("BM25F(k_1=").append(k_1).append(",k_3=").append(k_3);
+    for (String field : fields) {
+      sb.append(",").append(field).append("=").append(weights.get(field)).append("/")
+          .append(bs.get(field));
+    }
+    return sb.append(")").toString();
+  }
+
+}
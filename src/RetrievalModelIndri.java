@@ -52,4 +52,14 @@ public class RetrievalModelIndri extends RetrievalModel {
     return 0.0;
   }
 
+  /**
+   * The model name and its parameters, used to key cached query results.
+   * 
+   * @return A string describing the model.
+   */
+  @Override
+  public String toString() {
+    return "Indri(mu=" + mu + ",lambda=" + lambda + ")";
+  }
+
 }
@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads TREC run files, SVM-rank feature files and score files line by line and token
+ * by token. The file is memory-mapped and tokens are parsed in place, so reading a line allocates
+ * nothing unless the caller asks for a token as a string. Files larger than the mapping window are
+ * mapped one window at a time.
+ *
+ * Numbers with at most 15 significant digits and a small exponent are converted exactly from their
+ * digits; other numbers are parsed by Double.parseDouble.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class RunFileReader {
+
+  private static long WINDOW = 1L << 30;
+  private static double[] POWERS_OF_TEN = new double[23];
+
+  static {
+    POWERS_OF_TEN[0] = 1.0;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private long size;
+  private long mapStart = 0;
+  private MappedByteBuffer map;
+  private int limit;
+
+  // The current line is [lineStart, lineEnd) of the map; the current token is
+  // [tokenStart, tokenEnd).
+  private int next = 0;
+  private int lineStart = 0;
+  private int lineEnd = 0;
+  private int tokenStart = 0;
+  private int tokenEnd = 0;
+
+  /**
+   * Open a file for reading.
+   *
+   * @param path The path of the file.
+   * @throws IOException
+   */
+  public RunFileReader(String path) throws IOException {
+    this.file = new RandomAccessFile(path, "r");
+    this.channel = file.getChannel();
+    this.size = channel.size();
+    map(0);
+  }
+
+  private void map(long start) throws IOException {
+    mapStart = start;
+    limit = (int) Math.min(WINDOW, size - start);
+    map = channel.map(FileChannel.MapMode.READ_ONLY, start, limit);
+    next = 0;
+  }
+
+  /**
+   * Move to the next line.
+   *
+   * @return false at the end of the file.
+   * @throws IOException
+   */
+  public boolean nextLine() throws IOException {
+
+    if (next >= limit) {
+      if (mapStart + limit >= size) {
+        return false;
+      }
+      map(mapStart + limit);
+    }
+    int end = findNewline(next);
+    if (end == limit && mapStart + limit < size) {
+      // The line continues past the window; map a window that starts with it
+      map(mapStart + next);
+      end = findNewline(0);
+    }
+    lineStart = next;
+    lineEnd = end;
+    tokenStart = tokenEnd = lineStart;
+    next = end + 1;
+    return true;
+  }
+
+  private int findNewline(int from) {
+    int i = from;
+    while (i < limit && map.get(i) != '\n') {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Move to the next token of the current line. Tokens are separated by spaces and tabs.
+   *
+   * @return false if the line has no more tokens.
+   */
+  public boolean nextToken() {
+    int i = tokenEnd;
+    while (i < lineEnd && isSpace(map.get(i))) {
+      i++;
+    }
+    if (i == lineEnd) {
+      tokenStart = tokenEnd = lineEnd;
+      return false;
+    }
+    tokenStart = i;
+    while (i < lineEnd && !isSpace(map.get(i))) {
+      i++;
+    }
+    tokenEnd = i;
+    return true;
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  /**
+   * Skip the rest of the current line up to and including a character, so that the next token
+   * starts after it.
+   *
+   * @param c The character.
+   * @return false if the rest of the line does not contain the character.
+   */
+  public boolean skipPast(char c) {
+    for (int i = tokenEnd; i < lineEnd; i++) {
+      if (map.get(i) == c) {
+        tokenStart = tokenEnd = i + 1;
+        return true;
+      }
+    }
+    tokenStart = tokenEnd = lineEnd;
+    return false;
+  }
+
+  /**
+   * Read the next number of the file, skipping line breaks and blank lines as a Scanner would.
+   *
+   * @return The number.
+   * @throws IOException if there are no more tokens in the file.
+   */
+  public double nextDouble() throws IOException {
+    while (!nextToken()) {
+      if (!nextLine()) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    return tokenDouble();
+  }
+
+  /**
+   * The position of a character in the current token.
+   *
+   * @param c The character.
+   * @return The offset from the start of the token, or -1.
+   */
+  public int tokenIndexOf(char c) {
+    for (int i = tokenStart; i < tokenEnd; i++) {
+      if (map.get(i) == c) {
+        return i - tokenStart;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Whether the current token, from an offset, is a given ASCII string.
+   *
+   * @param from The offset in the token.
+   * @param s The string.
+   * @return true if they are equal.
+   */
+  public boolean tokenEquals(int from, String s) {
+    if (s == null || tokenEnd - tokenStart - from != s.length()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (map.get(tokenStart + from + i) != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The current token as a string.
+   *
+   * @return The token.
+   * @throws IOException
+   */
+  public String token() throws IOException {
+    return token(0);
+  }
+
+  /**
+   * The current token from an offset, as a string.
+   *
+   * @param from The offset in the token.
+   * @return The rest of the token.
+   * @throws IOException
+   */
+  public String token(int from) throws IOException {
+    byte[] b = new byte[tokenEnd - tokenStart - from];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = map.get(tokenStart + from + i);
+    }
+    return new String(b, "UTF-8");
+  }
+
+  /**
+   * The current token as an integer.
+   *
+   * @return The value.
+   * @throws IOException
+   */
+  public int tokenInt() throws IOException {
+    int i = tokenStart;
+    boolean negative = i < tokenEnd && map.get(i) == '-';
+    if (negative || (i < tokenEnd && map.get(i) == '+')) {
+      i++;
+    }
+    if (i == tokenEnd || tokenEnd - i > 9) {
+      return Integer.parseInt(token());
+    }
+    int value = 0;
+    for (; i < tokenEnd; i++) {
+      int d = map.get(i) - '0';
+      if (d < 0 || d > 9) {
+        return Integer.parseInt(token());
+      }
+      value = value * 10 + d;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * The current token as a double.
+   *
+   * @return The value.
+   * @throws IOException
+   */
+  public double tokenDouble() throws IOException {
+
+    int i = tokenStart;
+    boolean negative = i < tokenEnd && map.get(i) == '-';
+    if (negative || (i < tokenEnd && map.get(i) == '+')) {
+      i++;
+    }
+
+    // Collect the significant digits and the decimal exponent
+    long mantissa = 0;
+    int significant = 0;
+    int exponent = 0;
+    boolean seenDigit = false;
+    boolean seenPoint = false;
+    for (; i < tokenEnd; i++) {
+      byte b = map.get(i);
+      if (b >= '0' && b <= '9') {
+        seenDigit = true;
+        if (mantissa == 0 && b == '0') {
+          // A leading zero is not significant
+        } else if (significant < 15) {
+          mantissa = mantissa * 10 + (b - '0');
+          significant++;
+        } else {
+          return Double.parseDouble(token());
+        }
+        if (seenPoint) {
+          exponent--;
+        }
+      } else if (b == '.' && !seenPoint) {
+        seenPoint = true;
+      } else {
+        break;
+      }
+    }
+    if (i < tokenEnd && (map.get(i) == 'e' || map.get(i) == 'E') && seenDigit) {
+      i++;
+      boolean negativeExponent = i < tokenEnd && map.get(i) == '-';
+      if (negativeExponent || (i < tokenEnd && map.get(i) == '+')) {
+        i++;
+      }
+      int e = 0;
+      int start = i;
+      for (; i < tokenEnd && map.get(i) >= '0' && map.get(i) <= '9' && e < 1000; i++) {
+        e = e * 10 + (map.get(i) - '0');
+      }
+      if (i == start) {
+        return Double.parseDouble(token());
+      }
+      exponent += negativeExponent ? -e : e;
+    }
+    if (i != tokenEnd || !seenDigit || exponent < -22 || exponent > 22) {
+      return Double.parseDouble(token());
+    }
+
+    // Both the mantissa and the power of ten are exact, so the result is correctly rounded
+    double value =
+        (exponent >= 0) ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+    return negative ? -value : value;
+  }
+
+  /**
+   * Close the file.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    channel.close();
+    file.close();
+  }
+
+}
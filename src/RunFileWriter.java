@@ -0,0 +1,207 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * This class writes TREC run files and SVM-rank feature files. Rows are formatted directly into a
+ * reusable byte buffer, which is written to a {@link FileChannel} when it fills up, so writing a
+ * row allocates no strings or formatters.
+ *
+ * Scores are written like String.format("%f"): six decimals, rounded half up. The digits are
+ * computed from the score scaled by 10^6; scores that are very large, not finite, or within
+ * rounding error of a tie are formatted by String.format instead, so the output is the same.
+ * Feature values are appended to a reused StringBuilder, which writes the digits of
+ * Double.toString without creating a String, and copied from there.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class RunFileWriter {
+
+  private static int BUFFER_SIZE = 1 << 16;
+  private static double FAST_LIMIT = 1e6;
+  private static double TIE_TOLERANCE = 1e-3;
+
+  private FileOutputStream out;
+  private FileChannel channel;
+  private byte[] bytes = new byte[BUFFER_SIZE];
+  private ByteBuffer buffer = ByteBuffer.wrap(bytes);
+  private int pos = 0;
+  private byte[] digits = new byte[20];
+  private StringBuilder number = new StringBuilder(32);
+
+  /**
+   * Create or truncate a file for writing.
+   *
+   * @param path The path of the file.
+   * @throws IOException
+   */
+  public RunFileWriter(String path) throws IOException {
+    this.out = new FileOutputStream(path);
+    this.channel = out.getChannel();
+  }
+
+  /**
+   * Write one row of a TREC run: "queryId Q0 externalId rank score runTag".
+   *
+   * @param queryId The query ID.
+   * @param externalId The external document ID.
+   * @param rank The rank of the document, from 1.
+   * @param score The score of the document.
+   * @param runTag The name of the run.
+   * @throws IOException
+   */
+  public void writeResult(String queryId, String externalId, int rank, double score, String runTag)
+      throws IOException {
+    put(queryId);
+    put(" Q0 ");
+    put(externalId);
+    put(' ');
+    putLong(rank);
+    put(' ');
+    putFixed(score);
+    put(' ');
+    put(runTag);
+    put('\n');
+  }
+
+  /**
+   * Write one row of an SVM-rank feature file: "label qid:queryId 1:f1 2:f2 ... # externalId".
+   * Feature values are written as by Double.toString.
+   *
+   * @param label The relevance label.
+   * @param queryId The query ID.
+   * @param features The feature values.
+   * @param externalId The external document ID.
+   * @throws IOException
+   */
+  public void writeFeatureVector(int label, String queryId, Double[] features, String externalId)
+      throws IOException {
+    putLong(label);
+    put(" qid:");
+    put(queryId);
+    for (int j = 0; j < features.length; j++) {
+      put(' ');
+      putLong(j + 1);
+      put(':');
+      putDouble(features[j]);
+    }
+    put(" # ");
+    put(externalId);
+    put('\n');
+  }
+
+  /**
+   * Write the buffered rows and close the file.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    flush();
+    channel.close();
+    out.close();
+  }
+
+  private void flush() throws IOException {
+    buffer.clear();
+    buffer.limit(pos);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    pos = 0;
+  }
+
+  private void put(char c) throws IOException {
+    if (pos == bytes.length) {
+      flush();
+    }
+    bytes[pos++] = (byte) c;
+  }
+
+  private void put(String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        // Not ASCII: encode the rest of the string as UTF-8
+        byte[] encoded = s.substring(i).getBytes("UTF-8");
+        for (byte b : encoded) {
+          if (pos == bytes.length) {
+            flush();
+          }
+          bytes[pos++] = b;
+        }
+        return;
+      }
+      put(c);
+    }
+  }
+
+  /*
+   * Write the decimal digits of a long.
+   */
+  private void putLong(long value) throws IOException {
+    if (value < 0) {
+      if (value == Long.MIN_VALUE) {
+        put(Long.toString(value));
+        return;
+      }
+      put('-');
+      value = -value;
+    }
+    int n = 0;
+    do {
+      digits[n++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    while (n > 0) {
+      put((char) digits[--n]);
+    }
+  }
+
+  /*
+   * Write a double as Double.toString does.
+   */
+  private void putDouble(double value) throws IOException {
+    number.setLength(0);
+    number.append(value);
+    for (int i = 0; i < number.length(); i++) {
+      put(number.charAt(i));
+    }
+  }
+
+  /*
+   * Write a double with six decimals, rounded half up, as String.format("%f") does.
+   */
+  private void putFixed(double value) throws IOException {
+
+    if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= FAST_LIMIT) {
+      put(String.format(Locale.ROOT, "%f", value));
+      return;
+    }
+    double scaled = Math.abs(value) * 1e6;
+    long units = (long) scaled;
+    double fraction = scaled - units;
+    if (Math.abs(fraction - 0.5) < TIE_TOLERANCE) {
+      put(String.format(Locale.ROOT, "%f", value));
+      return;
+    }
+    if (fraction > 0.5) {
+      units++;
+    }
+
+    // The sign of negative values, including those that round to zero, is kept
+    if (Double.doubleToRawLongBits(value) < 0) {
+      put('-');
+    }
+    putLong(units / 1000000);
+    put('.');
+    long decimals = units % 1000000;
+    for (long unit = 100000; unit > 0; unit /= 10) {
+      put((char) ('0' + (decimals / unit) % 10));
+    }
+  }
+
+}
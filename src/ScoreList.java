@@ -54,4 +54,34 @@ public class ScoreList {
     return this.scores.get(n).score;
   }
 
+  /**
+   * Get the top k documents, plus any documents tied with the k'th score, so that sorting the
+   * result with any tie-breaking gives the same top k as sorting the whole list.
+   * 
+   * @param k The number of documents to keep.
+   * @return A new score list in the original order, or this list if it has at most k documents.
+   */
+  public ScoreList topK(int k) {
+
+    int n = this.scores.size();
+    if (n <= k) {
+      return this;
+    }
+
+    double[] sorted = new double[n];
+    for (int i = 0; i < n; i++) {
+      sorted[i] = this.scores.get(i).score;
+    }
+    Arrays.sort(sorted);
+    double threshold = sorted[n - k];
+
+    ScoreList top = new ScoreList();
+    for (ScoreListEntry entry : this.scores) {
+      if (entry.score >= threshold) {
+        top.scores.add(entry);
+      }
+    }
+    return top;
+  }
+
 }
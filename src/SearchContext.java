@@ -0,0 +1,524 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.CompositeReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * This class holds everything that query evaluation and feature generation need about one index:
+ * the reader, the query analyzer, the document lengths, the optional postings cache, query result
+ * cache, planner and sharded searcher, caches of term statistics and external ids, and the
+ * {@link Metrics} that the stages of evaluation are timed with. A context is passed to the query
+ * operators and the feature code instead of being read from globals, so several indexes or
+ * configurations can be searched in one process, and concurrent evaluations share one warm
+ * context.
+ *
+ * A context is thread-safe. Document lengths are read through a per-thread {@link DocLengthStore},
+ * because Lucene's norms readers are not shared between threads.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class SearchContext {
+
+  private static int MAX_CACHED_TERMS = 100000;
+  private static int MAX_CACHED_IDS = 100000;
+
+  private IndexReader reader;
+  private EnglishAnalyzerConfigurable analyzer;
+  private PostingsCache postingsCache;
+  private QueryResultCache queryCache;
+  private QueryPlanner planner;
+  private ShardedSearcher shardedSearcher;
+  private Metrics metrics = new Metrics(false);
+
+  private ThreadLocal<DocLengthStore> docLengths = new ThreadLocal<DocLengthStore>();
+
+  // Term statistics {df, ctf} keyed by field and term, and internal ids keyed by external id.
+  // They are cleared when they grow past their limits.
+  private Map<String, long[]> termStats = new ConcurrentHashMap<String, long[]>();
+  private Map<String, Integer> internalIds = new ConcurrentHashMap<String, Integer>();
+
+  /**
+   * Create a context for an index reader, with the default query analyzer and no caches.
+   *
+   * @param reader The index reader.
+   */
+  public SearchContext(IndexReader reader) {
+    this.reader = reader;
+    this.analyzer = newAnalyzer();
+  }
+
+  /**
+   * Open the index and create the caches, planner and sharded searcher configured in the
+   * parameters.
+   *
+   * @param params The parameters read from the .param file.
+   * @return The context.
+   * @throws IOException
+   */
+  public static SearchContext open(Map<String, String> params) throws IOException {
+
+    // open the index, or all of its shards
+    String[] indexPaths = params.get("indexPath").split(",");
+    ShardedSearcher shardedSearcher = null;
+    IndexReader reader;
+    int topK = 1000;
+    if (params.containsKey("shards:topK")) {
+      topK = Integer.parseInt(params.get("shards:topK"));
+    }
+    if (indexPaths.length > 1) {
+      IndexReader[] shardReaders = new IndexReader[indexPaths.length];
+      for (int i = 0; i < indexPaths.length; i++) {
+        shardReaders[i] = DirectoryReader.open(FSDirectory.open(new File(indexPaths[i].trim())));
+      }
+      int threads = Math.min(indexPaths.length, Runtime.getRuntime().availableProcessors());
+      if (params.containsKey("shards:threads")) {
+        threads = Integer.parseInt(params.get("shards:threads"));
+      }
+      shardedSearcher = new ShardedSearcher(shardReaders, threads, topK);
+      reader = shardedSearcher.getReader();
+    } else {
+      reader = DirectoryReader.open(FSDirectory.open(new File(params.get("indexPath"))));
+      if (params.containsKey("segments:threads")) {
+        shardedSearcher =
+            new ShardedSearcher(reader, Integer.parseInt(params.get("segments:threads")), topK);
+      }
+    }
+
+    SearchContext context = new SearchContext(reader);
+    context.metrics = Metrics.create(params);
+    context.shardedSearcher = shardedSearcher;
+    if (params.containsKey("postingsCache:maxBytes")) {
+      context.postingsCache =
+          new PostingsCache(reader, Long.parseLong(params.get("postingsCache:maxBytes")));
+    }
+    context.queryCache = QueryResultCache.create(params, context);
+    context.planner = QueryPlanner.create(params, context);
+    return context;
+  }
+
+  /**
+   * Create an English analyzer configured for query processing: lower-casing, stopword removal
+   * and the Krovetz stemmer.
+   *
+   * @return The analyzer.
+   */
+  public static EnglishAnalyzerConfigurable newAnalyzer() {
+    EnglishAnalyzerConfigurable analyzer = new EnglishAnalyzerConfigurable(Version.LUCENE_43);
+    analyzer.setLowercase(true);
+    analyzer.setStopwordRemoval(true);
+    analyzer.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+    return analyzer;
+  }
+
+  /**
+   * The version of an index, used to detect a file built for another index or another version of
+   * it. A sharded index is read through a {@link MultiReader}, whose version combines the versions
+   * of its shards in order.
+   *
+   * @param reader The index reader.
+   * @return The version, or 0 if the reader has no version.
+   */
+  public static long getIndexVersion(IndexReader reader) {
+
+    if (reader instanceof DirectoryReader) {
+      return ((DirectoryReader) reader).getVersion();
+    }
+    if (reader instanceof CompositeReader) {
+      List<IndexReaderContext> children = reader.getContext().children();
+      long version = children.size();
+      for (IndexReaderContext child : children) {
+        version = 31 * version + getIndexVersion(child.reader());
+      }
+      return version;
+    }
+    return 0;
+  }
+
+  /**
+   * The index reader.
+   *
+   * @return The index reader.
+   */
+  public IndexReader getReader() {
+    return reader;
+  }
+
+  /**
+   * The analyzer that query terms are processed with.
+   *
+   * @return The analyzer.
+   */
+  public EnglishAnalyzerConfigurable getAnalyzer() {
+    return analyzer;
+  }
+
+  /**
+   * The postings cache, if any.
+   *
+   * @return The postings cache or null.
+   */
+  public PostingsCache getPostingsCache() {
+    return postingsCache;
+  }
+
+  /**
+   * Set the postings cache.
+   *
+   * @param postingsCache The postings cache, or null for none.
+   */
+  public void setPostingsCache(PostingsCache postingsCache) {
+    this.postingsCache = postingsCache;
+  }
+
+  /**
+   * The query result cache, if any.
+   *
+   * @return The query result cache or null.
+   */
+  public QueryResultCache getQueryCache() {
+    return queryCache;
+  }
+
+  /**
+   * Set the query result cache.
+   *
+   * @param queryCache The query result cache, or null for none.
+   */
+  public void setQueryCache(QueryResultCache queryCache) {
+    this.queryCache = queryCache;
+  }
+
+  /**
+   * The query planner, if any.
+   *
+   * @return The planner or null.
+   */
+  public QueryPlanner getPlanner() {
+    return planner;
+  }
+
+  /**
+   * Set the query planner.
+   *
+   * @param planner The planner, or null to evaluate query trees as parsed.
+   */
+  public void setPlanner(QueryPlanner planner) {
+    this.planner = planner;
+  }
+
+  /**
+   * The sharded searcher, if the index is searched in parallel.
+   *
+   * @return The sharded searcher or null.
+   */
+  public ShardedSearcher getShardedSearcher() {
+    return shardedSearcher;
+  }
+
+  /**
+   * Set the sharded searcher.
+   *
+   * @param shardedSearcher The sharded searcher, or null for none.
+   */
+  public void setShardedSearcher(ShardedSearcher shardedSearcher) {
+    this.shardedSearcher = shardedSearcher;
+  }
+
+  /**
+   * The metrics that the stages of evaluation are timed with. They are disabled unless the context
+   * was opened with metrics: parameters.
+   *
+   * @return The metrics.
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Set the metrics.
+   *
+   * @param metrics The metrics.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * The document length store of the calling thread.
+   *
+   * @return The document lengths.
+   * @throws IOException
+   */
+  public DocLengthStore getDocLengths() throws IOException {
+    DocLengthStore dls = docLengths.get();
+    if (dls == null) {
+      dls = new DocLengthStore(reader);
+      docLengths.set(dls);
+    }
+    return dls;
+  }
+
+  /**
+   * Given a query string, returns the terms one at a time with stopwords removed and the terms
+   * stemmed using the Krovetz stemmer.
+   *
+   * @param query String containing query
+   * @return Array of query tokens, which must not be modified
+   * @throws IOException
+   */
+  public String[] tokenizeQuery(String query) throws IOException {
+    return analyzer.analyze(query);
+  }
+
+  /**
+   * Convert a query string into a query tree. Syntax errors are reported with their position in
+   * the query.
+   *
+   * @param qString A string containing a query
+   * @param r The retrieval model for the query
+   * @return The query tree, or null if the query cannot be parsed
+   * @throws IOException
+   */
+  public Qryop parseQuery(String qString, RetrievalModel r) throws IOException {
+
+    Metrics.Timer timer = metrics.timer("parse");
+    long startTime = timer.start();
+    try {
+      return new QueryParser(qString, analyzer).parse(r);
+    } catch (QueryParser.SyntaxError e) {
+      System.err.println("Error: Query syntax is incorrect: " + e.getMessage() + ".  " + qString);
+      return null;
+    } finally {
+      timer.stop(startTime);
+    }
+  }
+
+  /**
+   * Evaluate a query tree. The tree is first rewritten by the query planner, if there is one.
+   * Bag-of-words queries on a sharded index are evaluated per shard in parallel; everything else is
+   * evaluated by the query operators.
+   *
+   * @param qTree The query tree.
+   * @param r The retrieval model.
+   * @return The result of evaluating the query.
+   * @throws IOException
+   */
+  public QryResult evaluate(Qryop qTree, RetrievalModel r) throws IOException {
+
+    Metrics.Timer timer = metrics.timer("scoring");
+    long startTime = timer.start();
+    try {
+      if (planner != null) {
+        qTree = planner.plan(qTree, r);
+      }
+      if (shardedSearcher != null) {
+        QryResult result = shardedSearcher.search(qTree, r);
+        if (result != null) {
+          return result;
+        }
+      }
+      return qTree.evaluate(r, this);
+    } finally {
+      timer.stop(startTime);
+    }
+  }
+
+  /**
+   * Describe the settings that change the results of {@link #evaluate}: whether query trees are
+   * planned, and how many shards are searched with how many top documents kept from each. Cached
+   * results are only valid under the same description.
+   *
+   * @return The description.
+   */
+  public String getEvaluationKey() {
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("planner=").append(planner != null);
+    if (shardedSearcher != null) {
+      sb.append("|shards=").append(shardedSearcher.numShards()).append('x')
+          .append(shardedSearcher.getTopK());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Get the postings of a term, from the postings cache if there is one.
+   *
+   * @param term The processed (stemmed, lower-cased, etc) term string.
+   * @param field The field that the term occurs in.
+   * @return The postings.
+   * @throws IOException
+   */
+  public Postings getPostings(String term, String field) throws IOException {
+    Metrics.Timer timer = metrics.timer("postings");
+    long startTime = timer.start();
+    try {
+      if (postingsCache != null) {
+        return postingsCache.get(term, field);
+      }
+      return Postings.read(reader, term, field);
+    } finally {
+      timer.stop(startTime);
+    }
+  }
+
+  /**
+   * The document frequency of a term in a field.
+   *
+   * @param field The field.
+   * @param term The processed term string.
+   * @return The df.
+   * @throws IOException
+   */
+  public long docFreq(String field, String term) throws IOException {
+    return getTermStats(field, term)[0];
+  }
+
+  /**
+   * The collection term frequency of a term in a field.
+   *
+   * @param field The field.
+   * @param term The processed term string.
+   * @return The ctf.
+   * @throws IOException
+   */
+  public long totalTermFreq(String field, String term) throws IOException {
+    return getTermStats(field, term)[1];
+  }
+
+  private long[] getTermStats(String field, String term) throws IOException {
+
+    String key = field + '\0' + term;
+    long[] stats = termStats.get(key);
+    if (stats == null) {
+      Term t = new Term(field, new BytesRef(term));
+      stats = new long[] {reader.docFreq(t), reader.totalTermFreq(t)};
+      if (termStats.size() >= MAX_CACHED_TERMS) {
+        termStats.clear();
+      }
+      termStats.put(key, stats);
+    }
+    return stats;
+  }
+
+  /**
+   * The average length of a field.
+   *
+   * @param field The field.
+   * @return The average length over the documents that have the field.
+   * @throws IOException
+   */
+  public double getAverageLength(String field) throws IOException {
+    return (double) reader.getSumTotalTermFreq(field) / (double) reader.getDocCount(field);
+  }
+
+  /**
+   * Get the external document id for a document specified by an internal document id. If the
+   * internal id doesn't exists, returns null.
+   *
+   * @param iid The internal document id of the document.
+   * @throws IOException
+   */
+  public String getExternalDocid(int iid) throws IOException {
+    Metrics.Timer timer = metrics.timer("storedFields");
+    long startTime = timer.start();
+    try {
+      if (shardedSearcher != null) {
+        return shardedSearcher.getExternalDocid(iid);
+      }
+      Document d = reader.document(iid);
+      String eid = d.get("externalId");
+      return eid;
+    } finally {
+      timer.stop(startTime);
+    }
+  }
+
+  /**
+   * Finds the internal document id for a document specified by its external id, e.g.
+   * clueweb09-enwp00-88-09710. If no such document exists, it throws an exception.
+   *
+   * @param externalId The external document id of a document.
+   * @return An internal doc id suitable for finding document vectors etc.
+   * @throws Exception
+   */
+  public int getInternalDocid(String externalId) throws Exception {
+
+    Integer cached = internalIds.get(externalId);
+    if (cached != null) {
+      return cached;
+    }
+
+    int docid;
+    if (shardedSearcher != null) {
+      docid = shardedSearcher.getInternalDocid(externalId);
+    } else {
+      Query q = new TermQuery(new Term("externalId", externalId));
+      IndexSearcher searcher = new IndexSearcher(reader);
+      TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
+      searcher.search(q, collector);
+      ScoreDoc[] hits = collector.topDocs().scoreDocs;
+      docid = (hits.length < 1) ? -1 : hits[0].doc;
+    }
+    if (docid < 0) {
+      throw new Exception("External id not found.");
+    }
+
+    if (internalIds.size() >= MAX_CACHED_IDS) {
+      internalIds.clear();
+    }
+    internalIds.put(externalId, docid);
+    return docid;
+  }
+
+  /**
+   * Print the statistics of the caches and the planner, and the metrics.
+   */
+  public void printStats() {
+    if (postingsCache != null) {
+      postingsCache.printStats();
+    }
+    if (queryCache != null) {
+      queryCache.printStats();
+    }
+    if (planner != null) {
+      planner.printStats();
+    }
+    metrics.printReport();
+  }
+
+  /**
+   * Close the query result cache, stop the search threads, and write out the metrics.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    metrics.close();
+    if (queryCache != null) {
+      queryCache.close();
+    }
+    if (shardedSearcher != null) {
+      shardedSearcher.close();
+    }
+  }
+
+}
@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * This class searches an index that is split into shards. The shards are combined into one
+ * {@link MultiReader}, whose docids are the global internal docids used everywhere else, and whose
+ * statistics (number of documents, document frequencies, field lengths) are those of the whole
+ * collection. Stored documents and term vectors of the combined reader are read from the shard
+ * that owns the docid.
+ *
+ * A BM25 bag-of-words query is evaluated on every shard in parallel with the global statistics, so
+ * scores are comparable across shards, and the per-shard top k documents are merged. Other queries
+ * are evaluated on the combined reader by the query operators.
+ *
+ * The segments of a single index can be searched the same way, each segment being a shard.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class ShardedSearcher {
+
+  private IndexReader reader;
+  private Shard[] shards;
+  private int topK;
+  private ExecutorService executor;
+
+  /**
+   * Combine shards into one index and start the search threads.
+   *
+   * @param shardReaders The readers of the shards, in docid order.
+   * @param threads The number of search threads.
+   * @param topK The number of documents to keep from each shard and in the merged result.
+   *        Documents tied with the k'th score are kept too.
+   * @throws IOException
+   */
+  public ShardedSearcher(IndexReader[] shardReaders, int threads, int topK) throws IOException {
+
+    this.reader = new MultiReader(shardReaders);
+    this.shards = new Shard[shardReaders.length];
+    int docBase = 0;
+    for (int i = 0; i < shardReaders.length; i++) {
+      shards[i] = new Shard(shardReaders[i], docBase);
+      docBase += shardReaders[i].maxDoc();
+    }
+    start(threads, topK);
+  }
+
+  /**
+   * Search the segments (leaves) of one index as shards, so that they are evaluated independently
+   * on separate threads and merged.
+   *
+   * @param reader The index reader.
+   * @param threads The number of search threads.
+   * @param topK The number of documents to keep from each segment and in the merged result.
+   *        Documents tied with the k'th score are kept too.
+   */
+  public ShardedSearcher(IndexReader reader, int threads, int topK) {
+
+    this.reader = reader;
+    List<AtomicReaderContext> leaves = reader.leaves();
+    this.shards = new Shard[leaves.size()];
+    for (int i = 0; i < leaves.size(); i++) {
+      shards[i] = new Shard(leaves.get(i).reader(), leaves.get(i).docBase);
+    }
+    start(threads, topK);
+  }
+
+  /*
+   * Start the search threads.
+   */
+  private void start(int threads, int topK) {
+
+    this.topK = topK;
+    this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "shard-search");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * The combined reader over all shards.
+   *
+   * @return The index reader.
+   */
+  public IndexReader getReader() {
+    return reader;
+  }
+
+  /**
+   * The number of shards.
+   *
+   * @return The number of shards.
+   */
+  public int numShards() {
+    return shards.length;
+  }
+
+  /**
+   * The number of top documents kept from each shard before merging.
+   *
+   * @return k.
+   */
+  public int getTopK() {
+    return topK;
+  }
+
+  /**
+   * Evaluate a BM25 bag-of-words query on all shards in parallel.
+   *
+   * @param qTree The query tree.
+   * @param r The retrieval model.
+   * @return The merged result with global docids, or null if the query is not a BM25 #SUM of
+   *         terms.
+   * @throws IOException
+   */
+  public QryResult search(Qryop qTree, final RetrievalModel r) throws IOException {
+
+    if (!(r instanceof RetrievalModelBM25) || !(qTree instanceof QryopSlSum)) {
+      return null;
+    }
+    final List<QryopIlTerm> terms = ((QryopSlSum) qTree).getTerms();
+    if (terms == null) {
+      return null;
+    }
+
+    // Query term frequencies set by the planner
+    final double[] qtfs = new double[terms.size()];
+    for (int i = 0; i < terms.size(); i++) {
+      Qryop arg = qTree.args.get(i);
+      qtfs[i] = (arg instanceof QryopSlScore) ? ((QryopSlScore) arg).getQtf() : 1.0;
+    }
+
+    // Global statistics
+    final double N = reader.numDocs();
+    final double[] dfs = new double[terms.size()];
+    final double[] avglens = new double[terms.size()];
+    for (int i = 0; i < terms.size(); i++) {
+      String field = terms.get(i).getField();
+      dfs[i] = reader.docFreq(new Term(field, terms.get(i).getTerm()));
+      avglens[i] = (double) reader.getSumTotalTermFreq(field) / (double) reader.getDocCount(field);
+    }
+
+    List<Future<ScoreList>> futures = new ArrayList<Future<ScoreList>>();
+    for (final Shard shard : shards) {
+      futures.add(executor.submit(new Callable<ScoreList>() {
+        @Override
+        public ScoreList call() throws IOException {
+          return shard.search(terms, qtfs, r, N, dfs, avglens, topK);
+        }
+      }));
+    }
+
+    QryResult result = new QryResult();
+    for (Future<ScoreList> future : futures) {
+      ScoreList shardScores;
+      try {
+        shardScores = future.get();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+      for (int i = 0; i < shardScores.scores.size(); i++) {
+        result.docScores.add(shardScores.getDocid(i), shardScores.getDocidScore(i));
+      }
+    }
+    result.docScores = result.docScores.topK(topK);
+    return result;
+  }
+
+  /**
+   * Get the external id of a document from the shard that owns it.
+   *
+   * @param docid The global internal docid.
+   * @return The external id.
+   * @throws IOException
+   */
+  public String getExternalDocid(int docid) throws IOException {
+    Shard shard = getShard(docid);
+    return shard.reader.document(docid - shard.docBase).get("externalId");
+  }
+
+  /**
+   * Find the global internal docid of a document by looking its external id up in each shard.
+   *
+   * @param externalId The external document id.
+   * @return The global internal docid, or -1 if no shard has the document.
+   * @throws IOException
+   */
+  public int getInternalDocid(String externalId) throws IOException {
+
+    BytesRef term = new BytesRef(externalId);
+    for (Shard shard : shards) {
+      Terms ids = MultiFields.getTerms(shard.reader, "externalId");
+      if (ids == null) {
+        continue;
+      }
+      TermsEnum termsEnum = ids.iterator(null);
+      if (termsEnum.seekExact(term, false)) {
+        DocsEnum docs =
+            termsEnum.docs(MultiFields.getLiveDocs(shard.reader), null, DocsEnum.FLAG_NONE);
+        int docid = docs.nextDoc();
+        if (docid != DocIdSetIterator.NO_MORE_DOCS) {
+          return shard.docBase + docid;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * Find the shard that owns a global docid.
+   */
+  private Shard getShard(int docid) {
+
+    int lo = 0;
+    int hi = shards.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (shards[mid].docBase <= docid) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return shards[lo];
+  }
+
+  /**
+   * Stop the search threads.
+   */
+  public void close() {
+    executor.shutdown();
+  }
+
+  /*
+   * One shard with its docid offset and a dense score accumulator. A shard is searched by one
+   * thread at a time.
+   */
+  private static class Shard {
+
+    private IndexReader reader;
+    private int docBase;
+    private double[] scores;
+    private boolean[] matched;
+    private int[] touched;
+
+    private Shard(IndexReader reader, int docBase) {
+      this.reader = reader;
+      this.docBase = docBase;
+    }
+
+    /*
+     * Score the shard's postings of the query terms with global statistics, as QryopSlScore and
+     * QryopSlSum do, and return the top k with global docids.
+     */
+    private synchronized ScoreList search(List<QryopIlTerm> terms, double[] qtfs, RetrievalModel r,
+        double N, double[] dfs, double[] avglens, int k) throws IOException {
+
+      if (scores == null) {
+        scores = new double[reader.maxDoc()];
+        matched = new boolean[reader.maxDoc()];
+        touched = new int[reader.maxDoc()];
+      }
+
+      double b = r.getParameter("b");
+      double k_1 = r.getParameter("k_1");
+      double k_3 = r.getParameter("k_3");
+      DocLengthStore dls = new DocLengthStore(reader);
+
+      int numTouched = 0;
+      for (int t = 0; t < terms.size(); t++) {
+        String field = terms.get(t).getField();
+        Postings postings = Postings.read(reader, terms.get(t).getTerm(), field);
+        double df = dfs[t];
+        double idf_weight = Math.log((N - df + 0.5) / (df + 0.5));
+        idf_weight = Math.max(idf_weight, 0.0);
+        double user_weight = (k_3 + 1) * qtfs[t] / (k_3 + qtfs[t]);
+        int leaf = -1;
+        int leafEnd = 0;
+        NumericDocValues norms = null;
+        for (int i = 0; i < postings.getDf(); i++) {
+          int docid = postings.getDocid(i);
+          double tf = postings.getTf(i);
+          while (docid >= leafEnd) {
+            leaf++;
+            leafEnd = dls.getDocBase(leaf + 1);
+            norms = dls.getLeafValues(field, leaf);
+          }
+          double docLen = (norms == null) ? 0 : norms.get(docid - dls.getDocBase(leaf));
+          double tf_weight = tf / (tf + k_1 * ((1 - b) + b * docLen / avglens[t]));
+          double score = idf_weight * tf_weight * user_weight;
+          if (matched[docid]) {
+            scores[docid] += score;
+          } else {
+            matched[docid] = true;
+            scores[docid] = score;
+            touched[numTouched++] = docid;
+          }
+        }
+      }
+
+      ScoreList shardScores = new ScoreList();
+      for (int i = 0; i < numTouched; i++) {
+        int docid = touched[i];
+        shardScores.add(docBase + docid, scores[docid]);
+        matched[docid] = false;
+      }
+      return shardScores.topK(k);
+    }
+  }
+
+}
@@ -0,0 +1,321 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+/**
+ * This class stores the query-independent document features in a column store indexed by internal
+ * document id. The file is built once from the index and the PageRank file, and is memory-mapped
+ * afterwards, so that looking up a static feature is an array read instead of a stored document
+ * load.
+ *
+ * File layout (big-endian): a header of magic, version, maxDoc, index version, and the length and
+ * modification time of the PageRank file, followed by the columns spam score (float), PageRank
+ * (double, NaN if unknown), URL depth (int), URL length (int) and FromWikipedia (byte). PageRank is
+ * kept at full precision, so the feature is the same as the one computed from the PageRank file.
+ * The file is mapped in chunks of 1 GB, since a single mapping cannot exceed 2 GB.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class StaticFeatureStore {
+
+  private static int MAGIC = 0x53464331; // "SFC1"
+  private static int VERSION = 3;
+  private static int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 8;
+  private static int CHUNK_BITS = 30;
+  private static long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+  private MappedByteBuffer[] chunks;
+  private int maxDoc;
+  private long indexVersion;
+  private long pageRankLength;
+  private long pageRankModified;
+  private long spamOffset;
+  private long pageRankOffset;
+  private long urlDepthOffset;
+  private long urlLengthOffset;
+  private long wikiOffset;
+
+  /**
+   * Open a column store for an index, building it first if the file does not exist, has an older
+   * layout, or was built for a different version of the index or of the PageRank file.
+   *
+   * @param path The column store file.
+   * @param reader The index reader.
+   * @param pageRankPath The PageRank file, or null if PageRank is not available.
+   * @return The column store.
+   * @throws IOException
+   */
+  public static StaticFeatureStore open(String path, IndexReader reader, String pageRankPath)
+      throws IOException {
+
+    File file = new File(path);
+    if (file.exists()) {
+      try {
+        StaticFeatureStore store = new StaticFeatureStore(file);
+        File pageRankFile = (pageRankPath == null) ? null : new File(pageRankPath);
+        if (store.maxDoc == reader.maxDoc()
+            && store.indexVersion == SearchContext.getIndexVersion(reader)
+            && store.pageRankLength == fileLength(pageRankFile)
+            && store.pageRankModified == fileModified(pageRankFile)) {
+          return store;
+        }
+      } catch (IOException e) {
+        // Rebuilt below
+      }
+    }
+
+    build(reader, pageRankPath, file);
+    return new StaticFeatureStore(file);
+  }
+
+  /**
+   * Map an existing column store file.
+   *
+   * @param file The column store file.
+   * @throws IOException
+   */
+  public StaticFeatureStore(File file) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      int numChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+      chunks = new MappedByteBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        long start = (long) i << CHUNK_BITS;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(size - start, CHUNK_MASK + 1));
+      }
+    } finally {
+      raf.close();
+    }
+
+    if (chunks.length == 0 || getInt(0) != MAGIC || getInt(4) != VERSION) {
+      throw new IOException("Not a static feature store: " + file);
+    }
+    this.maxDoc = getInt(8);
+    this.indexVersion = getLong(12);
+    this.pageRankLength = getLong(20);
+    this.pageRankModified = getLong(28);
+
+    this.spamOffset = HEADER_SIZE;
+    this.pageRankOffset = spamOffset + 4L * maxDoc;
+    this.urlDepthOffset = pageRankOffset + 8L * maxDoc;
+    this.urlLengthOffset = urlDepthOffset + 4L * maxDoc;
+    this.wikiOffset = urlLengthOffset + 4L * maxDoc;
+  }
+
+  /**
+   * Returns the spam score of a document.
+   *
+   * @param docid The internal document id.
+   * @return The spam score.
+   */
+  public double getSpamScore(int docid) {
+    return Float.intBitsToFloat(getInt(spamOffset + 4L * docid));
+  }
+
+  /**
+   * Returns the PageRank score of a document.
+   *
+   * @param docid The internal document id.
+   * @return The PageRank score, or NaN if it is not known.
+   */
+  public double getPageRankScore(int docid) {
+    return Double.longBitsToDouble(getLong(pageRankOffset + 8L * docid));
+  }
+
+  /**
+   * Returns the URL depth (number of '/' characters in the raw URL) of a document.
+   *
+   * @param docid The internal document id.
+   * @return The URL depth.
+   */
+  public int getUrlDepth(int docid) {
+    return getInt(urlDepthOffset + 4L * docid);
+  }
+
+  /**
+   * Returns the length of the raw URL of a document.
+   *
+   * @param docid The internal document id.
+   * @return The URL length.
+   */
+  public int getUrlLength(int docid) {
+    return getInt(urlLengthOffset + 4L * docid);
+  }
+
+  /**
+   * Checks whether a document is from Wikipedia.
+   *
+   * @param docid The internal document id.
+   * @return 1.0 if the raw URL contains wikipedia.org, otherwise 0.0.
+   */
+  public double getWikiScore(int docid) {
+    long pos = wikiOffset + docid;
+    return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+  }
+
+  /*
+   * Read an int. The columns before the last one hold 4-byte values and start 4-byte aligned, so
+   * an int never spans two chunks.
+   */
+  private int getInt(long pos) {
+    return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+  }
+
+  /*
+   * Read a long as two ints, since longs are only 4-byte aligned.
+   */
+  private long getLong(long pos) {
+    return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+  }
+
+  /*
+   * The length of the PageRank file, or -1 if there is none.
+   */
+  private static long fileLength(File file) {
+    return (file == null || !file.exists()) ? -1 : file.length();
+  }
+
+  /*
+   * The modification time of the PageRank file, or 0 if there is none.
+   */
+  private static long fileModified(File file) {
+    return (file == null || !file.exists()) ? 0 : file.lastModified();
+  }
+
+  /**
+   * Build the column store file from the index.
+   *
+   * @param reader The index reader.
+   * @param pageRankPath The PageRank file, or null if PageRank is not available.
+   * @param file The output file.
+   * @throws IOException
+   */
+  public static void build(IndexReader reader, String pageRankPath, File file)
+      throws IOException {
+
+    File pageRankFile = (pageRankPath == null) ? null : new File(pageRankPath);
+    long pageRankLength = fileLength(pageRankFile);
+    long pageRankModified = fileModified(pageRankFile);
+    Map<String, Double> pageRankScores = new HashMap<String, Double>();
+    if (pageRankLength >= 0) {
+      BufferedReader pageRankReader = new BufferedReader(new FileReader(pageRankPath));
+      String line;
+      while ((line = pageRankReader.readLine()) != null) {
+        int tab = line.lastIndexOf('\t');
+        pageRankScores.put(line.substring(0, tab),
+            Double.parseDouble(line.substring(tab + 1)));
+      }
+      pageRankReader.close();
+    }
+
+    int maxDoc = reader.maxDoc();
+    float[] spam = new float[maxDoc];
+    double[] pageRank = new double[maxDoc];
+    int[] urlDepth = new int[maxDoc];
+    int[] urlLength = new int[maxDoc];
+    byte[] wiki = new byte[maxDoc];
+
+    Set<String> fieldsToLoad = new HashSet<String>();
+    fieldsToLoad.add("score");
+    fieldsToLoad.add("rawUrl");
+    fieldsToLoad.add("externalId");
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      pageRank[docid] = Double.NaN;
+      if (liveDocs != null && !liveDocs.get(docid)) {
+        continue;
+      }
+
+      Document d = reader.document(docid, fieldsToLoad);
+      String score = d.get("score");
+      String rawUrl = d.get("rawUrl");
+      if (score != null) {
+        spam[docid] = Integer.parseInt(score);
+      }
+      if (rawUrl != null) {
+        int depth = 0;
+        for (int i = 0; i < rawUrl.length(); i++) {
+          if (rawUrl.charAt(i) == '/') {
+            depth++;
+          }
+        }
+        urlDepth[docid] = depth;
+        urlLength[docid] = rawUrl.length();
+        wiki[docid] = (byte) (rawUrl.contains("wikipedia.org") ? 1 : 0);
+      }
+      Double pr = pageRankScores.get(d.get("externalId"));
+      if (pr != null) {
+        pageRank[docid] = pr;
+      }
+    }
+
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(maxDoc);
+    out.writeLong(SearchContext.getIndexVersion(reader));
+    out.writeLong(pageRankLength);
+    out.writeLong(pageRankModified);
+    for (int i = 0; i < maxDoc; i++) {
+      out.writeFloat(spam[i]);
+    }
+    for (int i = 0; i < maxDoc; i++) {
+      out.writeDouble(pageRank[i]);
+    }
+    for (int i = 0; i < maxDoc; i++) {
+      out.writeInt(urlDepth[i]);
+    }
+    for (int i = 0; i < maxDoc; i++) {
+      out.writeInt(urlLength[i]);
+    }
+    out.write(wiki);
+    out.close();
+  }
+
+  /**
+   * Build a column store offline.
+   *
+   * @param args indexPath pageRankFile outputFile
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length < 3) {
+      QryEval.fatalError("Usage:  java StaticFeatureStore indexPath pageRankFile outputFile");
+    }
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+    long startTime = System.currentTimeMillis();
+    build(reader, args[1], new File(args[2]));
+    System.out.println("Built static features for " + reader.maxDoc() + " documents in "
+        + (System.currentTimeMillis() - startTime) + " ms");
+    reader.close();
+  }
+
+}
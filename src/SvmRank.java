@@ -1,9 +1,22 @@
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
- * This class evokes SVM-Rank to do training and prediction.
+ * This class evokes SVM-Rank to do training and prediction. The programs are run by an
+ * {@link ExternalJobExecutor}.
+ * 
+ * If letor:svmRankParamC lists several values, C is chosen by cross-validation first: the
+ * training queries are split into letor:svmRankFolds folds (3 by default), a model is trained for
+ * every C and fold concurrently, and the C with the best mean NDCG@10 on the held-out folds is used
+ * to train the final model.
  * 
  * @author KyleMao
  *
@@ -34,39 +47,25 @@ public class SvmRank {
 
     // Read parameters used
     String svmRankLearnPath = params.get("letor:svmRankLearnPath");
-    String svmRankParamC = params.get("letor:svmRankParamC");
+    String[] cValues = params.get("letor:svmRankParamC").split(",");
     String trainFeatureFile = params.get("letor:trainingFeatureVectorsFile");
 
-    // Run svm_rank_learn from within Java to train the model
-    // svmRankLearnPath is the location of the svm_rank_learn utility,
-    // which is specified by letor:svmRankLearnPath in the parameter file.
-    // svmRankParamC is the value of the letor:svmRankParamC parameter.
-    Process cmdProc =
-        Runtime.getRuntime().exec(
-            new String[] {svmRankLearnPath, "-c", svmRankParamC, trainFeatureFile, modelPath});
-
-    // The stdout/stderr consuming code MUST be included.
-    // It prevents the OS from running out of output buffer space and stalling.
-
-    String line;
-    // Consume stdout and print it out for debugging purposes
-    BufferedReader stdoutReader =
-        new BufferedReader(new InputStreamReader(cmdProc.getInputStream()));
-    while ((line = stdoutReader.readLine()) != null) {
-      System.out.println(line);
-    }
-    // Consume stderr and print it for debugging purposes
-    BufferedReader stderrReader =
-        new BufferedReader(new InputStreamReader(cmdProc.getErrorStream()));
-    while ((line = stderrReader.readLine()) != null) {
-      System.out.println(line);
-    }
-
-    // Get the return value from the executable. 0 means success, non-zero
-    // indicates a problem
-    int retValue = cmdProc.waitFor();
-    if (retValue != 0) {
-      throw new Exception("SVM Rank crashed.");
+    ExternalJobExecutor executor = ExternalJobExecutor.create(params);
+    try {
+      String svmRankParamC = cValues[0].trim();
+      if (cValues.length > 1) {
+        svmRankParamC = selectC(executor, cValues, trainFeatureFile);
+      }
+
+      // Run svm_rank_learn to train the model with the chosen C
+      ExternalJobExecutor.JobResult result =
+          executor.run(new ExternalJobExecutor.Job("svm_rank_learn", svmRankLearnPath, "-c",
+              svmRankParamC, trainFeatureFile, modelPath));
+      if (!result.succeeded()) {
+        throw new Exception("SVM Rank crashed.");
+      }
+    } finally {
+      executor.close();
     }
   }
 
@@ -77,33 +76,180 @@ public class SvmRank {
     String testFeatureFile = params.get("letor:testingFeatureVectorsFile");
     String testDocScorePath = params.get("letor:testingDocumentScores");
 
-    // Run svm_rank_classify from within Java to use the model to do prediction
-    Process cmdProc =
-        Runtime.getRuntime().exec(
-            new String[] {svmRankClassifyPath, testFeatureFile, modelPath, testDocScorePath});
+    // Run svm_rank_classify to use the model to do prediction
+    ExternalJobExecutor executor = ExternalJobExecutor.create(params);
+    try {
+      ExternalJobExecutor.JobResult result =
+          executor.run(new ExternalJobExecutor.Job("svm_rank_classify", svmRankClassifyPath,
+              testFeatureFile, modelPath, testDocScorePath));
+      if (!result.succeeded()) {
+        throw new Exception("SVM Rank crashed.");
+      }
+    } finally {
+      executor.close();
+    }
+  }
 
-    // The stdout/stderr consuming code MUST be included.
-    // It prevents the OS from running out of output buffer space and stalling.
+  /**
+   * Read the weights of the trained linear model, so it can score feature vectors in-process. The
+   * model file is in the SVM-light format: a header with the kernel type, then one support vector
+   * line "alpha index:weight ... #", which for a linear kernel is the weight vector.
+   * 
+   * @param numFeatures The number of features.
+   * @return The weight of every feature, indexed from 0.
+   * @throws IOException if the model cannot be read or does not have a linear kernel.
+   */
+  public double[] getWeights(int numFeatures) throws IOException {
 
+    double[] weights = new double[numFeatures];
+    BufferedReader reader = new BufferedReader(new FileReader(modelPath));
     String line;
-    // Consume stdout and print it out for debugging purposes
-    BufferedReader stdoutReader =
-        new BufferedReader(new InputStreamReader(cmdProc.getInputStream()));
-    while ((line = stdoutReader.readLine()) != null) {
-      System.out.println(line);
+    String lastLine = null;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (lineNumber == 2 && !line.trim().startsWith("0")) {
+        reader.close();
+        throw new IOException("SVM Rank model is not linear: " + modelPath);
+      }
+      if (line.trim().length() > 0) {
+        lastLine = line;
+      }
     }
-    // Consume stderr and print it for debugging purposes
-    BufferedReader stderrReader =
-        new BufferedReader(new InputStreamReader(cmdProc.getErrorStream()));
-    while ((line = stderrReader.readLine()) != null) {
-      System.out.println(line);
+    reader.close();
+    if (lastLine == null || lastLine.indexOf(':') < 0) {
+      throw new IOException("SVM Rank model has no weight vector: " + modelPath);
     }
 
-    // Get the return value from the executable. 0 means success, non-zero
-    // indicates a problem
-    int retValue = cmdProc.waitFor();
-    if (retValue != 0) {
-      throw new Exception("SVM Rank crashed.");
+    int end = lastLine.indexOf('#');
+    String[] tokens = ((end < 0) ? lastLine : lastLine.substring(0, end)).trim().split("\\s+");
+    for (int i = 1; i < tokens.length; i++) {
+      int colon = tokens[i].indexOf(':');
+      int feature = Integer.parseInt(tokens[i].substring(0, colon)) - 1;
+      if (feature >= 0 && feature < numFeatures) {
+        weights[feature] = Double.parseDouble(tokens[i].substring(colon + 1));
+      }
     }
+    return weights;
   }
+
+  /*
+   * Choose C by cross-validation over the training queries. Every C and fold is trained, then
+   * classified, concurrently.
+   */
+  private String selectC(ExternalJobExecutor executor, String[] cValues, String trainFeatureFile)
+      throws Exception {
+
+    // Group the training vectors by query
+    List<List<String>> queries = new ArrayList<List<String>>();
+    BufferedReader reader = new BufferedReader(new FileReader(trainFeatureFile));
+    String line;
+    String lastQueryId = null;
+    while ((line = reader.readLine()) != null) {
+      String[] parts = line.split(" ", 3);
+      if (parts.length < 2) {
+        continue;
+      }
+      if (!parts[1].equals(lastQueryId)) {
+        queries.add(new ArrayList<String>());
+        lastQueryId = parts[1];
+      }
+      queries.get(queries.size() - 1).add(line);
+    }
+    reader.close();
+
+    int folds = 3;
+    if (params.containsKey("letor:svmRankFolds")) {
+      folds = Integer.parseInt(params.get("letor:svmRankFolds"));
+    }
+    folds = Math.min(folds, queries.size());
+    if (folds < 2) {
+      System.err.println("Warning: too few training queries to choose C; using "
+          + cValues[0].trim());
+      return cValues[0].trim();
+    }
+
+    // Write the training and held-out vectors of every fold
+    File dir = Files.createTempDirectory("svmrank").toFile();
+    try {
+      for (int f = 0; f < folds; f++) {
+        BufferedWriter train = new BufferedWriter(new FileWriter(new File(dir, "train" + f)));
+        BufferedWriter test = new BufferedWriter(new FileWriter(new File(dir, "test" + f)));
+        for (int q = 0; q < queries.size(); q++) {
+          BufferedWriter writer = (q % folds == f) ? test : train;
+          for (String vector : queries.get(q)) {
+            writer.write(vector);
+            writer.newLine();
+          }
+        }
+        train.close();
+        test.close();
+      }
+
+      // Train every C and fold, then classify the held-out folds
+      List<ExternalJobExecutor.Job> learnJobs = new ArrayList<ExternalJobExecutor.Job>();
+      List<ExternalJobExecutor.Job> classifyJobs = new ArrayList<ExternalJobExecutor.Job>();
+      for (int c = 0; c < cValues.length; c++) {
+        for (int f = 0; f < folds; f++) {
+          String name = "C=" + cValues[c].trim() + " fold " + f;
+          String model = new File(dir, "model" + c + "_" + f).getPath();
+          learnJobs.add(new ExternalJobExecutor.Job("svm_rank_learn " + name, params
+              .get("letor:svmRankLearnPath"), "-c", cValues[c].trim(),
+              new File(dir, "train" + f).getPath(), model));
+          classifyJobs.add(new ExternalJobExecutor.Job("svm_rank_classify " + name, params
+              .get("letor:svmRankClassifyPath"), new File(dir, "test" + f).getPath(), model,
+              new File(dir, "scores" + c + "_" + f).getPath()));
+        }
+      }
+      checkResults(executor.runAll(learnJobs));
+      checkResults(executor.runAll(classifyJobs));
+
+      // Pick the C with the best mean NDCG@10 over the held-out queries
+      int best = 0;
+      double bestNdcg = -1;
+      for (int c = 0; c < cValues.length; c++) {
+        double sum = 0;
+        int n = 0;
+        for (int f = 0; f < folds; f++) {
+          RunFileReader scores = new RunFileReader(new File(dir, "scores" + c + "_" + f).getPath());
+          for (int q = f; q < queries.size(); q += folds) {
+            List<String> vectors = queries.get(q);
+            int[] labels = new int[vectors.size()];
+            double[] predicted = new double[vectors.size()];
+            for (int i = 0; i < vectors.size(); i++) {
+              String vector = vectors.get(i);
+              labels[i] = Integer.parseInt(vector.substring(0, vector.indexOf(' ')));
+              predicted[i] = scores.nextDouble();
+            }
+            sum += LambdaMart.ndcg(labels, predicted, 10);
+            n++;
+          }
+          scores.close();
+        }
+        double ndcg = sum / n;
+        System.out.println(String.format("SVM-Rank: C=%s mean NDCG@10 %.4f over %d folds",
+            cValues[c].trim(), ndcg, folds));
+        if (ndcg > bestNdcg) {
+          bestNdcg = ndcg;
+          best = c;
+        }
+      }
+      System.out.println("SVM-Rank: chose C=" + cValues[best].trim());
+      return cValues[best].trim();
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  private static void checkResults(List<ExternalJobExecutor.JobResult> results) throws Exception {
+    for (ExternalJobExecutor.JobResult result : results) {
+      if (!result.succeeded()) {
+        throw new Exception("SVM Rank crashed: " + result.name);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,460 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * This class is a global term dictionary that maps (field, stem) pairs to integer term ids. It is
+ * built once from the index and memory-mapped afterwards. Each field owns a contiguous range of
+ * ids in term order, so ids are unique across fields and the ids of a document vector are sorted.
+ * The dictionary also stores the df and ctf of every term.
+ *
+ * File layout (big-endian): a header, then for each field its df, ctf, term offset and term byte
+ * arrays followed by an open-addressing hash table from stem to id, then a field table, and finally
+ * the offset of the field table.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class TermDictionary {
+
+  private static int MAGIC = 0x54444331; // "TDC1"
+  private static int VERSION = 1;
+  private static int CHUNK_BITS = 30;
+  private static long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+  private MappedByteBuffer[] chunks;
+  private long indexVersion;
+  private int numTerms;
+  private Map<String, Field> fields = new HashMap<String, Field>();
+  private Field[] fieldsById;
+
+  /**
+   * Open the term dictionary of an index, building it first if the file does not exist or was
+   * built for a different version of the index.
+   *
+   * @param path The dictionary file.
+   * @param reader The index reader.
+   * @return The term dictionary.
+   * @throws IOException
+   */
+  public static TermDictionary open(String path, IndexReader reader) throws IOException {
+
+    File file = new File(path);
+    if (file.exists()) {
+      TermDictionary dictionary = new TermDictionary(file);
+      if (dictionary.indexVersion == SearchContext.getIndexVersion(reader)) {
+        return dictionary;
+      }
+    }
+
+    build(reader, file);
+    return new TermDictionary(file);
+  }
+
+  /**
+   * Map an existing dictionary file.
+   *
+   * @param file The dictionary file.
+   * @throws IOException
+   */
+  public TermDictionary(File file) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      int numChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+      chunks = new MappedByteBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        long start = (long) i << CHUNK_BITS;
+        chunks[i] =
+            channel.map(FileChannel.MapMode.READ_ONLY, start,
+                Math.min(size - start, CHUNK_MASK + 1));
+      }
+
+      if (getInt(0) != MAGIC || getInt(4) != VERSION) {
+        throw new IOException("Not a term dictionary: " + file);
+      }
+      indexVersion = getLong(8);
+
+      // Read the field table
+      raf.seek(getLong(size - 8));
+      int numFields = raf.readInt();
+      fieldsById = new Field[numFields];
+      for (int i = 0; i < numFields; i++) {
+        Field field = new Field();
+        field.name = raf.readUTF();
+        field.base = raf.readInt();
+        field.numTerms = raf.readInt();
+        field.dfPos = raf.readLong();
+        field.ctfPos = raf.readLong();
+        field.termOffsetsPos = raf.readLong();
+        field.termBytesPos = raf.readLong();
+        field.hashPos = raf.readLong();
+        field.hashMask = raf.readInt();
+        fields.put(field.name, field);
+        fieldsById[i] = field;
+        numTerms = Math.max(numTerms, field.base + field.numTerms);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * The number of term ids, i.e. one more than the largest id.
+   *
+   * @return The number of terms in all fields.
+   */
+  public int numTerms() {
+    return numTerms;
+  }
+
+  /**
+   * Get the id of a stem in a field.
+   *
+   * @param fieldName The field name.
+   * @param stem The processed (stemmed, lower-cased, etc) term string.
+   * @return The term id, or -1 if the stem does not occur in the field.
+   */
+  public int getId(String fieldName, String stem) {
+
+    Field field = fields.get(fieldName);
+    if (field == null) {
+      return -1;
+    }
+    int slot = mix(stem.hashCode()) & field.hashMask;
+    while (true) {
+      int entry = getInt(field.hashPos + 4L * slot);
+      if (entry == 0) {
+        return -1;
+      }
+      int ordinal = entry - 1;
+      if (termEquals(field, ordinal, stem)) {
+        return field.base + ordinal;
+      }
+      slot = (slot + 1) & field.hashMask;
+    }
+  }
+
+  /**
+   * Translate stems to term ids in a field.
+   *
+   * @param fieldName The field name.
+   * @param stems The processed query stems.
+   * @return The term ids, with -1 for stems that do not occur in the field.
+   */
+  public int[] getIds(String fieldName, String[] stems) {
+
+    int[] ids = new int[stems.length];
+    for (int i = 0; i < stems.length; i++) {
+      ids[i] = getId(fieldName, stems[i]);
+    }
+    return ids;
+  }
+
+  /**
+   * Returns the df of a term.
+   *
+   * @param id The term id.
+   * @return The document frequency.
+   */
+  public int getDf(int id) {
+    Field field = getField(id);
+    return getInt(field.dfPos + 4L * (id - field.base));
+  }
+
+  /**
+   * Returns the ctf of a term.
+   *
+   * @param id The term id.
+   * @return The collection term frequency.
+   */
+  public long getCtf(int id) {
+    Field field = getField(id);
+    return getLong(field.ctfPos + 8L * (id - field.base));
+  }
+
+  /**
+   * Returns the stem of a term.
+   *
+   * @param id The term id.
+   * @return The stem string.
+   */
+  public String getStem(int id) {
+
+    Field field = getField(id);
+    int ordinal = id - field.base;
+    int start = getInt(field.termOffsetsPos + 4L * ordinal);
+    int end = getInt(field.termOffsetsPos + 4L * (ordinal + 1));
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = getByte(field.termBytesPos + start + i);
+    }
+    return new BytesRef(bytes).utf8ToString();
+  }
+
+  /**
+   * Returns the first term id of a field, or -1 if the field is unknown. The field's ids are
+   * [base, base + number of terms).
+   *
+   * @param fieldName The field name.
+   * @return The first term id of the field.
+   */
+  public int getFieldBase(String fieldName) {
+    Field field = fields.get(fieldName);
+    return (field == null) ? -1 : field.base;
+  }
+
+  /*
+   * Find the field that owns a term id.
+   */
+  private Field getField(int id) {
+
+    int lo = 0;
+    int hi = fieldsById.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (fieldsById[mid].base <= id) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return fieldsById[lo];
+  }
+
+  /*
+   * Compare a stored term with a string without decoding it. Stems are almost always ASCII; other
+   * terms are decoded.
+   */
+  private boolean termEquals(Field field, int ordinal, String stem) {
+
+    int start = getInt(field.termOffsetsPos + 4L * ordinal);
+    int end = getInt(field.termOffsetsPos + 4L * (ordinal + 1));
+    int length = end - start;
+    boolean ascii = true;
+    for (int i = 0; i < length; i++) {
+      if (getByte(field.termBytesPos + start + i) < 0) {
+        ascii = false;
+        break;
+      }
+    }
+    if (!ascii) {
+      return getStem(field.base + ordinal).equals(stem);
+    }
+
+    if (length != stem.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (getByte(field.termBytesPos + start + i) != stem.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Spread the bits of String.hashCode over the table.
+   */
+  private static int mix(int h) {
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+
+  /*
+   * Per-field section offsets.
+   */
+  private static class Field {
+    private String name;
+    private int base;
+    private int numTerms;
+    private long dfPos;
+    private long ctfPos;
+    private long termOffsetsPos;
+    private long termBytesPos;
+    private long hashPos;
+    private int hashMask;
+  }
+
+  private byte getByte(long pos) {
+    return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+  }
+
+  /*
+   * Read an int. Sections are written with 4-byte alignment, so an int never spans two chunks.
+   */
+  private int getInt(long pos) {
+    return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+  }
+
+  /*
+   * Read a long as two ints, since longs are only 4-byte aligned.
+   */
+  private long getLong(long pos) {
+    return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+  }
+
+  /**
+   * Build a dictionary file covering every indexed field.
+   *
+   * @param reader The index reader.
+   * @param file The output file.
+   * @throws IOException
+   */
+  public static void build(IndexReader reader, File file) throws IOException {
+
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    long position = 0;
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(SearchContext.getIndexVersion(reader));
+    position += 16;
+
+    List<Field> fieldList = new ArrayList<Field>();
+    int base = 0;
+    for (String fieldName : MultiFields.getIndexedFields(reader)) {
+      Terms fieldTerms = MultiFields.getTerms(reader, fieldName);
+      if (fieldTerms == null) {
+        continue;
+      }
+
+      List<Integer> dfs = new ArrayList<Integer>();
+      List<Long> ctfs = new ArrayList<Long>();
+      List<String> stems = new ArrayList<String>();
+      List<byte[]> termBytes = new ArrayList<byte[]>();
+      TermsEnum termsEnum = fieldTerms.iterator(null);
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        dfs.add(termsEnum.docFreq());
+        ctfs.add(termsEnum.totalTermFreq());
+        stems.add(term.utf8ToString());
+        byte[] bytes = new byte[term.length];
+        System.arraycopy(term.bytes, term.offset, bytes, 0, term.length);
+        termBytes.add(bytes);
+      }
+
+      Field field = new Field();
+      field.name = fieldName;
+      field.base = base;
+      field.numTerms = stems.size();
+      base += field.numTerms;
+
+      field.dfPos = position;
+      for (int df : dfs) {
+        out.writeInt(df);
+      }
+      position += 4L * dfs.size();
+      field.ctfPos = position;
+      for (long ctf : ctfs) {
+        out.writeLong(ctf);
+      }
+      position += 8L * ctfs.size();
+      field.termOffsetsPos = position;
+      int termOffset = 0;
+      out.writeInt(0);
+      for (byte[] bytes : termBytes) {
+        termOffset += bytes.length;
+        out.writeInt(termOffset);
+      }
+      position += 4L * (termBytes.size() + 1);
+      field.termBytesPos = position;
+      for (byte[] bytes : termBytes) {
+        out.write(bytes);
+      }
+      position += termOffset;
+      while (position % 4 != 0) {
+        out.write(0);
+        position++;
+      }
+
+      // Hash table with a load factor of at most 0.5. Slots hold ordinal + 1; 0 is empty.
+      int tableSize = 2;
+      while (tableSize < 2 * Math.max(1, stems.size())) {
+        tableSize <<= 1;
+      }
+      int[] table = new int[tableSize];
+      field.hashMask = tableSize - 1;
+      for (int ordinal = 0; ordinal < stems.size(); ordinal++) {
+        int slot = mix(stems.get(ordinal).hashCode()) & field.hashMask;
+        while (table[slot] != 0) {
+          slot = (slot + 1) & field.hashMask;
+        }
+        table[slot] = ordinal + 1;
+      }
+      field.hashPos = position;
+      for (int entry : table) {
+        out.writeInt(entry);
+      }
+      position += 4L * tableSize;
+
+      fieldList.add(field);
+    }
+
+    long fieldTablePos = position;
+    ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+    DataOutputStream table = new DataOutputStream(tableBytes);
+    table.writeInt(fieldList.size());
+    for (Field field : fieldList) {
+      table.writeUTF(field.name);
+      table.writeInt(field.base);
+      table.writeInt(field.numTerms);
+      table.writeLong(field.dfPos);
+      table.writeLong(field.ctfPos);
+      table.writeLong(field.termOffsetsPos);
+      table.writeLong(field.termBytesPos);
+      table.writeLong(field.hashPos);
+      table.writeInt(field.hashMask);
+    }
+    while (table.size() % 4 != 0) {
+      table.write(0);
+    }
+    out.write(tableBytes.toByteArray());
+    out.writeLong(fieldTablePos);
+    out.close();
+  }
+
+  /**
+   * Build a term dictionary offline.
+   *
+   * @param args indexPath outputFile
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length < 2) {
+      QryEval.fatalError("Usage:  java TermDictionary indexPath outputFile");
+    }
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+    long startTime = System.currentTimeMillis();
+    build(reader, new File(args[1]));
+    System.out.println("Built term dictionary for " + reader.maxDoc() + " documents in "
+        + (System.currentTimeMillis() - startTime) + " ms");
+    reader.close();
+  }
+
+}
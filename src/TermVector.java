@@ -14,11 +14,12 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 
-public class TermVector {
+public class TermVector implements DocVector {
 
   /**
    * Class variables.
    */
+  SearchContext context;
   Terms luceneTerms;
   int[] positions;
   String[] stems;
@@ -26,15 +27,17 @@ public class TermVector {
   Term[] terms;
 
   /**
-   * Constructor. Create a TermVector for a field in a document.
+   * Constructor. Create a TermVector for a field in a document. Collection statistics of its stems
+   * are read through the search context.
    * 
    * @return {@link TermVector}
    */
-  public TermVector(int docId, String fieldName) throws IOException {
+  public TermVector(SearchContext context, int docId, String fieldName) throws IOException {
 
     // Fetch the term vector.
 
-    this.luceneTerms = QryEval.READER.getTermVector(docId, fieldName);
+    this.context = context;
+    this.luceneTerms = context.getReader().getTermVector(docId, fieldName);
 
     // Allocate space for stems. The 0'th stem indicates a stopword.
 
@@ -156,7 +159,7 @@ public class TermVector {
    * @throws IOException.
    */
   public long totalStemFreq(int i) throws IOException {
-    return QryEval.READER.totalTermFreq(terms[i]);
+    return context.totalTermFreq(terms[i].field(), terms[i].text());
   }
 
   /**
@@ -167,7 +170,7 @@ public class TermVector {
    * @throws IOException.
    */
   public int stemDf(int i) throws IOException {
-    return QryEval.READER.docFreq(terms[i]);
+    return (int) context.docFreq(terms[i].field(), terms[i].text());
   }
 
 }
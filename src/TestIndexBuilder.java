@@ -0,0 +1,166 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * This class builds a synthetic index with the fields that query evaluation and feature generation
+ * read: body, title, url and inlink with term vectors, and the stored externalId, rawUrl and spam
+ * score. As in the indexes that this code normally reads, the norm of a field is its length, which
+ * is what {@link DocLengthStore} returns. Words are drawn from a Zipf-like distribution, so there
+ * are a few very common terms and a long tail of rare ones. The index is merged into one segment,
+ * so the index, its page rank file and its queries are a function of the seed and the number of
+ * documents only, and benchmark results on two machines or two versions of the code are
+ * comparable.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class TestIndexBuilder {
+
+  private static String[] WORDS = ("apple banana cherry dog elephant fish grape house island "
+      + "jungle kite lemon mountain night ocean pizza queen river sun tree umbrella violin water "
+      + "xray yellow zebra the of and running cats").split(" ");
+  private static int VOCABULARY = WORDS.length * 40;
+  private static int N_QUERIES = 200;
+
+  /*
+   * A similarity whose norm is the length of the field in tokens. Lucene scoring is not used, so
+   * the rest is Lucene's default.
+   */
+  private static class LengthSimilarity extends Similarity {
+
+    private Similarity scoring = new DefaultSimilarity();
+
+    @Override
+    public long computeNorm(FieldInvertState state) {
+      return state.getLength();
+    }
+
+    @Override
+    public SimWeight computeWeight(float queryBoost, CollectionStatistics collectionStats,
+        TermStatistics... termStats) {
+      return scoring.computeWeight(queryBoost, collectionStats, termStats);
+    }
+
+    @Override
+    public ExactSimScorer exactSimScorer(SimWeight weight, AtomicReaderContext context)
+        throws IOException {
+      return scoring.exactSimScorer(weight, context);
+    }
+
+    @Override
+    public SloppySimScorer sloppySimScorer(SimWeight weight, AtomicReaderContext context)
+        throws IOException {
+      return scoring.sloppySimScorer(weight, context);
+    }
+  }
+
+  /**
+   * Build an index, its page rank file (indexPath.pagerank) and a query file (indexPath.queries).
+   * An existing index at the path is replaced.
+   *
+   * @param indexPath The directory of the index.
+   * @param numDocs The number of documents.
+   * @param seed The random seed.
+   * @throws IOException
+   */
+  public static void build(String indexPath, int numDocs, long seed) throws IOException {
+
+    IndexWriterConfig config =
+        new IndexWriterConfig(Version.LUCENE_43, SearchContext.newAnalyzer());
+    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    config.setSimilarity(new LengthSimilarity());
+    IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexPath)), config);
+    FieldType withVectors = new FieldType(TextField.TYPE_NOT_STORED);
+    withVectors.setStoreTermVectors(true);
+    withVectors.setStoreTermVectorPositions(true);
+    withVectors.freeze();
+
+    Random random = new Random(seed);
+    PrintWriter pageRanks = new PrintWriter(indexPath + ".pagerank");
+    for (int d = 0; d < numDocs; d++) {
+      String externalId = String.format("clueweb09-en0000-00-%05d", d);
+      String url =
+          ((random.nextInt(5) == 0) ? "http://en.wikipedia.org/wiki/" : "http://www.site" + d
+              + ".com/a/")
+              + WORDS[random.nextInt(WORDS.length)];
+
+      Document doc = new Document();
+      doc.add(new StringField("externalId", externalId, Field.Store.YES));
+      doc.add(new StoredField("score", Integer.toString(random.nextInt(100))));
+      doc.add(new StoredField("rawUrl", url));
+      doc.add(new Field("body", text(random, 50 + random.nextInt(200)), withVectors));
+      doc.add(new Field("title", text(random, 1 + random.nextInt(6)), withVectors));
+      doc.add(new Field("url", url.replace('/', ' ').replace('.', ' '), withVectors));
+      if (random.nextInt(3) > 0) {
+        doc.add(new Field("inlink", text(random, 1 + random.nextInt(20)), withVectors));
+      }
+      writer.addDocument(doc);
+
+      if (random.nextInt(2) == 0) {
+        pageRanks.println(externalId + "\t" + random.nextDouble());
+      }
+    }
+    writer.forceMerge(1);
+    writer.close();
+    pageRanks.close();
+
+    PrintWriter queries = new PrintWriter(indexPath + ".queries");
+    for (int q = 0; q < N_QUERIES; q++) {
+      queries.println(q + ":" + text(random, 1 + random.nextInt(4)).trim());
+    }
+    queries.close();
+  }
+
+  /*
+   * Random text of a number of words. Word k of the vocabulary is drawn with probability roughly
+   * proportional to 1 / (k + 1).
+   */
+  private static String text(Random random, int length) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      int k =
+          (int) Math.min(VOCABULARY - 1,
+              Math.exp(random.nextDouble() * Math.log(VOCABULARY)) - 1);
+      sb.append((k < WORDS.length) ? WORDS[k] : "w" + k).append(' ');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Build a test index.
+   *
+   * @param args indexPath [numDocs] [seed]
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      QryEval.fatalError("Usage:  java TestIndexBuilder indexPath [numDocs] [seed]");
+    }
+    int numDocs = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+    long seed = (args.length > 2) ? Long.parseLong(args[2]) : 42;
+    build(args[0], numDocs, seed);
+    System.out.println("Built " + numDocs + " documents in " + args[0]);
+  }
+
+}
@@ -0,0 +1,479 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * This class checks that the faster evaluation paths give the results of the simple ones, on a test
+ * index built by {@link TestIndexBuilder}: every check evaluates the test queries, or random
+ * queries over the index vocabulary, both ways and compares the documents and scores.
+ *
+ * Usage: java Verification indexPath [pattern]
+ *
+ * The test index is built with the default size and seed if indexPath does not exist. Only the
+ * checks whose names match the pattern are run. Every mismatch is reported, and the exit status is
+ * 1 if there was any.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class Verification {
+
+  private static int N_TEST_DOCS = 20000;
+  private static long TEST_SEED = 42;
+  private static int N_PAIRS = 200;
+  private static int N_CANDIDATES = 100;
+  private static int N_LISTS = 2000;
+
+  // Scores computed in a different order may differ in the last bits
+  private static double TOLERANCE = 1e-9;
+
+  // BM25F with one field does the same arithmetic as BM25, but sums the terms in another order
+  private static double BM25F_TOLERANCE = 1e-15;
+
+  /*
+   * One check: a comparison that counts its cases and reports its mismatches.
+   */
+  private static abstract class Check {
+
+    private String name;
+    private int cases = 0;
+    private int mismatches = 0;
+
+    private Check(String name) {
+      this.name = name;
+    }
+
+    abstract void run() throws Exception;
+
+    void expect(boolean ok, String description) {
+      cases++;
+      if (!ok) {
+        mismatches++;
+        System.out.println(String.format("%-20s MISMATCH %s", name, description));
+      }
+    }
+  }
+
+  private SearchContext context;
+  private RetrievalModel modelBM25;
+  private RetrievalModel modelIndri;
+  private List<String> queries = new ArrayList<String>();
+  private List<String[]> queryStems = new ArrayList<String[]>();
+  private List<String> vocabulary;
+
+  private Verification(SearchContext context, String queryPath) throws Exception {
+
+    this.context = context;
+    modelBM25 = newBM25(0);
+    modelIndri = new RetrievalModelIndri();
+    modelIndri.setParameter("mu", 2500);
+    modelIndri.setParameter("lambda", 0.4);
+
+    BufferedReader in = new BufferedReader(new FileReader(queryPath));
+    String line;
+    while ((line = in.readLine()) != null) {
+      String query = line.substring(line.indexOf(':') + 1);
+      String[] stems = context.tokenizeQuery(query);
+      if (stems.length > 0) {
+        queries.add(query);
+        queryStems.add(stems);
+      }
+    }
+    in.close();
+
+    Set<String> stems = new TreeSet<String>();
+    for (String[] query : queryStems) {
+      stems.addAll(Arrays.asList(query));
+    }
+    vocabulary = new ArrayList<String>(stems);
+  }
+
+  private static RetrievalModel newBM25(double k_3) {
+    RetrievalModel model = new RetrievalModelBM25();
+    model.setParameter("b", 0.75);
+    model.setParameter("k_1", 1.2);
+    model.setParameter("k_3", k_3);
+    return model;
+  }
+
+  /*
+   * The scores of a query's documents, by internal docid.
+   */
+  private Map<Integer, Double> scores(Qryop qTree, RetrievalModel r) throws Exception {
+
+    ScoreList scoreList = context.evaluate(qTree, r).docScores;
+    Map<Integer, Double> scores = new HashMap<Integer, Double>();
+    for (int i = 0; i < scoreList.scores.size(); i++) {
+      scores.put(scoreList.getDocid(i), scoreList.getDocidScore(i));
+    }
+    return scores;
+  }
+
+  /*
+   * Whether two evaluations return the same documents with the same scores, to a relative
+   * tolerance.
+   */
+  private static boolean sameScores(Map<Integer, Double> expected, Map<Integer, Double> actual,
+      double tolerance) {
+
+    if (!expected.keySet().equals(actual.keySet())) {
+      return false;
+    }
+    for (Map.Entry<Integer, Double> e : expected.entrySet()) {
+      double a = actual.get(e.getKey());
+      if (Math.abs(a - e.getValue()) > tolerance * Math.max(1.0, Math.abs(e.getValue()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * The positions of a term in every document of the body field, by internal docid.
+   */
+  private Map<Integer, int[]> positions(String term) throws Exception {
+
+    Postings postings = Postings.read(context.getReader(), term, "body");
+    Map<Integer, int[]> positions = new HashMap<Integer, int[]>();
+    for (int i = 0; i < postings.getDf(); i++) {
+      int[] p = new int[postings.getTf(i)];
+      for (int j = 0; j < p.length; j++) {
+        p[j] = postings.getPosition(i, j);
+      }
+      positions.put(postings.getDocid(i), p);
+    }
+    return positions;
+  }
+
+  /*
+   * The matches of #NEAR/n(x y) or #WINDOW/n(x y) in every document, by brute force: every
+   * document of x is scanned for the matches of its positions, without the operators' cursors.
+   */
+  private static TreeMap<Integer, Integer> proximityMatches(Map<Integer, int[]> x,
+      Map<Integer, int[]> y, int n, boolean window) {
+
+    TreeMap<Integer, Integer> matches = new TreeMap<Integer, Integer>();
+    for (Map.Entry<Integer, int[]> e : x.entrySet()) {
+      int[] p = e.getValue();
+      int[] q = y.get(e.getKey());
+      if (q == null) {
+        continue;
+      }
+      int count = 0;
+      if (window) {
+        // The two positions, in either order, span less than n words
+        for (int i = 0, j = 0; i < p.length && j < q.length;) {
+          if (Math.max(p[i], q[j]) - Math.min(p[i], q[j]) < n) {
+            count++;
+            i++;
+            j++;
+          } else if (p[i] < q[j]) {
+            i++;
+          } else {
+            j++;
+          }
+        }
+      } else {
+        // y follows x by at most n words
+        for (int i = 0, j = 0; i < p.length; i++) {
+          while (j < q.length && q[j] <= p[i]) {
+            j++;
+          }
+          if (j == q.length) {
+            break;
+          }
+          if (q[j] - p[i] <= n) {
+            count++;
+            j++;
+          }
+        }
+      }
+      if (count > 0) {
+        matches.put(e.getKey(), count);
+      }
+    }
+    return matches;
+  }
+
+  /*
+   * Whether an inverted list has exactly the documents and term frequencies of a match map.
+   */
+  private static boolean sameMatches(InvList list, TreeMap<Integer, Integer> matches) {
+
+    if (list.df != matches.size()) {
+      return false;
+    }
+    int i = 0;
+    for (Map.Entry<Integer, Integer> e : matches.entrySet()) {
+      if (list.getDocid(i) != e.getKey() || list.getTf(i) != e.getValue()) {
+        return false;
+      }
+      i++;
+    }
+    return true;
+  }
+
+  /*
+   * The checks.
+   */
+  private List<Check> checks() {
+
+    List<Check> checks = new ArrayList<Check>();
+
+    // EnglishAnalyzerConfigurable.analyze, with its reused pipeline and stem memo, gives the terms
+    // of the analyzer's token stream. Every text is analyzed twice, so the second is memoized.
+    checks.add(new Check("analyzer") {
+
+      @Override
+      void run() throws Exception {
+        EnglishAnalyzerConfigurable analyzer = SearchContext.newAnalyzer();
+        String[] extras = {"U.S. Running CATS", "new-york, times!", "  the of AND  ", "don't 1999"};
+        Random random = new Random(TEST_SEED);
+        List<String> texts = new ArrayList<String>(queries);
+        texts.addAll(Arrays.asList(extras));
+        for (String query : queries) {
+          texts.add(random.nextBoolean() ? query.toUpperCase() : query.replace(' ', ','));
+        }
+        for (int pass = 0; pass < 2; pass++) {
+          for (String text : texts) {
+            List<String> expected = new ArrayList<String>();
+            TokenStream tokenStream = analyzer.tokenStream("body", new StringReader(text));
+            CharTermAttribute charTerm = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+              expected.add(charTerm.toString());
+            }
+            tokenStream.end();
+            tokenStream.close();
+            expect(expected.equals(Arrays.asList(analyzer.analyze(text))), "[" + text + "]");
+          }
+        }
+      }
+    });
+
+    // Without repeated terms, the planner only reorders and drops terms that match nothing. With a
+    // very large k_3, the user weight of a repeated term is its number of repetitions, which is
+    // what evaluating every repetition adds.
+    checks.add(new Check("planner") {
+
+      @Override
+      void run() throws Exception {
+        QueryPlanner planner = new QueryPlanner(context, false);
+        RetrievalModel linear = newBM25(1e12);
+        for (int q = 0; q < queries.size(); q++) {
+          String query = queries.get(q);
+          Set<String> distinct = new HashSet<String>(Arrays.asList(queryStems.get(q)));
+          if (distinct.size() == queryStems.get(q).length) {
+            context.setPlanner(null);
+            Map<Integer, Double> expected = scores(context.parseQuery(query, modelBM25), modelBM25);
+            context.setPlanner(planner);
+            Map<Integer, Double> actual = scores(context.parseQuery(query, modelBM25), modelBM25);
+            expect(sameScores(expected, actual, TOLERANCE), "[" + query + "]");
+          }
+
+          String repeated = query + " " + queryStems.get(q)[0] + " " + queryStems.get(q)[0];
+          context.setPlanner(null);
+          Map<Integer, Double> expected = scores(context.parseQuery(repeated, linear), linear);
+          context.setPlanner(planner);
+          Map<Integer, Double> actual = scores(context.parseQuery(repeated, linear), linear);
+          expect(sameScores(expected, actual, TOLERANCE), "[" + repeated + "] with k_3=1e12");
+        }
+        context.setPlanner(null);
+      }
+    });
+
+    // #NEAR/n and #WINDOW/n against a brute-force matcher, on random pairs of query terms
+    checks.add(new Check("proximity") {
+
+      @Override
+      void run() throws Exception {
+        Random random = new Random(TEST_SEED);
+        for (int i = 0; i < N_PAIRS; i++) {
+          String x = vocabulary.get(random.nextInt(vocabulary.size()));
+          String y = vocabulary.get(random.nextInt(vocabulary.size()));
+          int n = 1 + random.nextInt(8);
+          Map<Integer, int[]> px = positions(x);
+          Map<Integer, int[]> py = positions(y);
+
+          Qryop near = new QryopIlNear(n, new QryopIlTerm(x), new QryopIlTerm(y));
+          expect(sameMatches(near.evaluate(modelIndri, context).invertedList,
+              proximityMatches(px, py, n, false)), "#near/" + n + "(" + x + " " + y + ")");
+          Qryop window = new QryopIlWindow(n, new QryopIlTerm(x), new QryopIlTerm(y));
+          expect(sameMatches(window.evaluate(modelIndri, context).invertedList,
+              proximityMatches(px, py, n, true)), "#window/" + n + "(" + x + " " + y + ")");
+        }
+      }
+    });
+
+    // The df and ctf of #SYN are those of the union of its arguments
+    checks.add(new Check("syn") {
+
+      @Override
+      void run() throws Exception {
+        Random random = new Random(TEST_SEED);
+        for (int i = 0; i < N_PAIRS; i++) {
+          String x = vocabulary.get(random.nextInt(vocabulary.size()));
+          String y = vocabulary.get(random.nextInt(vocabulary.size()));
+          if (x.equals(y)) {
+            continue;
+          }
+          Postings px = Postings.read(context.getReader(), x, "body");
+          Postings py = Postings.read(context.getReader(), y, "body");
+          Set<Integer> union = new HashSet<Integer>();
+          for (int j = 0; j < px.getDf(); j++) {
+            union.add(px.getDocid(j));
+          }
+          for (int j = 0; j < py.getDf(); j++) {
+            union.add(py.getDocid(j));
+          }
+
+          Qryop syn = new QryopIlSyn(new QryopIlTerm(x), new QryopIlTerm(y));
+          InvList list = syn.evaluate(modelIndri, context).invertedList;
+          expect(list.df == union.size() && list.ctf == px.getCtf() + py.getCtf(), "#syn(" + x
+              + " " + y + ")");
+        }
+      }
+    });
+
+    // #AND of the query terms scores documents as the Indri feature does. The feature counts a
+    // repeated term once, so only queries without repeated terms are compared.
+    checks.add(new Check("indriAnd") {
+
+      @Override
+      void run() throws Exception {
+        RetrievalEvaluator evaluator = new RetrievalEvaluator(context, null, modelIndri, null);
+        Set<Integer> noneDisabled = new HashSet<Integer>();
+        for (int q = 0; q < queries.size(); q++) {
+          Set<String> distinct = new HashSet<String>(Arrays.asList(queryStems.get(q)));
+          if (distinct.size() < queryStems.get(q).length) {
+            continue;
+          }
+          QueryTerms terms = new QueryTerms(queryStems.get(q), null);
+          Qryop qTree = context.parseQuery(queries.get(q), modelIndri);
+          ScoreList scores = context.evaluate(qTree, modelIndri).docScores;
+          for (int i = 0; i < N_CANDIDATES && i < scores.scores.size(); i++) {
+            double expected =
+                evaluator.getFeatureIndri(terms, scores.getDocid(i), "body", noneDisabled);
+            expect(Math.abs(scores.getDocidScore(i) - expected) <= TOLERANCE * Math.abs(expected),
+                "[" + queries.get(q) + "] docid " + scores.getDocid(i));
+          }
+        }
+      }
+    });
+
+    // PostingsCursor.advance against a linear scan, on random lists and random targets, some behind
+    // the cursor and some far ahead of it
+    checks.add(new Check("cursorAdvance") {
+
+      @Override
+      void run() {
+        Random random = new Random(TEST_SEED);
+        for (int i = 0; i < N_LISTS; i++) {
+          int df = random.nextInt(200);
+          int[] docids = new int[df];
+          Postings.Builder builder = new Postings.Builder("body", df);
+          for (int j = 0, docid = 0; j < df; j++) {
+            docid += 1 + random.nextInt(20);
+            docids[j] = docid;
+            builder.addPosting(docid, 1);
+          }
+
+          PostingsCursor cursor = new PostingsCursor(new InvList(builder.build()));
+          int index = 0;
+          while (cursor.docid() != PostingsCursor.NO_MORE_DOCS) {
+            int target = (random.nextBoolean() ? cursor.docid() : 0) + random.nextInt(60);
+            int docid = cursor.advance(target);
+            while (index < df && docids[index] < target) {
+              index++;
+            }
+            int expected = (index < df) ? docids[index] : PostingsCursor.NO_MORE_DOCS;
+            expect(docid == expected && (docid == PostingsCursor.NO_MORE_DOCS
+                || cursor.index() == index), "advance(" + target + ") of list " + i);
+            if (random.nextInt(4) == 0 && index < df) {
+              cursor.next();
+              index++;
+            }
+          }
+        }
+      }
+    });
+
+    // With body as its only field, BM25F is BM25 on the body field, to rounding
+    checks.add(new Check("bm25f") {
+
+      @Override
+      void run() throws Exception {
+        RetrievalModel bodyOnly = new RetrievalModelBM25F();
+        bodyOnly.setParameter("k_1", modelBM25.getParameter("k_1"));
+        bodyOnly.setParameter("k_3", modelBM25.getParameter("k_3"));
+        bodyOnly.setParameter("weight:body", 1.0);
+        bodyOnly.setParameter("b:body", modelBM25.getParameter("b"));
+        context.setPlanner(new QueryPlanner(context, false));
+        for (String query : queries) {
+          Map<Integer, Double> expected = scores(context.parseQuery(query, modelBM25), modelBM25);
+          Map<Integer, Double> actual = scores(context.parseQuery(query, bodyOnly), bodyOnly);
+          expect(sameScores(expected, actual, BM25F_TOLERANCE), "[" + query + "]");
+        }
+        context.setPlanner(null);
+      }
+    });
+
+    return checks;
+  }
+
+  /**
+   * Run the checks.
+   *
+   * @param args indexPath [pattern]
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      QryEval.fatalError("Usage:  java Verification indexPath [pattern]");
+    }
+    String indexPath = args[0];
+    Pattern pattern = Pattern.compile((args.length > 1) ? args[1] : ".*");
+
+    if (!new File(indexPath).exists()) {
+      System.out.println("Building the test index in " + indexPath);
+      TestIndexBuilder.build(indexPath, N_TEST_DOCS, TEST_SEED);
+    }
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+    Verification verification =
+        new Verification(new SearchContext(reader), indexPath + ".queries");
+
+    int mismatches = 0;
+    for (Check c : verification.checks()) {
+      if (!pattern.matcher(c.name).find()) {
+        continue;
+      }
+      c.run();
+      System.out.println(String.format("%-20s %6d cases %6d mismatches", c.name, c.cases,
+          c.mismatches));
+      mismatches += c.mismatches;
+    }
+    reader.close();
+    System.exit((mismatches > 0) ? 1 : 0);
+  }
+
+}